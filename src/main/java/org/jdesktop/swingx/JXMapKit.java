@@ -20,6 +20,10 @@ import javax.swing.*;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
+import org.jdesktop.swingx.event.ViewportEvent;
+import org.jdesktop.swingx.event.ViewportListener;
+import org.jdesktop.swingx.mapviewer.AbstractTileFactory;
+import org.jdesktop.swingx.mapviewer.DownsamplingTileFactory;
 import org.jdesktop.swingx.mapviewer.GeoPosition;
 import org.jdesktop.swingx.mapviewer.TileFactory;
 import org.jdesktop.swingx.mapviewer.Waypoint;
@@ -60,7 +64,11 @@ import org.jdesktop.swingx.painter.Painter;
  * @author joshy
  */
 public class JXMapKit extends JXPanel {
+    /** The mini-map shows this many zoom levels less than the main map */
+    private static final int MINI_MAP_ZOOM_OFFSET = 4;
+
     private boolean miniMapVisible = true;
+    private boolean miniMapDownsampling = false;
     private boolean zoomSliderVisible = true;
     private boolean zoomButtonsVisible = true;
     private final boolean sliderReversed = false;
@@ -121,41 +129,40 @@ public class JXMapKit extends JXPanel {
          * mainMap.addMouseMotionListener(ma); mainMap.addMouseListener(ma);
          */
 
-        mainMap.addPropertyChangeListener("center", new PropertyChangeListener() {
-            @Override
-            public void propertyChange(final PropertyChangeEvent evt) {
-                final Point2D mapCenter = (Point2D) evt.getNewValue();
-                final TileFactory tf = mainMap.getTileFactory();
-                final GeoPosition mapPos = tf.pixelToGeo(mapCenter, mainMap.getZoom());
-                miniMap.setCenterPosition(mapPos);
-            }
-        });
-
-        mainMap.addPropertyChangeListener("centerPosition", new PropertyChangeListener() {
+        // Each map follows the other one once per frame. The echo of a
+        // synchronization, the event of the map moved to the center set by
+        // the other one, is ignored so they don't call each other back.
+        mainMap.addViewportListener(new ViewportListener() {
             @Override
-            public void propertyChange(final PropertyChangeEvent evt) {
-                mapCenterPosition = (GeoPosition) evt.getNewValue();
+            public void viewportChanged(final ViewportEvent evt) {
+                if (evt.getCenter().equals(mainMapSyncCenter)) {
+                    return;
+                }
+                mapCenterPosition = evt.getCenterPosition();
                 miniMap.setCenterPosition(mapCenterPosition);
-                final Point2D pt = miniMap.getTileFactory().geoToPixel(mapCenterPosition, miniMap.getZoom());
-                miniMap.setCenter(pt);
+                miniMapSyncCenter = miniMap.getCenter();
+                // The rectangle of the main map moved even if the minimap
+                // didn't
                 miniMap.repaint();
             }
         });
-        miniMap.addPropertyChangeListener("centerPosition", new PropertyChangeListener() {
+        miniMap.addViewportListener(new ViewportListener() {
             @Override
-            public void propertyChange(final PropertyChangeEvent evt) {
-                mapCenterPosition = (GeoPosition) evt.getNewValue();
+            public void viewportChanged(final ViewportEvent evt) {
+                if (evt.getCenter().equals(miniMapSyncCenter)) {
+                    return;
+                }
+                mapCenterPosition = evt.getCenterPosition();
                 mainMap.setCenterPosition(mapCenterPosition);
-                final Point2D pt = mainMap.getTileFactory().geoToPixel(mapCenterPosition, mainMap.getZoom());
-                mainMap.setCenter(pt);
-                mainMap.repaint();
+                mainMapSyncCenter = mainMap.getCenter();
             }
         });
         mainMap.addPropertyChangeListener("zoom", new PropertyChangeListener() {
             @Override
             public void propertyChange(final PropertyChangeEvent evt) {
                 zoomSlider.setValue(mainMap.getZoom());
-                miniMap.setZoom(mainMap.getZoom() + 4);
+                miniMap.setZoom(mainMap.getZoom() + MINI_MAP_ZOOM_OFFSET);
+                miniMapSyncCenter = miniMap.getCenter();
             }
         });
 
@@ -211,6 +218,8 @@ public class JXMapKit extends JXPanel {
 
     // private Point2D mapCenter = new Point2D.Double(0,0);
     private GeoPosition mapCenterPosition = new GeoPosition(0, 0);
+    private Point2D mainMapSyncCenter;
+    private Point2D miniMapSyncCenter;
     private boolean zoomChanging = false;
 
     /**
@@ -223,7 +232,7 @@ public class JXMapKit extends JXPanel {
     public void setZoom(final int zoom) {
         zoomChanging = true;
         mainMap.setZoom(zoom);
-        miniMap.setZoom(mainMap.getZoom() + 4);
+        miniMap.setZoom(mainMap.getZoom() + MINI_MAP_ZOOM_OFFSET);
         if (sliderReversed) {
             zoomSlider.setValue(zoomSlider.getMaximum() - zoom);
         }
@@ -423,6 +432,50 @@ public class JXMapKit extends JXPanel {
         firePropertyChange("miniMapVisible", old, this.isMiniMapVisible());
     }
 
+    /**
+     * Indicates if the mini-map tiles are built from the tiles cached by the
+     * main map
+     *
+     * @return the current value of the miniMapDownsampling property
+     */
+    public boolean isMiniMapDownsampling() {
+        return miniMapDownsampling;
+    }
+
+    /**
+     * Sets if the mini-map tiles should be built by downsampling the tiles
+     * cached by the main map, using a {@link DownsamplingTileFactory}. The
+     * mini-map then only downloads the tiles the main map hasn't loaded. This
+     * only applies to tile factories downloading their tiles through the
+     * standard loader of {@link AbstractTileFactory}.
+     *
+     * @param miniMapDownsampling
+     *            a new value for the miniMapDownsampling property
+     */
+    public void setMiniMapDownsampling(final boolean miniMapDownsampling) {
+        final boolean old = this.isMiniMapDownsampling();
+        this.miniMapDownsampling = miniMapDownsampling;
+        if (old != miniMapDownsampling && mainMap.getTileFactory() != null) {
+            final int zoom = miniMap.getZoom();
+            final GeoPosition position = miniMap.getCenterPosition();
+            miniMap.setTileFactory(createMiniMapTileFactory(mainMap.getTileFactory()));
+            miniMap.setZoom(zoom);
+            miniMap.setCenterPosition(position);
+        }
+        firePropertyChange("miniMapDownsampling", old, this.isMiniMapDownsampling());
+    }
+
+    private TileFactory createMiniMapTileFactory(final TileFactory fact) {
+        // Compound tiles aren't cached, their layers would be lost
+        if (miniMapDownsampling && fact instanceof AbstractTileFactory && !(fact instanceof CompoundTileFactory)) {
+            final DownsamplingTileFactory factory = new DownsamplingTileFactory((AbstractTileFactory) fact);
+            // Reaches the tiles of the main map
+            factory.setLevels(MINI_MAP_ZOOM_OFFSET);
+            return factory;
+        }
+        return fact;
+    }
+
     /**
      * Indicates if the zoom slider is currently visible
      *
@@ -482,7 +535,7 @@ public class JXMapKit extends JXPanel {
         mainMap.setTileFactory(fact);
         mainMap.setZoom(fact.getInfo().getDefaultZoomLevel());
         mainMap.setCenterPosition(new GeoPosition(0, 0));
-        miniMap.setTileFactory(fact);
+        miniMap.setTileFactory(createMiniMapTileFactory(fact));
         miniMap.setZoom(fact.getInfo().getDefaultZoomLevel() + 3);
         miniMap.setCenterPosition(new GeoPosition(0, 0));
         zoomSlider.setMinimum(fact.getInfo().getMinimumZoomLevel());
@@ -492,6 +545,8 @@ public class JXMapKit extends JXPanel {
     public void setCenterPosition(final GeoPosition pos) {
         mainMap.setCenterPosition(pos);
         miniMap.setCenterPosition(pos);
+        mainMapSyncCenter = mainMap.getCenter();
+        miniMapSyncCenter = miniMap.getCenter();
     }
 
     public GeoPosition getCenterPosition() {
@@ -12,36 +12,54 @@ package org.jdesktop.swingx;
 import java.awt.Color;
 import java.awt.Cursor;
 import java.awt.Dimension;
+import java.awt.GraphicsConfiguration;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.Insets;
 import java.awt.Point;
 import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
+import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
 import java.beans.DesignMode;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.net.URL;
+import java.util.HashSet;
 import java.util.Set;
 import javax.imageio.ImageIO;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.event.MouseInputListener;
 
+import org.jdesktop.swingx.event.ViewportEvent;
+import org.jdesktop.swingx.event.ViewportListener;
+import org.jdesktop.swingx.mapviewer.DeferredOverlayLayer;
 import org.jdesktop.swingx.mapviewer.GeoBounds;
 import org.jdesktop.swingx.mapviewer.GeoPosition;
+import org.jdesktop.swingx.mapviewer.RepaintScheduler;
 import org.jdesktop.swingx.mapviewer.Tile;
 import org.jdesktop.swingx.mapviewer.TileFactory;
 import org.jdesktop.swingx.mapviewer.TileFactoryInfo;
+import org.jdesktop.swingx.mapviewer.TileImageAccelerator;
+import org.jdesktop.swingx.mapviewer.TilePlaceholderCache;
+import org.jdesktop.swingx.mapviewer.TileRange;
 import org.jdesktop.swingx.mapviewer.empty.EmptyTileFactory;
+import org.jdesktop.swingx.mapviewer.util.ImagePool;
 import org.jdesktop.swingx.painter.AbstractPainter;
 import org.jdesktop.swingx.painter.Painter;
 
@@ -111,6 +129,34 @@ public class JXMapViewer extends JXPanel implements DesignMode {
      */
     private TileFactory factory;
 
+    /**
+     * Placeholders painted while the tiles load, built from the cached tiles
+     * of the neighbor zoom levels.
+     */
+    private final TilePlaceholderCache placeholderCache = new TilePlaceholderCache();
+
+    /**
+     * Copies of the painted tiles in a format the screen draws fast.
+     */
+    private final TileImageAccelerator tileImageAccelerator = new TileImageAccelerator();
+
+    /**
+     * Coalesces the repaints of the tiles and properties into frames.
+     */
+    private final RepaintScheduler repaintScheduler = new RepaintScheduler(this);
+
+    /**
+     * Delivers the coalesced viewport changes, once per frame.
+     */
+    private final Timer viewportTimer = new Timer(0, new ActionListener() {
+        @Override
+        public void actionPerformed(final ActionEvent e) {
+            deliverViewport();
+        }
+    });
+    private ViewportEvent lastViewportEvent;
+    private long lastViewportFrame;
+
     /**
      * The position in latitude/longitude of the "address" being mapped. This is
      * a special coordinate that, when moved, will cause the map to be moved as
@@ -156,11 +202,31 @@ public class JXMapViewer extends JXPanel implements DesignMode {
 
     private float zoomScale = 1;
 
+    private boolean zoomAnimated = false;
+    private boolean kineticPanning = false;
+    private boolean hiDpiTiles = false;
+    private final KineticPan kineticPan = new KineticPan();
+    private final ZoomAnimation zoomAnimation = new ZoomAnimation();
+    private final DeferredOverlayLayer overlayLayer = new DeferredOverlayLayer(this);
+
     private Image loadingImage;
+    /** Read once, shared by all the viewers */
+    private static Image defaultLoadingImage;
 
     private boolean restrictOutsidePanning = false;
     private boolean horizontalWrapped = true;
 
+    /**
+     * Keeps the last painted tiles between repaints, see
+     * {@link #setBackBuffered(boolean)}.
+     */
+    private boolean backBuffered = false;
+    private Image backBuffer;
+    private Rectangle backBufferViewport;
+    private int backBufferZoom;
+    private boolean backBufferValid;
+    private final Set<Point> dirtyTiles = new HashSet<Point>();
+
     /**
      * Create a new JXMapViewer. By default it will use the EmptyTileFactory
      */
@@ -175,21 +241,15 @@ public class JXMapViewer extends JXPanel implements DesignMode {
         this.addMouseMotionListener(mia);
         this.addMouseWheelListener(new ZoomMouseWheelListener());
         this.addKeyListener(new PanKeyListener());
+        this.addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(final ComponentEvent e) {
+                fireViewportChanged();
+            }
+        });
+        viewportTimer.setRepeats(false);
 
-        // make a dummy loading image
-        try {
-            URL url = this.getClass().getResource("/resources/loading.png");
-            this.setLoadingImage(ImageIO.read(url));
-        }
-        catch (Throwable ex) {
-            System.out.println("could not load 'loading.png'");
-            BufferedImage img = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
-            Graphics2D g2 = img.createGraphics();
-            g2.setColor(Color.black);
-            g2.fillRect(0, 0, 16, 16);
-            g2.dispose();
-            this.setLoadingImage(img);
-        }
+        this.setLoadingImage(getDefaultLoadingImage());
 
         // setAddressLocation(new GeoPosition(37.392137,-121.950431)); // Sun
         // campus
@@ -217,13 +277,58 @@ public class JXMapViewer extends JXPanel implements DesignMode {
         else {
             int zoom = getZoom();
             Rectangle viewportBounds = getViewportBounds();
-            drawMapTiles(g, zoom, viewportBounds);
-            drawOverlays(zoom, g, viewportBounds);
+            if (zoomAnimation.isRunning()) {
+                // Draw the current level scaled around the anchor, the tiles
+                // of the target level are loaded when the animation ends
+                final Graphics2D g2 = (Graphics2D) g.create();
+                final Point2D anchor = zoomAnimation.getAnchor();
+                final double scale = zoomAnimation.getScale();
+                g2.translate(anchor.getX(), anchor.getY());
+                g2.scale(scale, scale);
+                g2.translate(-anchor.getX(), -anchor.getY());
+                g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                drawMapTiles(g2, zoom, viewportBounds);
+                drawOverlays(zoom, g2, viewportBounds);
+                g2.dispose();
+                invalidateBackBuffer();
+            }
+            // The debug borders overlap the neighbor tiles, they can't be
+            // painted by strips
+            else if (isBackBuffered() && !isDrawTileBorders()) {
+                drawBackBuffer(g, zoom, viewportBounds);
+                drawOverlays(zoom, g, viewportBounds);
+            }
+            else {
+                drawMapTiles(g, zoom, viewportBounds);
+                drawOverlays(zoom, g, viewportBounds);
+            }
+            // The clipped repaints keep the copies of the whole viewport
+            tileImageAccelerator.endFrame(new TileRange(getTileFactory(), zoom, viewportBounds));
         }
 
         super.paintBorder(g);
     }
 
+    private static synchronized Image getDefaultLoadingImage() {
+        if (defaultLoadingImage == null) {
+            // make a dummy loading image
+            try {
+                URL url = JXMapViewer.class.getResource("/resources/loading.png");
+                defaultLoadingImage = ImageIO.read(url);
+            }
+            catch (Throwable ex) {
+                System.out.println("could not load 'loading.png'");
+                BufferedImage img = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
+                Graphics2D g2 = img.createGraphics();
+                g2.setColor(Color.black);
+                g2.fillRect(0, 0, 16, 16);
+                g2.dispose();
+                defaultLoadingImage = img;
+            }
+        }
+        return defaultLoadingImage;
+    }
+
     /**
      * Indicate that the component is being used at design time, such as in a
      * visual editor like NetBeans' Matisse
@@ -260,83 +365,326 @@ public class JXMapViewer extends JXPanel implements DesignMode {
      *            the bounds to draw within
      */
     protected void drawMapTiles(final Graphics g, final int zoom, Rectangle viewportBounds) {
-        int size = getTileFactory().getTileSize(zoom);
         Dimension mapSize = getTileFactory().getMapSize(zoom);
 
-        // calculate the "visible" viewport area in tiles
-        int numWide = viewportBounds.width / size + 2;
-        int numHigh = viewportBounds.height / size + 2;
-
-        // TilePoint topLeftTile = getTileFactory().getTileCoordinate(
-        // new Point2D.Double(viewportBounds.x, viewportBounds.y));
-        TileFactoryInfo info = getTileFactory().getInfo();
-        int tpx = (int) Math.floor(viewportBounds.getX() / info.getTileSize(0));
-        int tpy = (int) Math.floor(viewportBounds.getY() / info.getTileSize(0));
-        // TilePoint topLeftTile = new TilePoint(tpx, tpy);
+        // Only the tiles intersecting the painted area are visited, the range
+        // is computed once from the clip instead of testing every tile
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+        }
+        if (clip.isEmpty()) {
+            return;
+        }
+        final TileRange range = new TileRange(getTileFactory(), zoom, viewportBounds, clip);
+        final int size = range.getTileSize();
+        final int tileScale = getTileScale(g);
 
-        // p("top tile = " + topLeftTile);
         // fetch the tiles from the factory and store them in the tiles cache
         // attach the tileLoadListener
-        for (int x = 0; x <= numWide; x++) {
-            for (int y = 0; y <= numHigh; y++) {
-                int itpx = x + tpx;// topLeftTile.getX();
-                int itpy = y + tpy;// topLeftTile.getY();
-                // TilePoint point = new TilePoint(x + topLeftTile.getX(), y +
-                // topLeftTile.getY());
-                // only proceed if the specified tile point lies within the area
-                // being painted
-                if (g.getClipBounds().intersects(
-                        new Rectangle(itpx * size - viewportBounds.x, itpy * size - viewportBounds.y, size, size))) {
-                    Tile tile = getTileFactory().getTile(itpx, itpy, zoom);
+        for (int itpx = range.getFirstX(); itpx <= range.getLastX(); itpx++) {
+            for (int itpy = range.getFirstY(); itpy <= range.getLastY(); itpy++) {
+                int ox = range.getOffsetX(itpx);
+                int oy = range.getOffsetY(itpy);
+
+                // if the tile is off the map to the north/south, then just
+                // don't paint anything
+                if (isTileOnMap(itpx, itpy, mapSize)) {
+                    if (isOpaque()) {
+                        g.setColor(getBackground());
+                        g.fillRect(ox, oy, size, size);
+                    }
+                }
+                else if (zoomAnimation.isRunning()) {
+                    // Don't load the tiles of a level only shown while zooming
+                    final BufferedImage image = getTileFactory().getCachedImage(itpx, itpy, zoom);
+                    if (image != null) {
+                        g.drawImage(image, ox, oy, null);
+                        ImagePool.getDefault().release(image);
+                    }
+                    else {
+                        drawPlaceholder(g, itpx, itpy, zoom, ox, oy, size);
+                    }
+                }
+                else {
+                    Tile tile = tileScale > 1 ? getTileFactory().getTile(itpx, itpy, zoom, tileScale)
+                            : getTileFactory().getTile(itpx, itpy, zoom);
                     // this is a filthy hack
                     tile.addUniquePropertyChangeListener(TileFactory.LOADED_PROPERTY, tileLoadListener);
-                    int ox = ((itpx * getTileFactory().getTileSize(zoom)) - viewportBounds.x);
-                    int oy = ((itpy * getTileFactory().getTileSize(zoom)) - viewportBounds.y);
-
-                    // if the tile is off the map to the north/south, then just
-                    // don't paint anything
-                    if (isTileOnMap(itpx, itpy, mapSize)) {
-                        if (isOpaque()) {
-                            g.setColor(getBackground());
-                            g.fillRect(ox, oy, size, size);
-                        }
+                    if (!range.drawTile(g, tile, itpx, itpy, tileImageAccelerator)) {
+                        drawPlaceholder(g, itpx, itpy, zoom, ox, oy, size);
                     }
-                    else if (tile.isLoaded()) {
-                        g.drawImage(tile.getImage(), ox, oy, null);
+                }
+                if (isDrawTileBorders()) {
+
+                    g.setColor(Color.black);
+                    g.drawRect(ox, oy, size, size);
+                    g.drawRect(ox + size / 2 - 5, oy + size / 2 - 5, 10, 10);
+                    g.setColor(Color.white);
+                    g.drawRect(ox + 1, oy + 1, size, size);
+
+                    String text = itpx + ", " + itpy + ", " + getZoom();
+                    g.setColor(Color.BLACK);
+                    g.drawString(text, ox + 10, oy + 30);
+                    g.drawString(text, ox + 10 + 2, oy + 30 + 2);
+                    g.setColor(Color.WHITE);
+                    g.drawString(text, ox + 10 + 1, oy + 30 + 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Paints the tiles through the back buffer: the tiles painted for the
+     * previous viewport are scrolled and only the exposed strips and the tiles
+     * loaded since then are painted again.
+     */
+    private void drawBackBuffer(final Graphics g, final int zoom, final Rectangle viewportBounds) {
+        final int width = getWidth();
+        final int height = getHeight();
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+
+        do {
+            boolean full = !backBufferValid || zoom != backBufferZoom || backBufferViewport == null;
+            if (backBuffer == null || backBuffer.getWidth(null) != width || backBuffer.getHeight(null) != height) {
+                flushBackBuffer();
+                backBuffer = createBackBuffer(width, height);
+                full = true;
+            }
+            if (backBuffer instanceof VolatileImage) {
+                final int state = ((VolatileImage) backBuffer).validate(getGraphicsConfiguration());
+                if (state == VolatileImage.IMAGE_INCOMPATIBLE) {
+                    flushBackBuffer();
+                    backBuffer = createBackBuffer(width, height);
+                    full = true;
+                }
+                else if (state == VolatileImage.IMAGE_RESTORED) {
+                    full = true;
+                }
+            }
+
+            final Graphics2D g2 = (Graphics2D) backBuffer.getGraphics();
+            try {
+                final int dx = full ? 0 : backBufferViewport.x - viewportBounds.x;
+                final int dy = full ? 0 : backBufferViewport.y - viewportBounds.y;
+                if (full || Math.abs(dx) >= width || Math.abs(dy) >= height) {
+                    drawBackBufferRegion(g2, zoom, viewportBounds, new Rectangle(0, 0, width, height));
+                }
+                else {
+                    if (dx != 0 || dy != 0) {
+                        g2.copyArea(0, 0, width, height, dx, dy);
                     }
-                    else {
-                        int imageX = (getTileFactory().getTileSize(zoom) - getLoadingImage().getWidth(null)) / 2;
-                        int imageY = (getTileFactory().getTileSize(zoom) - getLoadingImage().getHeight(null)) / 2;
-                        g.setColor(Color.GRAY);
-                        g.fillRect(ox, oy, size, size);
-                        g.drawImage(getLoadingImage(), ox + imageX, oy + imageY, null);
+                    if (dx > 0) {
+                        drawBackBufferRegion(g2, zoom, viewportBounds, new Rectangle(0, 0, dx, height));
                     }
-                    if (isDrawTileBorders()) {
-
-                        g.setColor(Color.black);
-                        g.drawRect(ox, oy, size, size);
-                        g.drawRect(ox + size / 2 - 5, oy + size / 2 - 5, 10, 10);
-                        g.setColor(Color.white);
-                        g.drawRect(ox + 1, oy + 1, size, size);
-
-                        String text = itpx + ", " + itpy + ", " + getZoom();
-                        g.setColor(Color.BLACK);
-                        g.drawString(text, ox + 10, oy + 30);
-                        g.drawString(text, ox + 10 + 2, oy + 30 + 2);
-                        g.setColor(Color.WHITE);
-                        g.drawString(text, ox + 10 + 1, oy + 30 + 1);
+                    else if (dx < 0) {
+                        drawBackBufferRegion(g2, zoom, viewportBounds, new Rectangle(width + dx, 0, -dx, height));
                     }
+                    if (dy > 0) {
+                        drawBackBufferRegion(g2, zoom, viewportBounds, new Rectangle(0, 0, width, dy));
+                    }
+                    else if (dy < 0) {
+                        drawBackBufferRegion(g2, zoom, viewportBounds, new Rectangle(0, height + dy, width, -dy));
+                    }
+                    drawDirtyTiles(g2, zoom, viewportBounds);
+                }
+            }
+            finally {
+                g2.dispose();
+            }
+            dirtyTiles.clear();
+            backBufferViewport = viewportBounds;
+            backBufferZoom = zoom;
+            backBufferValid = true;
+
+            g.drawImage(backBuffer, 0, 0, null);
+            if (backBuffer instanceof VolatileImage && ((VolatileImage) backBuffer).contentsLost()) {
+                backBufferValid = false;
+            }
+        } while (!backBufferValid);
+    }
+
+    private void drawDirtyTiles(final Graphics2D g2, final int zoom, final Rectangle viewportBounds) {
+        if (dirtyTiles.isEmpty()) {
+            return;
+        }
+        final int numTilesWide = (int) getTileFactory().getMapSize(zoom).getWidth();
+        final TileRange range = new TileRange(getTileFactory(), zoom, viewportBounds, new Rectangle(0, 0,
+                getWidth(), getHeight()));
+        final int size = range.getTileSize();
+        final Point point = new Point();
+        for (int x = range.getFirstX(); x <= range.getLastX(); x++) {
+            for (int y = range.getFirstY(); y <= range.getLastY(); y++) {
+                // Tiles are wrapped horizontally
+                point.setLocation((x % numTilesWide + numTilesWide) % numTilesWide, y);
+                if (dirtyTiles.contains(point)) {
+                    drawBackBufferRegion(g2, zoom, viewportBounds, new Rectangle(range.getOffsetX(x), range
+                            .getOffsetY(y), size, size));
                 }
             }
         }
     }
 
+    private void drawBackBufferRegion(final Graphics2D g2, final int zoom, final Rectangle viewportBounds,
+            final Rectangle region) {
+        g2.setClip(region);
+        g2.setColor(getBackground());
+        g2.fillRect(region.x, region.y, region.width, region.height);
+        drawMapTiles(g2, zoom, viewportBounds);
+    }
+
+    private Image createBackBuffer(final int width, final int height) {
+        final Image image = createVolatileImage(width, height);
+        if (image != null) {
+            return image;
+        }
+        // Not displayable, or accelerated images aren't available
+        final GraphicsConfiguration gc = getGraphicsConfiguration();
+        if (gc != null) {
+            return gc.createCompatibleImage(width, height);
+        }
+        return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    }
+
+    private void flushBackBuffer() {
+        if (backBuffer != null) {
+            backBuffer.flush();
+            backBuffer = null;
+        }
+    }
+
+    /**
+     * Indicates if the painted tiles are kept between repaints
+     *
+     * @return the current value of the backBuffered property
+     */
+    public boolean isBackBuffered() {
+        return backBuffered;
+    }
+
+    /**
+     * Sets if the painted tiles should be kept between repaints. When panning,
+     * the kept tiles are scrolled and only the exposed strips are painted
+     * again, which makes drags much cheaper on big screens. The tiles are
+     * painted again when the zoom changes or they finish loading, call
+     * {@link #invalidateBackBuffer()} if they must be painted again for other
+     * reasons. The back buffer is opaque, filled with the background color.
+     *
+     * @param backBuffered
+     *            new value of the backBuffered property
+     */
+    public void setBackBuffered(final boolean backBuffered) {
+        final boolean old = isBackBuffered();
+        this.backBuffered = backBuffered;
+        if (!backBuffered) {
+            flushBackBuffer();
+        }
+        invalidateBackBuffer();
+        firePropertyChange("backBuffered", old, isBackBuffered());
+        repaintScheduler.repaint();
+    }
+
+    /**
+     * Forces the next repaint to paint all the tiles again when the back
+     * buffer is enabled.
+     */
+    public void invalidateBackBuffer() {
+        backBufferValid = false;
+        dirtyTiles.clear();
+    }
+
+    private void drawPlaceholder(final Graphics g, final int x, final int y, final int zoom, final int ox,
+            final int oy, final int size) {
+        // Show the cached neighbor zoom levels until the tile loads
+        final BufferedImage placeholder = placeholderCache.getPlaceholder(getTileFactory(), x, y, zoom);
+        if (placeholder != null) {
+            g.setColor(Color.GRAY);
+            g.fillRect(ox, oy, size, size);
+            g.drawImage(placeholder, ox, oy, null);
+        }
+        else {
+            drawLoadingTile(g, ox, oy, size, zoom);
+        }
+    }
+
+    private void drawLoadingTile(final Graphics g, final int ox, final int oy, final int size, final int zoom) {
+        int imageX = (getTileFactory().getTileSize(zoom) - getLoadingImage().getWidth(null)) / 2;
+        int imageY = (getTileFactory().getTileSize(zoom) - getLoadingImage().getHeight(null)) / 2;
+        g.setColor(Color.GRAY);
+        g.fillRect(ox, oy, size, size);
+        g.drawImage(getLoadingImage(), ox + imageX, oy + imageY, null);
+    }
+
+    /**
+     * Gets the cache of the tile copies converted for the screen. Set its mode
+     * to {@link TileImageAccelerator.Mode#DISABLED} to draw the tile images
+     * directly.
+     *
+     * @return the tile image accelerator
+     */
+    public TileImageAccelerator getTileImageAccelerator() {
+        return tileImageAccelerator;
+    }
+
+    /**
+     * Gets the cache of the placeholders painted while the tiles load. Set its
+     * size to 0 to paint the loading image instead.
+     *
+     * @return the placeholder cache
+     */
+    public TilePlaceholderCache getPlaceholderCache() {
+        return placeholderCache;
+    }
+
     private void drawOverlays(final int zoom, final Graphics g, final Rectangle viewportBounds) {
         if (overlay != null) {
-            overlay.paint((Graphics2D) g, this, getWidth(), getHeight());
+            overlayLayer.paint((Graphics2D) g, overlay);
         }
     }
 
+    /**
+     * Chooses the scale of the tiles from the transform of the graphics,
+     * which holds the scale of the screen on HiDPI screens.
+     */
+    private int getTileScale(final Graphics g) {
+        if (!isHiDpiTiles() || !(g instanceof Graphics2D)) {
+            return 1;
+        }
+        final AffineTransform tx = ((Graphics2D) g).getTransform();
+        final double scale = Math.max(Math.abs(tx.getScaleX()), Math.abs(tx.getScaleY()));
+        // A 1.25 screen is closer to standard tiles than to twice larger ones
+        return Math.max(1, (int) Math.ceil(scale - 0.25));
+    }
+
+    /**
+     * Indicates if the HiDPI variants of the tiles are used
+     *
+     * @return the current value of the hiDpiTiles property
+     */
+    public boolean isHiDpiTiles() {
+        return hiDpiTiles;
+    }
+
+    /**
+     * Sets if the tiles are chosen from the scale of the screen. On a HiDPI
+     * screen the tiles of the scaled variants declared by the
+     * {@link TileFactoryInfo} are used, drawn at the size of the standard
+     * ones: the map is as sharp as the screen, with the same number of tiles.
+     * The tiles painted through the back buffer are always standard ones.
+     *
+     * @param hiDpiTiles
+     *            new value of the hiDpiTiles property
+     */
+    public void setHiDpiTiles(final boolean hiDpiTiles) {
+        final boolean old = isHiDpiTiles();
+        this.hiDpiTiles = hiDpiTiles;
+        invalidateBackBuffer();
+        firePropertyChange("hiDpiTiles", old, isHiDpiTiles());
+        repaintScheduler.repaint();
+    }
+
     private boolean isTileOnMap(int x, int y, Dimension mapSize) {
         return !isNegativeYAllowed && y < 0 || y >= mapSize.getHeight();
     }
@@ -354,8 +702,82 @@ public class JXMapViewer extends JXPanel implements DesignMode {
     public void setOverlayPainter(Painter overlay) {
         Painter old = getOverlayPainter();
         this.overlay = overlay;
+        overlayLayer.clear();
         firePropertyChange("mapOverlay", old, getOverlayPainter());
-        repaint();
+        repaintScheduler.repaint();
+    }
+
+    /**
+     * Gets the time budget of the overlay paints
+     *
+     * @return the current value of the overlayTimeBudget property, in
+     *         milliseconds
+     */
+    public long getOverlayTimeBudget() {
+        return overlayLayer.getTimeBudget();
+    }
+
+    /**
+     * Sets the time budget of the overlay paints. When a paint of the overlay
+     * takes longer, the overlay is rendered into a layer once the map stays
+     * still, and the frames draw the last layer moved with the map while the
+     * tiles are painted as usual. The overlay is painted on every frame again
+     * when it fits the budget. Call {@link #invalidateOverlay()} when the
+     * content of the overlay changes.
+     * <p>
+     * By default the overlay isn't thread safe, and each time the map goes
+     * idle the full overlay is rendered on the event dispatch thread, which
+     * blocks the interface as long as a paint of the overlay. Declare it thread
+     * safe with {@link #setOverlayThreadSafe(boolean)} to render it in
+     * background instead.
+     * </p>
+     *
+     * @param overlayTimeBudget
+     *            the budget in milliseconds, 0 to always paint the overlay on
+     *            every frame
+     * @see DeferredOverlayLayer
+     */
+    public void setOverlayTimeBudget(final long overlayTimeBudget) {
+        final long old = getOverlayTimeBudget();
+        overlayLayer.setTimeBudget(overlayTimeBudget);
+        firePropertyChange("overlayTimeBudget", old, getOverlayTimeBudget());
+        repaintScheduler.repaint();
+    }
+
+    /**
+     * Gets whether the overlay can be painted on a background thread
+     *
+     * @return the current value of the overlayThreadSafe property
+     */
+    public boolean isOverlayThreadSafe() {
+        return overlayLayer.isOverlayThreadSafe();
+    }
+
+    /**
+     * Declares whether the overlay can be painted on a background thread
+     * while the event dispatch thread uses it. Its deferred layer, see
+     * {@link #setOverlayTimeBudget(long)}, is then rendered in background on
+     * a hidden copy of this map. The overlay must be safe to paint while it is
+     * changed on the event dispatch thread, and may only read the map it is
+     * given. {@link org.jdesktop.swingx.mapviewer.WaypointPainter} isn't.
+     *
+     * @param overlayThreadSafe
+     *            true if the overlay is thread safe, false by default
+     * @see DeferredOverlayLayer
+     */
+    public void setOverlayThreadSafe(final boolean overlayThreadSafe) {
+        final boolean old = isOverlayThreadSafe();
+        overlayLayer.setOverlayThreadSafe(overlayThreadSafe);
+        firePropertyChange("overlayThreadSafe", old, isOverlayThreadSafe());
+    }
+
+    /**
+     * Repaints the overlay after its content has changed. When the overlay is
+     * deferred, its layer is rendered again.
+     */
+    public void invalidateOverlay() {
+        overlayLayer.invalidate();
+        repaintScheduler.repaint();
     }
 
     /**
@@ -382,9 +804,7 @@ public class JXMapViewer extends JXPanel implements DesignMode {
         // calculate the "visible" viewport area in pixels
         int viewportWidth = getWidth() - insets.left - insets.right;
         int viewportHeight = getHeight() - insets.top - insets.bottom;
-        double viewportX = (center.getX() - viewportWidth / 2);
-        double viewportY = (center.getY() - viewportHeight / 2);
-        return new Rectangle((int) viewportX, (int) viewportY, viewportWidth, viewportHeight);
+        return TileRange.getViewport(center, viewportWidth, viewportHeight);
     }
 
     /**
@@ -429,6 +849,8 @@ public class JXMapViewer extends JXPanel implements DesignMode {
      */
     public void setZoom(int zoom, final Point2D zoomCenter) {
         if (isZoomEnabled()) {
+            // An explicit level wins over a running animation
+            zoomAnimation.stop();
             if (zoom == this.zoom) {
                 return;
             }
@@ -449,6 +871,7 @@ public class JXMapViewer extends JXPanel implements DesignMode {
             Dimension oldMapSize = getTileFactory().getMapSize(oldzoom);
             this.zoom = zoom;
             this.firePropertyChange("zoom", oldzoom, zoom);
+            fireViewportChanged();
 
             Dimension mapSize = getTileFactory().getMapSize(zoom);
 
@@ -469,8 +892,9 @@ public class JXMapViewer extends JXPanel implements DesignMode {
 
             setCenter(new Point2D.Double((oldCenter.getX() + despX) * ajustWidth,
                     (oldCenter.getY() + despY) * ajustHeight));
-
-            repaint();
+            // setCenter doesn't repaint when the center stays the same, like
+            // (0, 0) or a center pinned by restrictOutsidePanning
+            repaintScheduler.repaint();
         }
     }
 
@@ -522,7 +946,7 @@ public class JXMapViewer extends JXPanel implements DesignMode {
         setCenter(getTileFactory().geoToPixel(addressLocation, getZoom()));
 
         firePropertyChange("addressLocation", old, getAddressLocation());
-        repaint();
+        repaintScheduler.repaint();
     }
 
     /**
@@ -533,7 +957,7 @@ public class JXMapViewer extends JXPanel implements DesignMode {
      */
     public void recenterToAddressLocation() {
         setCenter(getTileFactory().geoToPixel(getAddressLocation(), getZoom()));
-        repaint();
+        repaintScheduler.repaint();
     }
 
     /**
@@ -554,8 +978,9 @@ public class JXMapViewer extends JXPanel implements DesignMode {
     public void setDrawTileBorders(boolean drawTileBorders) {
         boolean old = isDrawTileBorders();
         this.drawTileBorders = drawTileBorders;
+        invalidateBackBuffer();
         firePropertyChange("drawTileBorders", old, isDrawTileBorders());
-        repaint();
+        repaintScheduler.repaint();
     }
 
     /**
@@ -632,11 +1057,8 @@ public class JXMapViewer extends JXPanel implements DesignMode {
      *            the new property value
      */
     public void setCenterPosition(GeoPosition geoPosition) {
-        GeoPosition oldVal = getCenterPosition();
+        // Fires the centerPosition property change
         setCenter(getTileFactory().geoToPixel(geoPosition, zoom));
-        repaint();
-        GeoPosition newVal = getCenterPosition();
-        firePropertyChange("centerPosition", oldVal, newVal);
     }
 
     /**
@@ -665,6 +1087,9 @@ public class JXMapViewer extends JXPanel implements DesignMode {
      */
     public void setTileFactory(TileFactory factory) {
         this.factory = factory;
+        placeholderCache.clear();
+        tileImageAccelerator.clear();
+        invalidateBackBuffer();
         this.setZoom(factory.getInfo().getDefaultZoomLevel());
     }
 
@@ -687,6 +1112,7 @@ public class JXMapViewer extends JXPanel implements DesignMode {
      */
     public void setLoadingImage(Image loadingImage) {
         this.loadingImage = loadingImage;
+        invalidateBackBuffer();
     }
 
     /**
@@ -755,15 +1181,75 @@ public class JXMapViewer extends JXPanel implements DesignMode {
             }
         }
 
-        // joshy: this is an evil hack to force a property change event
-        // i don't know why it doesn't work normally
-        old = new Point(5, 6);
+        if (center.equals(old)) {
+            return;
+        }
 
-        GeoPosition oldGP = this.getCenterPosition();
+        // Only projected for the listeners of the property
+        final boolean positionListened = getPropertyChangeListeners("centerPosition").length > 0;
+        GeoPosition oldGP = positionListened ? this.getCenterPosition() : null;
         this.center = center;
-        firePropertyChange("center", old, this.center);// .getCenter());
-        firePropertyChange("centerPosition", oldGP, this.getCenterPosition());
-        repaint();
+        firePropertyChange("center", old, this.center);
+        if (positionListened) {
+            firePropertyChange("centerPosition", oldGP, this.getCenterPosition());
+        }
+        fireViewportChanged();
+        repaintScheduler.repaint();
+    }
+
+    /**
+     * Adds a listener of the viewport of the map. It is called at most once
+     * per frame, however many times the center or the zoom changed.
+     *
+     * @param listener the listener to add
+     */
+    public void addViewportListener(final ViewportListener listener) {
+        listenerList.add(ViewportListener.class, listener);
+    }
+
+    /**
+     * @param listener the listener to remove
+     */
+    public void removeViewportListener(final ViewportListener listener) {
+        listenerList.remove(ViewportListener.class, listener);
+    }
+
+    /**
+     * @return the listeners of the viewport of the map
+     */
+    public ViewportListener[] getViewportListeners() {
+        return listenerList.getListeners(ViewportListener.class);
+    }
+
+    /**
+     * Schedules a {@link ViewportEvent} for the next frame. The changes made
+     * until then are delivered with a single event.
+     */
+    protected void fireViewportChanged() {
+        if (listenerList.getListenerCount(ViewportListener.class) == 0 || viewportTimer.isRunning()) {
+            return;
+        }
+        final long interval = 1000L / repaintScheduler.getMaxFps();
+        final long wait = Math.max(0, interval - (System.currentTimeMillis() - lastViewportFrame));
+        viewportTimer.setInitialDelay((int) wait);
+        viewportTimer.start();
+    }
+
+    private void deliverViewport() {
+        lastViewportFrame = System.currentTimeMillis();
+        final ViewportListener[] listeners = getViewportListeners();
+        if (listeners.length == 0) {
+            return;
+        }
+        final ViewportEvent evt = new ViewportEvent(this, getCenter(), getCenterPosition(), getZoom(),
+                getViewportBounds());
+        if (evt.isSameViewport(lastViewportEvent)) {
+            return;
+        }
+        lastViewportEvent = evt;
+        for (final ViewportListener listener : listeners) {
+            listener.viewportChanged(evt);
+        }
     }
 
     /**
@@ -863,28 +1349,49 @@ public class JXMapViewer extends JXPanel implements DesignMode {
         public void propertyChange(PropertyChangeEvent evt) {
             if ("loaded".equals(evt.getPropertyName()) && Boolean.TRUE.equals(evt.getNewValue())) {
                 Tile t = (Tile) evt.getSource();
+                tileImageAccelerator.invalidate(t);
                 if (t.getZoom() == getZoom()) {
-                    repaint();
-                    /*
-                     * this optimization doesn't save much and it doesn't work
-                     * if you wrap around the world Rectangle viewportBounds =
-                     * getViewportBounds(); TilePoint tilePoint =
-                     * t.getLocation(); Point point = new Point(tilePoint.getX()
-                     * * getTileFactory().getTileSize(), tilePoint.getY() *
-                     * getTileFactory().getTileSize()); Rectangle tileRect = new
-                     * Rectangle(point, new
-                     * Dimension(getTileFactory().getTileSize(),
-                     * getTileFactory().getTileSize())); if
-                     * (viewportBounds.intersects(tileRect)) { //convert
-                     * tileRect from world space to viewport space repaint(new
-                     * Rectangle( tileRect.x - viewportBounds.x, tileRect.y -
-                     * viewportBounds.y, tileRect.width, tileRect.height )); }
-                     */
+                    if (isBackBuffered()) {
+                        dirtyTiles.add(new Point(t.getX(), t.getY()));
+                    }
+                    repaintTile(t);
                 }
             }
         }
     }
 
+    /**
+     * Schedules the repaint of every visible copy of a tile, tiles are
+     * wrapped horizontally.
+     */
+    private void repaintTile(final Tile tile) {
+        if (zoomAnimation.isRunning()) {
+            // Every frame is repainted anyway
+            return;
+        }
+        final int size = getTileFactory().getTileSize(getZoom());
+        final int numTilesWide = (int) getTileFactory().getMapSize(getZoom()).getWidth();
+        final Rectangle viewportBounds = getViewportBounds();
+        final int firstX = (int) Math.floor((double) viewportBounds.x / size);
+        final int lastX = (int) Math.floor((double) (viewportBounds.x + getWidth() - 1) / size);
+        for (int x = firstX; x <= lastX; x++) {
+            if ((x % numTilesWide + numTilesWide) % numTilesWide == tile.getX()) {
+                repaintScheduler.repaint(new Rectangle(x * size - viewportBounds.x, tile.getY() * size
+                        - viewportBounds.y, size, size));
+            }
+        }
+    }
+
+    /**
+     * Gets the scheduler coalescing the repaints of this component. Painters
+     * and animations should use it instead of calling repaint directly.
+     *
+     * @return the repaint scheduler
+     */
+    public RepaintScheduler getRepaintScheduler() {
+        return repaintScheduler;
+    }
+
     // used to pan using the arrow keys
     private class PanKeyListener extends KeyAdapter {
         private static final int OFFSET = 10;
@@ -914,7 +1421,6 @@ public class JXMapViewer extends JXPanel implements DesignMode {
                 double x = bounds.getCenterX() + delta_x;
                 double y = bounds.getCenterY() + delta_y;
                 setCenter(new Point2D.Double(x, y));
-                repaint();
             }
         }
     }
@@ -926,6 +1432,7 @@ public class JXMapViewer extends JXPanel implements DesignMode {
         public void mousePressed(MouseEvent evt) {
             // Request focus to allow mouse input
             requestFocusInWindow();
+            kineticPan.stop();
 
             // if the middle mouse button is clicked, recenter the view
             if (isRecenterOnClickEnabled() &&
@@ -939,30 +1446,24 @@ public class JXMapViewer extends JXPanel implements DesignMode {
         }
 
         public void mouseDragged(MouseEvent evt) {
-            if (isPanEnabled()) {
+            if (isPanEnabled() && prev != null) {
                 Point current = evt.getPoint();
-                double x = getCenter().getX() - (current.x - prev.x);
-                double y = getCenter().getY() - (current.y - prev.y);
-
-                if (!isNegativeYAllowed) {
-                    if (y < 0) {
-                        y = 0;
-                    }
+                if (isKineticPanning()) {
+                    // Applied once per frame
+                    kineticPan.drag(current.x - prev.x, current.y - prev.y);
                 }
-
-                int maxHeight = (int) (getTileFactory().getMapSize(getZoom()).getHeight() * getTileFactory().getTileSize(getZoom()));
-                if (y > maxHeight) {
-                    y = maxHeight;
+                else {
+                    panBy(current.x - prev.x, current.y - prev.y);
                 }
-
                 prev = current;
-                setCenter(new Point2D.Double(x, y));
-                repaint();
                 setCursor(Cursor.getPredefinedCursor(Cursor.MOVE_CURSOR));
             }
         }
 
         public void mouseReleased(MouseEvent evt) {
+            if (prev != null && isKineticPanning()) {
+                kineticPan.release();
+            }
             prev = null;
             setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
         }
@@ -972,7 +1473,357 @@ public class JXMapViewer extends JXPanel implements DesignMode {
             double x = bounds.getX() + evt.getX();
             double y = bounds.getY() + evt.getY();
             setCenter(new Point2D.Double(x, y));
-            repaint();
+        }
+    }
+
+    /**
+     * Moves the map by a number of pixels, like a mouse drag.
+     */
+    private void panBy(final double dx, final double dy) {
+        double x = getCenter().getX() - dx;
+        double y = getCenter().getY() - dy;
+
+        if (!isNegativeYAllowed) {
+            if (y < 0) {
+                y = 0;
+            }
+        }
+
+        int maxHeight = (int) (getTileFactory().getMapSize(getZoom()).getHeight() * getTileFactory().getTileSize(getZoom()));
+        if (y > maxHeight) {
+            y = maxHeight;
+        }
+
+        setCenter(new Point2D.Double(x, y));
+    }
+
+    /**
+     * Indicates if the map keeps moving after a drag
+     *
+     * @return the current value of the kineticPanning property
+     */
+    public boolean isKineticPanning() {
+        return kineticPanning;
+    }
+
+    /**
+     * Sets if the map should keep moving after a drag, slowing down until it
+     * stops. The drag itself moves the map once per frame however many mouse
+     * events it gets, and the tiles around the point where the map will stop
+     * are requested as soon as the mouse is released.
+     *
+     * @param kineticPanning
+     *            new value of the kineticPanning property
+     */
+    public void setKineticPanning(final boolean kineticPanning) {
+        final boolean old = isKineticPanning();
+        this.kineticPanning = kineticPanning;
+        if (!kineticPanning) {
+            kineticPan.stop();
+        }
+        firePropertyChange("kineticPanning", old, isKineticPanning());
+    }
+
+    /**
+     * Moves the map once per frame, with the pending drag distance and then
+     * with the speed of the drag, slowed down by friction.
+     */
+    private final class KineticPan implements ActionListener {
+        private static final int FRAME = 16;
+        // Speed kept after each frame
+        private static final double FRICTION = 0.92;
+        // Pixels per millisecond under which the map stops
+        private static final double MIN_SPEED = 0.02;
+        // Only the end of the drag gives the speed
+        private static final long SAMPLE_WINDOW = 100;
+        private static final int SAMPLES = 8;
+
+        private final Timer timer = new Timer(FRAME, this);
+        private final long[] sampleTimes = new long[SAMPLES];
+        private final double[] sampleX = new double[SAMPLES];
+        private final double[] sampleY = new double[SAMPLES];
+        private int sampleCount;
+        private double totalX;
+        private double totalY;
+        private double pendingX;
+        private double pendingY;
+        private double speedX;
+        private double speedY;
+        private boolean gliding;
+        private long lastFrame;
+
+        private void drag(final int dx, final int dy) {
+            if (gliding) {
+                stop();
+            }
+            pendingX += dx;
+            pendingY += dy;
+            totalX += dx;
+            totalY += dy;
+            final int index = sampleCount++ % SAMPLES;
+            sampleTimes[index] = System.currentTimeMillis();
+            sampleX[index] = totalX;
+            sampleY[index] = totalY;
+            if (!timer.isRunning()) {
+                timer.start();
+            }
+        }
+
+        private void release() {
+            flush();
+            // A click without a drag
+            if (sampleCount == 0) {
+                stop();
+                return;
+            }
+            final long now = System.currentTimeMillis();
+            final int last = (sampleCount - 1) % SAMPLES;
+            int first = last;
+            for (int i = 1; i < Math.min(sampleCount, SAMPLES); i++) {
+                final int index = (sampleCount - 1 - i) % SAMPLES;
+                if (now - sampleTimes[index] > SAMPLE_WINDOW) {
+                    break;
+                }
+                first = index;
+            }
+            final long elapsed = sampleTimes[last] - sampleTimes[first];
+            sampleCount = 0;
+            // A pause before the release stops the map
+            if (first == last || elapsed <= 0 || now - sampleTimes[last] > SAMPLE_WINDOW / 2) {
+                stop();
+                return;
+            }
+            speedX = (sampleX[last] - sampleX[first]) / elapsed;
+            speedY = (sampleY[last] - sampleY[first]) / elapsed;
+            if (Math.hypot(speedX, speedY) < MIN_SPEED) {
+                stop();
+                return;
+            }
+            gliding = true;
+            lastFrame = now;
+            prefetchLanding();
+            timer.start();
+        }
+
+        private void stop() {
+            timer.stop();
+            gliding = false;
+            pendingX = 0;
+            pendingY = 0;
+            speedX = 0;
+            speedY = 0;
+        }
+
+        private void flush() {
+            if (pendingX != 0 || pendingY != 0) {
+                panBy(pendingX, pendingY);
+                pendingX = 0;
+                pendingY = 0;
+            }
+        }
+
+        /**
+         * Requests the tiles of the viewport where the glide ends. The
+         * distance is the sum of the geometric series of the frame moves.
+         */
+        private void prefetchLanding() {
+            final double distance = FRAME / (1 - FRICTION);
+            final Rectangle viewport = getViewportBounds();
+            final double x = viewport.getX() - speedX * distance;
+            final double y = viewport.getY() - speedY * distance;
+            final int zoom = getZoom();
+            final TileFactory factory = getTileFactory();
+            final int size = factory.getTileSize(zoom);
+            final int mapHeight = (int) factory.getMapSize(zoom).getHeight();
+            final int firstX = (int) Math.floor(x / size);
+            final int lastX = (int) Math.floor((x + viewport.width) / size);
+            final int firstY = Math.max(0, (int) Math.floor(y / size));
+            final int lastY = Math.min(mapHeight - 1, (int) Math.floor((y + viewport.height) / size));
+            for (int tx = firstX; tx <= lastX; tx++) {
+                for (int ty = firstY; ty <= lastY; ty++) {
+                    factory.prefetchTile(tx, ty, zoom);
+                }
+            }
+        }
+
+        @Override
+        public void actionPerformed(final ActionEvent e) {
+            if (!gliding) {
+                flush();
+                if (isDragIdle()) {
+                    timer.stop();
+                }
+                return;
+            }
+            final long now = System.currentTimeMillis();
+            final long elapsed = Math.max(1, now - lastFrame);
+            lastFrame = now;
+            panBy(speedX * elapsed, speedY * elapsed);
+            final double friction = Math.pow(FRICTION, elapsed / (double) FRAME);
+            speedX *= friction;
+            speedY *= friction;
+            if (Math.hypot(speedX, speedY) < MIN_SPEED) {
+                stop();
+            }
+        }
+
+        private boolean isDragIdle() {
+            return sampleCount == 0 || System.currentTimeMillis() - sampleTimes[(sampleCount - 1) % SAMPLES] > SAMPLE_WINDOW;
+        }
+    }
+
+    /**
+     * Indicates if the zoom changes of the mouse wheel are animated
+     *
+     * @return the current value of the zoomAnimated property
+     */
+    public boolean isZoomAnimated() {
+        return zoomAnimated;
+    }
+
+    /**
+     * Sets if the zoom changes of the mouse wheel should be animated. While
+     * animating, the tiles of the current level are drawn scaled and the
+     * tiles of the new level are only requested once the animation ends, so
+     * quick wheel gestures don't load every level they go through.
+     *
+     * @param zoomAnimated
+     *            new value of the zoomAnimated property
+     */
+    public void setZoomAnimated(final boolean zoomAnimated) {
+        final boolean old = isZoomAnimated();
+        this.zoomAnimated = zoomAnimated;
+        firePropertyChange("zoomAnimated", old, isZoomAnimated());
+    }
+
+    /**
+     * @return the duration in milliseconds of the zoom animations
+     */
+    public int getZoomAnimationDuration() {
+        return zoomAnimation.duration;
+    }
+
+    /**
+     * @param duration the duration in milliseconds of the zoom animations
+     */
+    public void setZoomAnimationDuration(final int duration) {
+        if (duration < 0) {
+            throw new IllegalArgumentException("The duration can't be negative");
+        }
+        zoomAnimation.duration = duration;
+    }
+
+    /**
+     * Gets the zoom level being shown. While a zoom animation runs it is
+     * between two levels, otherwise it's the same as {@link #getZoom()}.
+     *
+     * @return the fractional zoom level
+     */
+    public double getFractionalZoom() {
+        return zoomAnimation.isRunning() ? zoomAnimation.getCurrent() : getZoom();
+    }
+
+    /**
+     * Animates the zoom to a new level. If an animation is already running
+     * it continues from the level being shown to the new one.
+     *
+     * @param zoom
+     *            the new zoom level
+     * @param zoomCenter
+     *            the point to use as center to apply the zoom, or null for
+     *            the center of the map
+     */
+    public void animateZoom(final int zoom, final Point2D zoomCenter) {
+        if (!isZoomEnabled()) {
+            return;
+        }
+        final TileFactoryInfo info = getTileFactory().getInfo();
+        int target = Math.max(info.getMinimumZoomLevel(), Math.min(info.getMaximumZoomLevel(), zoom));
+        if (minZoomLimit != -1) {
+            target = Math.max(minZoomLimit, target);
+        }
+        if (maxZoomLimit != -1) {
+            target = Math.min(maxZoomLimit, target);
+        }
+        if (zoomAnimation.duration == 0 || !isShowing()) {
+            setZoom(target, zoomCenter);
+            return;
+        }
+        zoomAnimation.start(target, zoomCenter);
+    }
+
+    /**
+     * Interpolates the zoom level between two levels. Only the tiles of the
+     * level of the start are drawn, scaled.
+     */
+    private final class ZoomAnimation implements ActionListener {
+        // Farther levels would need too many tiles of the start level
+        private static final int MAX_LEVELS = 3;
+
+        private final Timer timer = new Timer(15, this);
+        private int duration = 200;
+        private int startZoom;
+        private double from;
+        private double to;
+        private long start;
+        private Point2D anchor;
+
+        private boolean isRunning() {
+            return timer.isRunning();
+        }
+
+        private void start(final int target, final Point2D zoomCenter) {
+            if (isRunning()) {
+                from = getCurrent();
+            }
+            else {
+                startZoom = getZoom();
+                from = startZoom;
+                anchor = zoomCenter != null ? zoomCenter : new Point2D.Double(getWidth() / 2.0, getHeight() / 2.0);
+            }
+            to = Math.max(startZoom - MAX_LEVELS, Math.min(startZoom + MAX_LEVELS, target));
+            start = System.currentTimeMillis();
+            if (to == startZoom && from == startZoom) {
+                timer.stop();
+                return;
+            }
+            timer.start();
+        }
+
+        private void stop() {
+            timer.stop();
+        }
+
+        private double getTarget() {
+            return to;
+        }
+
+        private double getCurrent() {
+            final double t = Math.min(1, (System.currentTimeMillis() - start) / (double) Math.max(1, duration));
+            // Ease out, the gesture feels immediate
+            final double eased = 1 - (1 - t) * (1 - t);
+            return from + (to - from) * eased;
+        }
+
+        private double getScale() {
+            // Higher zoom levels are zoomed out
+            return Math.pow(2, startZoom - getCurrent());
+        }
+
+        private Point2D getAnchor() {
+            return anchor;
+        }
+
+        @Override
+        public void actionPerformed(final ActionEvent e) {
+            if (System.currentTimeMillis() - start >= duration) {
+                setZoom((int) to, anchor);
+                // setZoom doesn't repaint if the level didn't change
+                repaintScheduler.repaint();
+            }
+            else {
+                repaintScheduler.repaint();
+            }
         }
     }
 
@@ -980,7 +1831,14 @@ public class JXMapViewer extends JXPanel implements DesignMode {
     private class ZoomMouseWheelListener implements MouseWheelListener {
         public void mouseWheelMoved(MouseWheelEvent e) {
             if (isZoomWheelEnabled()) {
-                setZoom(getZoom() + e.getWheelRotation(), e.getPoint());
+                if (isZoomAnimated()) {
+                    // Notches received while animating add up to the target
+                    final double from = zoomAnimation.isRunning() ? zoomAnimation.getTarget() : getZoom();
+                    animateZoom((int) Math.round(from) + e.getWheelRotation(), e.getPoint());
+                }
+                else {
+                    setZoom(getZoom() + e.getWheelRotation(), e.getPoint());
+                }
             }
         }
     }
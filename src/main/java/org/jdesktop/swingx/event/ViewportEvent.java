@@ -0,0 +1,91 @@
+package org.jdesktop.swingx.event;
+
+import java.awt.Rectangle;
+import java.awt.geom.Point2D;
+import java.util.EventObject;
+
+import org.jdesktop.swingx.JXMapViewer;
+import org.jdesktop.swingx.mapviewer.GeoPosition;
+
+/**
+ * The Event object for events fired to ViewportListeners. It is a snapshot of
+ * the viewport of a {@link JXMapViewer} taken when the event was fired: the
+ * getters don't follow the later changes of the map.
+ */
+public class ViewportEvent extends EventObject {
+    private static final long serialVersionUID = 1L;
+
+    private final Point2D center;
+    private final GeoPosition centerPosition;
+    private final int zoom;
+    private final Rectangle viewportBounds;
+
+    /**
+     * @param source the map whose viewport changed
+     * @param center the center of the map in pixel coordinates
+     * @param centerPosition the center of the map
+     * @param zoom the zoom level of the map
+     * @param viewportBounds the bounds of the viewport in pixel coordinates
+     */
+    public ViewportEvent(final JXMapViewer source, final Point2D center, final GeoPosition centerPosition,
+            final int zoom, final Rectangle viewportBounds) {
+        super(source);
+        this.center = new Point2D.Double(center.getX(), center.getY());
+        this.centerPosition = centerPosition;
+        this.zoom = zoom;
+        this.viewportBounds = new Rectangle(viewportBounds);
+    }
+
+    /**
+     * @return the map that fired the event
+     */
+    public JXMapViewer getMap() {
+        return (JXMapViewer) getSource();
+    }
+
+    /**
+     * @return the center of the map in pixel coordinates
+     */
+    public Point2D getCenter() {
+        return new Point2D.Double(center.getX(), center.getY());
+    }
+
+    /**
+     * @return the center of the map
+     */
+    public GeoPosition getCenterPosition() {
+        return centerPosition;
+    }
+
+    /**
+     * @return the zoom level of the map
+     */
+    public int getZoom() {
+        return zoom;
+    }
+
+    /**
+     * @return the bounds of the viewport in pixel coordinates
+     */
+    public Rectangle getViewportBounds() {
+        return new Rectangle(viewportBounds);
+    }
+
+    /**
+     * Indicates if the viewport of this event is the same as the one of
+     * another event.
+     *
+     * @param other the other event, can be null
+     * @return true if the center, zoom and bounds are the same
+     */
+    public boolean isSameViewport(final ViewportEvent other) {
+        return other != null && zoom == other.zoom && center.equals(other.center)
+                && viewportBounds.equals(other.viewportBounds);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + "[center=" + center + ",zoom=" + zoom + ",viewportBounds=" + viewportBounds
+                + "]";
+    }
+}
@@ -0,0 +1,14 @@
+package org.jdesktop.swingx.event;
+
+/**
+ * The listener of the viewport of a {@link org.jdesktop.swingx.JXMapViewer}.
+ * The changes of the center, zoom and size of the map are coalesced: the
+ * listener is called on the EDT at most once per frame, with the viewport at
+ * that time.
+ */
+public interface ViewportListener extends java.util.EventListener {
+    /**
+     * Called when the viewport of the map has changed.
+     */
+    public void viewportChanged(ViewportEvent evt);
+}
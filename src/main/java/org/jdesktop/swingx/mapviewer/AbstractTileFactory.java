@@ -1,19 +1,19 @@
 package org.jdesktop.swingx.mapviewer;
 
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.lang.ref.WeakReference;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URL;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
@@ -21,18 +21,29 @@ import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.swing.SwingUtilities;
 
-import org.jdesktop.swingx.graphics.GraphicsUtilities;
+import org.jdesktop.swingx.mapviewer.cache.DiskTileStore;
+import org.jdesktop.swingx.mapviewer.cache.HotTileRecorder;
+import org.jdesktop.swingx.mapviewer.cache.TieredTileCache;
+import org.jdesktop.swingx.mapviewer.cache.TileCacheConfig;
+import org.jdesktop.swingx.mapviewer.cache.TileFetcher;
+import org.jdesktop.swingx.mapviewer.cache.TileMetadata;
 import org.jdesktop.swingx.mapviewer.util.GeoUtil;
 import org.jdesktop.swingx.mapviewer.util.ImageCache;
+import org.jdesktop.swingx.mapviewer.util.ImagePool;
+import org.jdesktop.swingx.mapviewer.util.MemoryGovernor;
 
 /**
  * The <code>AbstractTileFactory</code> provides a basic implementation for the
  * TileFactory.
  */
 public abstract class AbstractTileFactory extends TileFactory {
+    private static final Logger LOG = Logger.getLogger(AbstractTileFactory.class.getName());
 
     private static final int DEFAULT_THREAD_POOL_SIZE = 4;
 
@@ -97,7 +108,12 @@ public abstract class AbstractTileFactory extends TileFactory {
 
     private final Map<String, Tile> tileMap = new HashMap<String, Tile>();
 
-    private ImageCache cache = new ImageCache();
+    private volatile TieredTileCache tileCache = new TieredTileCache();
+    private TileImageBudget imageBudget = new TileImageBudget();
+    private final ImageCache.Statistics deduplication = new ImageCache.Statistics();
+    private TileFetcher tileFetcher = new TileFetcher();
+    private volatile HotTileRecorder hotTileRecorder = new HotTileRecorder();
+    private final Set<String> revalidating = new HashSet<String>();
     private TileErrorHandler errorHandler;
     private int threadsNumber;
 
@@ -127,6 +143,8 @@ public abstract class AbstractTileFactory extends TileFactory {
 
         threadsNumber = threads;
         errorHandler = new LoggerTileErrorHandler();
+
+        MemoryGovernor.getInstance().register(imageBudget);
     }
 
     /**
@@ -140,10 +158,26 @@ public abstract class AbstractTileFactory extends TileFactory {
      */
     @Override
     public Tile getTile(final int x, final int y, final int zoom) {
-        return getTile(x, y, zoom, true);
+        return getTile(x, y, zoom, 1, true);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public Tile getTile(final int x, final int y, final int zoom, final int scale) {
+        return getTile(x, y, zoom, Math.max(1, Math.min(scale, getInfo().getMaximumTileScale())), true);
+    }
+
+    /**
+     * Loads the tile with a low priority, behind the visible ones.
+     */
+    @Override
+    public void prefetchTile(final int x, final int y, final int zoom) {
+        getTile(x, y, zoom, 1, false);
     }
 
-    private Tile getTile(final int tpx, final int tpy, final int zoom, final boolean eagerLoad) {
+    private Tile getTile(final int tpx, final int tpy, final int zoom, final int scale, final boolean eagerLoad) {
         // wrap the tiles horizontally --> mod the X with the max width
         // and use that
         int tileX = tpx;
@@ -154,46 +188,335 @@ public abstract class AbstractTileFactory extends TileFactory {
 
         tileX = tileX % numTilesWide;
         final int tileY = tpy;
-        final String url = getInfo().getTileUrl(tileX, tileY, zoom);
+        // The scaled variants are other tiles, with their own url
+        final String url = scale == 1 ? getInfo().getTileUrl(tileX, tileY, zoom)
+                : getInfo().getTileUrl(tileX, tileY, zoom, scale);
 
         Tile.Priority pri = Tile.Priority.High;
         if (!eagerLoad) {
             pri = Tile.Priority.Low;
         }
-        Tile tile = null;
-        if (!tileMap.containsKey(url)) {
-            if (!GeoUtil.isValidTile(tileX, tileY, zoom, getInfo())) {
-                tile = new Tile(tileX, tileY, zoom);
-                tileMap.put(url, tile);
+        final Tile tile;
+        // Tiles are also asked from the rendering threads, the lookup and
+        // the creation must be atomic
+        synchronized (this) {
+            final Tile existing = tileMap.get(url);
+            if (existing == null) {
+                if (!GeoUtil.isValidTile(tileX, tileY, zoom, getInfo())) {
+                    tile = new Tile(tileX, tileY, zoom);
+                    tileMap.put(url, tile);
+                }
+                else {
+                    tile = new Tile(tileX, tileY, zoom, url, pri, this);
+                    tile.setImageBudget(imageBudget);
+                    tileMap.put(url, tile);
+                    startLoading(tile);
+                }
             }
             else {
-                tile = new Tile(tileX, tileY, zoom, url, pri, this);
-                tileMap.put(url, tile);
-                startLoading(tile);
-            }
-        }
-        else {
-            tile = tileMap.get(url);
-            // if its in the map but is low and isn't loaded yet
-            // but we are in high mode
-            if (tile.getPriority() == Tile.Priority.Low && eagerLoad && !tile.isLoaded()) {
-                promote(tile);
+                tile = existing;
+                // if its in the map but is low and isn't loaded yet
+                // but we are in high mode
+                if (tile.getPriority() == Tile.Priority.Low && eagerLoad) {
+                    if (tile.isLoaded()) {
+                        // Prefetched, it's used for the first time
+                        tile.setPriority(Tile.Priority.High);
+                        recordUse(tile);
+                    }
+                    else {
+                        promote(tile);
+                    }
+                }
             }
         }
-
         return tile;
     }
 
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public BufferedImage getCachedImage(final int x, final int y, final int zoom) {
+        final int numTilesWide = (int) getMapSize(zoom).getWidth();
+        final int tileX = (x % numTilesWide + numTilesWide) % numTilesWide;
+        if (!GeoUtil.isValidTile(tileX, y, zoom, getInfo())) {
+            return null;
+        }
+        try {
+            return tileCache.peek(new URI(getInfo().getTileUrl(tileX, y, zoom)));
+        }
+        catch (final URISyntaxException ex) {
+            return null;
+        }
+    }
+
     public ImageCache getImageCache() {
-        return cache;
+        return tileCache.getImageCache();
     }
 
     public synchronized void setImageCache(final ImageCache cache) {
-        this.cache = cache;
+        tileCache.setImageCache(cache);
         tileMap.clear();
         tileQueue.clear();
     }
 
+    /**
+     * @return the number of compressed bytes of the tiles of this factory not
+     *         stored thanks to the deduplication of the image cache, which
+     *         may be shared with other factories
+     */
+    public long getSharedBytes() {
+        return deduplication.getSharedBytes();
+    }
+
+    /**
+     * @return the number of decodings of the tiles of this factory avoided
+     *         because an identical tile was already decoded
+     */
+    public long getDecodesAvoided() {
+        return deduplication.getDecodesAvoided();
+    }
+
+    /**
+     * @return the cache holding the tiles of this factory
+     */
+    public TieredTileCache getTileCache() {
+        return tileCache;
+    }
+
+    /**
+     * Replaces the cache holding the tiles of this factory. A cache can be
+     * shared by several factories because tiles are keyed by their url.
+     *
+     * @param tileCache the new cache
+     */
+    public synchronized void setTileCache(final TieredTileCache tileCache) {
+        if (tileCache == null) {
+            throw new IllegalArgumentException("The tile cache can't be null");
+        }
+        this.tileCache = tileCache;
+        tileMap.clear();
+        tileQueue.clear();
+    }
+
+    /**
+     * Sets up all the tile caching of this factory from a single
+     * configuration: a new {@link TieredTileCache} and the limit of the
+     * {@link TileImageBudget}.
+     *
+     * @param config the budgets of the caches
+     * @throws IOException if the disk tier can't be opened
+     */
+    public void configureCache(final TileCacheConfig config) throws IOException {
+        setTileCache(TieredTileCache.open(config));
+        imageBudget.setLimit(config.getTileImageSize());
+    }
+
+    /**
+     * @return the budget bounding the memory of the images held by the tiles
+     */
+    public TileImageBudget getImageBudget() {
+        return imageBudget;
+    }
+
+    /**
+     * Sets the budget bounding the memory of the images held by the tiles
+     * created from now on. A budget can be shared by several factories.
+     *
+     * @param imageBudget the new budget
+     */
+    public synchronized void setImageBudget(final TileImageBudget imageBudget) {
+        if (imageBudget == null) {
+            throw new IllegalArgumentException("The image budget can't be null");
+        }
+        MemoryGovernor.getInstance().register(imageBudget);
+        this.imageBudget = imageBudget;
+    }
+
+    /**
+     * Gets the persistent store used to keep the downloaded tiles between
+     * sessions.
+     *
+     * @return the tile store, or null if tiles are not persisted
+     */
+    public DiskTileStore getTileStore() {
+        return tileCache.getDiskStore();
+    }
+
+    /**
+     * Sets the persistent store used to keep the downloaded tiles between
+     * sessions. The same store can be shared by several factories because
+     * tiles are keyed by their url.
+     *
+     * @param tileStore the tile store, or null to disable persistence
+     */
+    public synchronized void setTileStore(final DiskTileStore tileStore) {
+        tileCache.setDiskStore(tileStore);
+    }
+
+    /**
+     * @return the object used to download the tiles
+     */
+    public TileFetcher getTileFetcher() {
+        return tileFetcher;
+    }
+
+    /**
+     * Sets the object used to download the tiles. A custom fetcher can be used
+     * to add authentication or custom headers to the requests.
+     *
+     * @param tileFetcher the new fetcher
+     */
+    public void setTileFetcher(final TileFetcher tileFetcher) {
+        if (tileFetcher == null) {
+            throw new IllegalArgumentException("The tile fetcher can't be null");
+        }
+        this.tileFetcher = tileFetcher;
+    }
+
+    /**
+     * @return the recorder of the most used tiles, or null if disabled
+     */
+    public HotTileRecorder getHotTileRecorder() {
+        return hotTileRecorder;
+    }
+
+    /**
+     * Sets the recorder of the most used tiles. Use
+     * {@link HotTileRecorder#saveAutomatically(java.io.File, long)} to keep
+     * them between sessions and {@link #warmUp(List, long)} to preload them.
+     *
+     * @param hotTileRecorder the recorder, or null to disable recording
+     */
+    public void setHotTileRecorder(final HotTileRecorder hotTileRecorder) {
+        this.hotTileRecorder = hotTileRecorder;
+    }
+
+    /**
+     * Loads tiles from the tile store and decodes them into the image cache,
+     * so they are ready for the first paint. Tiles are decoded in parallel
+     * and the method returns when all of them are ready or the time budget
+     * is spent. Tiles that aren't stored are left to the normal loading, no
+     * download is made here.
+     *
+     * @param keys the keys of the tiles to load, usually from
+     *            {@link HotTileRecorder#load(java.io.File)}, best first
+     * @param budget maximum time in milliseconds to spend
+     * @return the number of tiles loaded
+     */
+    public int warmUp(final List<String> keys, final long budget) {
+        final TieredTileCache cache = tileCache;
+        if (cache.getDiskStore() == null || keys.isEmpty() || budget <= 0) {
+            return 0;
+        }
+
+        // Don't load more than the decoded tier can keep
+        final int tileSize = getInfo().getTileSize(getInfo().getDefaultZoomLevel());
+        final int maxTiles = (int) Math.min(keys.size(),
+                cache.getImageCache().getUncompressedCacheSize() / Math.max(1L, (long) tileSize * tileSize * 4));
+        final long deadline = System.currentTimeMillis() + budget;
+        final AtomicInteger loaded = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(threadsNumber, Runtime.getRuntime().availableProcessors())), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread thread = new Thread(r, "tile-warmup");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        for (final String key : keys.subList(0, maxTiles)) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (System.currentTimeMillis() > deadline) {
+                        return;
+                    }
+                    try {
+                        final BufferedImage img = cache.acquire(new URI(key), key, deduplication);
+                        if (img != null) {
+                            ImagePool.getDefault().release(img);
+                            loaded.incrementAndGet();
+                        }
+                    }
+                    catch (final Exception ex) {
+                        LOG.log(Level.FINE, "Failed to preload the tile " + key, ex);
+                    }
+                }
+            });
+        }
+
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+        catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdownNow();
+        return loaded.get();
+    }
+
+    /**
+     * Asks the server in background if a stale tile is still valid using a
+     * conditional request. If it isn't, the new image replaces the old one
+     * in the tile and the caches; otherwise only the stored expiration is
+     * refreshed.
+     *
+     * @param tile the tile to revalidate
+     * @param uri the full URI of the tile
+     * @param metadata the caching information of the stale copy
+     */
+    protected void revalidate(final Tile tile, final URI uri, final TileMetadata metadata) {
+        final String key = tile.getURL();
+        synchronized (revalidating) {
+            if (!revalidating.add(key)) {
+                return;
+            }
+        }
+
+        getService().submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final TileFetcher.Response response = tileFetcher.fetch(uri.toURL(), metadata);
+                    if (response.isNotModified()) {
+                        tileCache.updateMetadata(uri, key, response.getMetadata());
+                        return;
+                    }
+
+                    final byte[] data = response.getData();
+                    final BufferedImage img = tileCache.put(uri, key, data, response.getMetadata(), deduplication);
+                    if (img == null) {
+                        errorHandler.tileLoadingFailed(tile, data);
+                        return;
+                    }
+
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            tile.setImage(img);
+                            ImagePool.getDefault().release(img);
+                            tile.setLoaded(true);
+                            // Force a repaint of the already loaded tile
+                            tile.firePropertyChangeOnEDT(TileFactory.LOADED_PROPERTY, Boolean.FALSE, Boolean.TRUE);
+                        }
+                    });
+                }
+                catch (final Exception ex) {
+                    // Keep on using the stale copy
+                    LOG.log(Level.FINE, "Failed to revalidate the tile " + key, ex);
+                }
+                finally {
+                    synchronized (revalidating) {
+                        revalidating.remove(key);
+                    }
+                }
+            }
+        });
+    }
+
     /** ==== threaded tile loading stuff === */
 
     /**
@@ -223,6 +546,12 @@ public abstract class AbstractTileFactory extends TileFactory {
         if (tile.isLoading()) {
             return;
         }
+        if (tile.getPriority() == Tile.Priority.High) {
+            recordUse(tile);
+        }
+        if (SwingUtilities.isEventDispatchThread() && loadDecodedImage(tile)) {
+            return;
+        }
         try {
             tile.setLoading(true);
             tileQueue.put(tile);
@@ -235,6 +564,46 @@ public abstract class AbstractTileFactory extends TileFactory {
         }
     }
 
+    /**
+     * Gives a tile its image right away if it is already decoded in the cache,
+     * so it is painted in this frame instead of waiting for a loading thread.
+     *
+     * @param tile the tile to load
+     * @return true if the tile is loaded
+     */
+    private boolean loadDecodedImage(final Tile tile) {
+        if (tile.getURL() == null) {
+            return false;
+        }
+        final URI uri;
+        try {
+            uri = new URI(tile.getURL());
+        }
+        catch (final URISyntaxException ex) {
+            return false;
+        }
+        final BufferedImage img = tileCache.peek(uri);
+        if (img == null) {
+            return false;
+        }
+        tile.setImage(img);
+        ImagePool.getDefault().release(img);
+        tile.setLoaded(true);
+        checkFreshness(tile, uri);
+        return true;
+    }
+
+    /**
+     * Revalidates a tile in background if its cached copy is stale. The stale
+     * copy is shown meanwhile.
+     */
+    private void checkFreshness(final Tile tile, final URI uri) {
+        final TileMetadata metadata = tileCache.getMetadata(uri);
+        if (metadata != null && !metadata.isFresh(System.currentTimeMillis())) {
+            revalidate(tile, uri, metadata);
+        }
+    }
+
     /**
      * Subclasses can override this if they need custom TileRunners for some
      * reason
@@ -254,6 +623,7 @@ public abstract class AbstractTileFactory extends TileFactory {
                 tileQueue.remove(tile);
                 tile.setPriority(Tile.Priority.High);
                 tileQueue.put(tile);
+                recordUse(tile);
             }
             catch (final Exception ex) {
                 ex.printStackTrace();
@@ -261,6 +631,17 @@ public abstract class AbstractTileFactory extends TileFactory {
         }
     }
 
+    /**
+     * Records a use of a visible tile. Called once per load of its image, not
+     * on every paint, so the scores don't depend on the frame rate.
+     */
+    private void recordUse(final Tile tile) {
+        final HotTileRecorder recorder = hotTileRecorder;
+        if (recorder != null && tile.getURL() != null) {
+            recorder.record(tile.getURL());
+        }
+    }
+
     public void setTileErrorHandler(final TileErrorHandler handler) {
         errorHandler = handler;
     }
@@ -317,23 +698,26 @@ public abstract class AbstractTileFactory extends TileFactory {
             final Tile tile = nextTile;
 
             while (!tile.isLoaded() && trys > 0) {
+                // Images come from the pool, the reference taken here is
+                // dropped once the tile holds its own
+                BufferedImage img = null;
+                final TieredTileCache cache = tileCache;
                 try {
-                    BufferedImage img = null;
                     final URI uri = getURI(tile);
-                    img = cache.get(uri);
-                    byte[] bimg = null;
-                    if (img == null) {
-                        bimg = cacheInputStream(uri.toURL());
-                        img = GraphicsUtilities.loadCompatibleImage(
-                                new ByteArrayInputStream(bimg));// ImageIO.read(new URL(tile.url));
+                    img = loadCachedImage(tile, uri);
+                    if (img != null) {
+                        // Stale tiles are shown while they are revalidated
+                        checkFreshness(tile, uri);
+                    }
+                    else {
+                        final TileFetcher.Response response = fetchTileData(tile, uri);
+                        img = cache.put(uri, tile.getURL(), response.getData(), response.getMetadata(),
+                                deduplication);
                         if (img == null) {
-                            errorHandler.tileLoadingFailed(tile, bimg);
+                            cache.remove(tile.getURL());
+                            errorHandler.tileLoadingFailed(tile, response.getData());
                             trys--;
                         }
-                        else {
-                            cache.put(uri, bimg, img);
-                            img = cache.get(uri);
-                        }
                     }
                     if (img != null) {
                         final BufferedImage i = img;
@@ -347,7 +731,11 @@ public abstract class AbstractTileFactory extends TileFactory {
                     }
                 }
                 catch (final OutOfMemoryError memErr) {
-                    cache.needMoreMemory();
+                    // The governor should have shrunk the caches before, this
+                    // is only a last resort
+                    if (MemoryGovernor.getInstance().relieve() == 0) {
+                        cache.getImageCache().needMoreMemory();
+                    }
                 }
                 catch (final Throwable e) {
                     errorHandler.tileLoadingFailed(tile, e);
@@ -360,22 +748,38 @@ public abstract class AbstractTileFactory extends TileFactory {
                         trys--;
                     }
                 }
+                finally {
+                    ImagePool.getDefault().release(img);
+                }
             }
 
             tile.setLoading(false);
         }
 
-        private byte[] cacheInputStream(final URL url) throws IOException {
-            final InputStream ins = url.openStream();
-            final ByteArrayOutputStream bout = new ByteArrayOutputStream();
-            final byte[] buf = new byte[256];
-            while (true) {
-                final int n = ins.read(buf);
-                if (n == -1)
-                    break;
-                bout.write(buf, 0, n);
-            }
-            return bout.toByteArray();
+        /**
+         * Looks the image of a tile up in the cache before downloading it.
+         * The caller releases the returned image to the {@link ImagePool}.
+         *
+         * @param tile the tile to load
+         * @param uri the full URI of the tile
+         * @return the image, or null if it must be downloaded
+         * @throws IOException if a cached image can't be decoded
+         */
+        protected BufferedImage loadCachedImage(final Tile tile, final URI uri) throws IOException {
+            return tileCache.acquire(uri, tile.getURL(), deduplication);
+        }
+
+        /**
+         * Downloads the compressed image of a tile. Called when no tier of the
+         * cache has it.
+         *
+         * @param tile the tile to load
+         * @param uri the full URI of the tile
+         * @return the image bytes and their caching information
+         * @throws IOException if the image can't be downloaded
+         */
+        protected TileFetcher.Response fetchTileData(final Tile tile, final URI uri) throws IOException {
+            return tileFetcher.fetch(uri.toURL(), null);
         }
     }
 }
@@ -0,0 +1,356 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+import org.jdesktop.swingx.JXMapViewer;
+import org.jdesktop.swingx.painter.Painter;
+
+/**
+ * Paints the overlay of a {@link JXMapViewer} within a time budget. While the
+ * overlay paints within the budget it is painted on every frame, as usual.
+ * Once a paint exceeds the budget the overlay is rendered into a layer image
+ * when the viewport has been idle for {@link #getIdleDelay()} ms, and the
+ * frames draw the last completed layer moved and scaled to the current
+ * viewport, or no overlay until the first layer is completed. When a render of the layer fits the budget again, the overlay goes
+ * back to being painted on every frame. In deferred mode changes to the
+ * content of the overlay are only shown after {@link #invalidate()}.
+ * <p>
+ * By default the layer is rendered on the event dispatch thread, like any
+ * paint. Overlays declared thread safe with
+ * {@link #setOverlayThreadSafe(boolean)} are rendered on a background thread
+ * instead, on a hidden copy of the map positioned on the event dispatch
+ * thread before the render starts. Such an overlay must support being painted
+ * while the event dispatch thread changes it, for example because its state
+ * is immutable and replaced as a whole, or guarded by its own lock, and may
+ * only read the map it is given. {@link WaypointPainter} isn't thread safe.
+ * </p>
+ * All the methods must be called from the event dispatch thread.
+ */
+public class DeferredOverlayLayer {
+    private static final Logger LOG = Logger.getLogger(DeferredOverlayLayer.class.getName());
+
+    public static final int DEFAULT_IDLE_DELAY = 100;
+
+    private final JXMapViewer map;
+    private final Timer idleTimer;
+    private final AtomicInteger generation = new AtomicInteger();
+    private ThreadPoolExecutor executor;
+    private long timeBudget;
+    private long lastPaintTime;
+    private boolean deferred;
+    private boolean overlayThreadSafe;
+    private boolean rendering;
+
+    private BufferedImage layer;
+    private Painter<?> layerOverlay;
+    private Rectangle layerViewport;
+    private int layerZoom;
+    private boolean layerValid;
+
+    /** Only moved on the event dispatch thread, while no render runs */
+    private JXMapViewer snapshot;
+
+    /**
+     * @param map the map whose overlay is painted
+     */
+    public DeferredOverlayLayer(final JXMapViewer map) {
+        this.map = map;
+        idleTimer = new Timer(DEFAULT_IDLE_DELAY, new ActionListener() {
+            @Override
+            public void actionPerformed(final ActionEvent e) {
+                renderIdle();
+            }
+        });
+        idleTimer.setRepeats(false);
+    }
+
+    /**
+     * @return the time budget of an overlay paint in milliseconds, 0 when the
+     *         overlay is always painted on every frame
+     */
+    public long getTimeBudget() {
+        return TimeUnit.NANOSECONDS.toMillis(timeBudget);
+    }
+
+    /**
+     * @param timeBudget the time budget of an overlay paint in milliseconds, 0
+     *            to always paint the overlay on every frame
+     */
+    public void setTimeBudget(final long timeBudget) {
+        if (timeBudget < 0) {
+            throw new IllegalArgumentException("The time budget can't be negative");
+        }
+        this.timeBudget = TimeUnit.MILLISECONDS.toNanos(timeBudget);
+        if (timeBudget == 0) {
+            clear();
+        }
+    }
+
+    /**
+     * @return the milliseconds the viewport must stay still before the layer
+     *         is rendered again
+     */
+    public int getIdleDelay() {
+        return idleTimer.getInitialDelay();
+    }
+
+    /**
+     * @param idleDelay the milliseconds the viewport must stay still before
+     *            the layer is rendered again
+     */
+    public void setIdleDelay(final int idleDelay) {
+        idleTimer.setInitialDelay(idleDelay);
+    }
+
+    /**
+     * @return true if the layer is rendered on a background thread
+     */
+    public boolean isOverlayThreadSafe() {
+        return overlayThreadSafe;
+    }
+
+    /**
+     * Declares whether the overlay can be painted on a background thread
+     * while the event dispatch thread uses it, see the class description.
+     *
+     * @param overlayThreadSafe true to render the layer on a background
+     *            thread, false to render it on the event dispatch thread
+     */
+    public void setOverlayThreadSafe(final boolean overlayThreadSafe) {
+        this.overlayThreadSafe = overlayThreadSafe;
+    }
+
+    /**
+     * @return true if the overlay is currently drawn from the layer
+     */
+    public boolean isDeferred() {
+        return deferred;
+    }
+
+    /**
+     * Paints the overlay, or the layer in its place when the overlay exceeds
+     * the budget.
+     *
+     * @param g the graphics of the map
+     * @param overlay the overlay of the map
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public void paint(final Graphics2D g, final Painter overlay) {
+        final int width = map.getWidth();
+        final int height = map.getHeight();
+        if (timeBudget == 0) {
+            overlay.paint(g, map, width, height);
+            return;
+        }
+        if (!deferred) {
+            final long start = System.nanoTime();
+            overlay.paint(g, map, width, height);
+            lastPaintTime = System.nanoTime() - start;
+            if (lastPaintTime > timeBudget) {
+                LOG.fine("Overlay painted in " + TimeUnit.NANOSECONDS.toMillis(lastPaintTime)
+                        + " ms, switching to the deferred layer");
+                deferred = true;
+                // Rendering the layer now would paint the slow overlay twice
+                // in this frame, it's left to the idle render
+                idleTimer.restart();
+            }
+            return;
+        }
+
+        if (layer != null) {
+            drawLayer(g);
+        }
+        if (!isCurrent(overlay)) {
+            idleTimer.restart();
+        }
+    }
+
+    /**
+     * Renders the layer again, when the content of the overlay has changed.
+     * The current layer is drawn until the new one is ready.
+     */
+    public void invalidate() {
+        layerValid = false;
+    }
+
+    /**
+     * Drops the layer and the pending renders, and goes back to painting the
+     * overlay on every frame until it exceeds the budget again.
+     */
+    public void clear() {
+        idleTimer.stop();
+        generation.incrementAndGet();
+        deferred = false;
+        layer = null;
+        layerOverlay = null;
+        layerViewport = null;
+        layerValid = false;
+    }
+
+    private boolean isCurrent(final Painter<?> overlay) {
+        return layerValid && layerOverlay == overlay && layerZoom == map.getZoom()
+                && map.getViewportBounds().equals(layerViewport);
+    }
+
+    /**
+     * Draws the layer moved to the current viewport, and scaled if it was
+     * rendered at another zoom level.
+     */
+    private void drawLayer(final Graphics2D g) {
+        final Rectangle viewport = map.getViewportBounds();
+        final int zoom = map.getZoom();
+        if (zoom == layerZoom) {
+            g.drawImage(layer, layerViewport.x - viewport.x, layerViewport.y - viewport.y, null);
+            return;
+        }
+        final TileFactory factory = map.getTileFactory();
+        final double f = factory.getMapSize(zoom).getWidth() / factory.getMapSize(layerZoom).getWidth();
+        final Object interpolation = g.getRenderingHint(RenderingHints.KEY_INTERPOLATION);
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(layer, (int) Math.round(layerViewport.x * f - viewport.x),
+                (int) Math.round(layerViewport.y * f - viewport.y), (int) Math.round(layer.getWidth() * f),
+                (int) Math.round(layer.getHeight() * f), null);
+        if (interpolation != null) {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+        }
+    }
+
+    private void renderIdle() {
+        final Painter<?> overlay = map.getOverlayPainter();
+        final int width = map.getWidth();
+        final int height = map.getHeight();
+        // A running render repaints the map when done, which schedules the
+        // next one if it is needed
+        if (!deferred || rendering || overlay == null || width <= 0 || height <= 0 || isCurrent(overlay)) {
+            return;
+        }
+        final int zoom = map.getZoom();
+        final int gen = generation.incrementAndGet();
+        if (!overlayThreadSafe) {
+            final long start = System.nanoTime();
+            final BufferedImage image = renderLayer(overlay, map, width, height);
+            install(gen, overlay, image, map.getViewportBounds(), zoom, System.nanoTime() - start);
+            return;
+        }
+
+        final Point2D center = new Point2D.Double(map.getCenter().getX(), map.getCenter().getY());
+        final JXMapViewer target = getSnapshot(map.getTileFactory(), zoom, center, width, height);
+        final Rectangle viewport = target.getViewportBounds();
+        rendering = true;
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                BufferedImage image = null;
+                long time = 0;
+                try {
+                    // Superseded by a newer viewport before it started
+                    if (gen == generation.get()) {
+                        final long start = System.nanoTime();
+                        image = renderLayer(overlay, target, width, height);
+                        time = System.nanoTime() - start;
+                    }
+                }
+                catch (final RuntimeException ex) {
+                    LOG.log(Level.WARNING, "The overlay couldn't be rendered", ex);
+                }
+                finally {
+                    final BufferedImage result = image;
+                    final long resultTime = time;
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            rendering = false;
+                            if (result != null) {
+                                install(gen, overlay, result, viewport, zoom, resultTime);
+                            }
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private void install(final int gen, final Painter<?> overlay, final BufferedImage image,
+            final Rectangle viewport, final int zoom, final long time) {
+        if (gen != generation.get() || overlay != map.getOverlayPainter()) {
+            return;
+        }
+        layer = image;
+        layerOverlay = overlay;
+        layerViewport = viewport;
+        layerZoom = zoom;
+        layerValid = true;
+        lastPaintTime = time;
+        if (time <= timeBudget) {
+            LOG.fine("Overlay rendered in " + TimeUnit.NANOSECONDS.toMillis(time)
+                    + " ms, painting it on every frame");
+            clear();
+        }
+        map.getRepaintScheduler().repaint();
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static BufferedImage renderLayer(final Painter overlay, final JXMapViewer target, final int width,
+            final int height) {
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D g2 = image.createGraphics();
+        try {
+            overlay.paint(g2, target, width, height);
+        }
+        finally {
+            g2.dispose();
+        }
+        return image;
+    }
+
+    /**
+     * Moves the hidden copy of the map to the rendered viewport, on the event
+     * dispatch thread.
+     */
+    private JXMapViewer getSnapshot(final TileFactory factory, final int zoom, final Point2D center,
+            final int width, final int height) {
+        if (snapshot == null) {
+            snapshot = new JXMapViewer();
+        }
+        if (snapshot.getTileFactory() != factory) {
+            snapshot.setTileFactory(factory);
+        }
+        snapshot.setZoom(zoom);
+        snapshot.setSize(new Dimension(width, height));
+        snapshot.setCenter(center);
+        return snapshot;
+    }
+
+    private synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            final Thread thread = new Thread(r, "JXMapViewer-Overlay-layer");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+}
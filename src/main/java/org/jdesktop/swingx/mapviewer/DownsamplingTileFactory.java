@@ -0,0 +1,370 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.swing.SwingUtilities;
+
+import org.jdesktop.swingx.mapviewer.util.ImagePool;
+
+/**
+ * A tile factory for overview maps, like the minimap of
+ * {@link org.jdesktop.swingx.JXMapKit}. It shares the cache of a base factory
+ * and builds its tiles by downsampling the decoded tiles of the more detailed
+ * zoom levels, usually the ones loaded by the main map. The parts of a tile
+ * the detailed tiles don't cover are filled from a cached tile of a less
+ * detailed level. Only the tiles none of them cover are downloaded, through
+ * the normal loading of the base tile source.
+ * <p>
+ * The shared cache is only peeked at: building a tile never decodes nor
+ * promotes the tiles of the lower tiers, so it doesn't push the tiles of the
+ * main map out of the decoded tier. The built tiles are kept in a small cache
+ * of their own, they don't take the room of the downloaded ones either.
+ * </p>
+ * The base factory must download its tiles through the standard
+ * {@link AbstractTileFactory.TileRunner}, factories painting their own tiles
+ * can't be wrapped.
+ */
+public class DownsamplingTileFactory extends AbstractTileFactory {
+    /** The zoom offset of the minimap of {@link org.jdesktop.swingx.JXMapKit} */
+    public static final int DEFAULT_LEVELS = 4;
+    public static final int DEFAULT_CACHE_SIZE = 32;
+
+    private final AbstractTileFactory baseFactory;
+    private final Map<String, BufferedImage> images = new LinkedHashMap<String, BufferedImage>(16, 0.75f, true);
+    private final AtomicLong downsampled = new AtomicLong();
+    private volatile int levels = DEFAULT_LEVELS;
+    private int cacheSize = DEFAULT_CACHE_SIZE;
+
+    /**
+     * @param baseFactory the factory whose cache is reused
+     */
+    public DownsamplingTileFactory(final AbstractTileFactory baseFactory) {
+        super(baseFactory.getInfo());
+        this.baseFactory = baseFactory;
+        setTileCache(baseFactory.getTileCache());
+        setImageBudget(baseFactory.getImageBudget());
+        setTileFetcher(baseFactory.getTileFetcher());
+        setHotTileRecorder(null);
+    }
+
+    /**
+     * @return the factory whose cache is reused
+     */
+    public AbstractTileFactory getBaseFactory() {
+        return baseFactory;
+    }
+
+    /**
+     * @return the number of more detailed zoom levels used to build a tile
+     */
+    public int getLevels() {
+        return levels;
+    }
+
+    /**
+     * Sets the number of more detailed zoom levels used to build a tile, and
+     * of less detailed ones used to fill its gaps. Use the zoom offset between
+     * the overview map and the detailed map, to reach the tiles of the
+     * detailed one. Each level reads up to four times more tiles than the
+     * previous one.
+     *
+     * @param levels the number of levels, 0 to only download the tiles
+     */
+    public void setLevels(final int levels) {
+        if (levels < 0) {
+            throw new IllegalArgumentException("The number of levels can't be negative");
+        }
+        this.levels = levels;
+    }
+
+    /**
+     * @return the maximum number of built tiles kept
+     */
+    public synchronized int getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * @param cacheSize the maximum number of built tiles kept
+     */
+    public synchronized void setCacheSize(final int cacheSize) {
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException("The cache size can't be negative");
+        }
+        this.cacheSize = cacheSize;
+        trimCache();
+    }
+
+    /**
+     * Removes all the built tiles.
+     */
+    public synchronized void clearCache() {
+        for (final BufferedImage img : images.values()) {
+            ImagePool.getDefault().release(img);
+        }
+        images.clear();
+    }
+
+    /**
+     * @return the number of tiles built from the cache instead of downloaded
+     */
+    public long getDownsampledCount() {
+        return downsampled.get();
+    }
+
+    /**
+     * Returns a tile already built by this factory. The caller holds a
+     * reference to the image in the {@link ImagePool} and must release it.
+     *
+     * @param url the url of the tile
+     * @return the image, or null
+     */
+    protected synchronized BufferedImage getBuiltImage(final String url) {
+        final BufferedImage img = images.get(url);
+        ImagePool.getDefault().retain(img);
+        return img;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public BufferedImage getCachedImage(final int x, final int y, final int zoom) {
+        final BufferedImage img = super.getCachedImage(x, y, zoom);
+        if (img != null) {
+            return img;
+        }
+        final int numTilesWide = (int) getMapSize(zoom).getWidth();
+        final int tileX = (x % numTilesWide + numTilesWide) % numTilesWide;
+        return getBuiltImage(getInfo().getTileUrl(tileX, y, zoom));
+    }
+
+    /**
+     * Returns the standard tile, the built tiles have the standard size.
+     */
+    @Override
+    public Tile getTile(final int x, final int y, final int zoom, final int scale) {
+        return getTile(x, y, zoom);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    protected synchronized void startLoading(final Tile tile) {
+        if (!tile.isLoading() && SwingUtilities.isEventDispatchThread()) {
+            final BufferedImage img = getBuiltImage(tile.getURL());
+            if (img != null) {
+                tile.setImage(img);
+                ImagePool.getDefault().release(img);
+                tile.setLoaded(true);
+                return;
+            }
+        }
+        super.startLoading(tile);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    protected Runnable createTileRunner(final Tile tile) {
+        return new DownsamplingTileRunner();
+    }
+
+    /**
+     * Builds the image of a tile from the decoded tiles of the more detailed
+     * zoom levels, filling the gaps from a tile of a less detailed level. The
+     * caller holds a reference to the image in the {@link ImagePool} and must
+     * release it.
+     *
+     * @param x the x coordinate of the tile
+     * @param y the y coordinate of the tile
+     * @param zoom the zoom level of the tile
+     * @return the image, or null if the cache doesn't cover the tile, or only
+     *         covers a part of it without a less detailed tile for the rest
+     */
+    protected BufferedImage downsample(final int x, final int y, final int zoom) {
+        final int depth = levels;
+        if (depth == 0) {
+            return null;
+        }
+        final int size = getInfo().getTileSize(zoom);
+        final BufferedImage result = ImagePool.getDefault().acquire(size, size, BufferedImage.TYPE_INT_ARGB, true);
+        final Graphics2D g2 = result.createGraphics();
+        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        boolean built = false;
+        try {
+            // The detailed tiles are drawn over the less detailed one
+            final boolean filled = drawAncestor(g2, x, y, zoom, size, depth);
+            final double covered = drawChildren(g2, x, y, zoom, 0, 0, size, depth);
+            built = covered >= 1 || filled && covered > 0;
+        }
+        finally {
+            g2.dispose();
+            if (!built) {
+                ImagePool.getDefault().release(result);
+            }
+        }
+        if (!built) {
+            return null;
+        }
+        downsampled.incrementAndGet();
+        return result;
+    }
+
+    /**
+     * @return the part of the area covered by the detailed tiles, from 0 to 1
+     */
+    private double drawChildren(final Graphics2D g2, final int x, final int y, final int zoom, final int dx,
+            final int dy, final int size, final int depth) {
+        // Only zoom levels of twice the size in tiles can be scaled down
+        final int childZoom = zoom - 1;
+        if (depth == 0 || size < 2 || childZoom < getInfo().getMinimumZoomLevel()
+                || !isHalved(childZoom, zoom)) {
+            return 0;
+        }
+
+        final int half = size / 2;
+        double covered = 0;
+        for (int i = 0; i < 2; i++) {
+            for (int j = 0; j < 2; j++) {
+                final int childX = x * 2 + i;
+                final int childY = y * 2 + j;
+                final int childDx = dx + i * half;
+                final int childDy = dy + j * half;
+                if (drawCached(g2, childX, childY, childZoom, childDx, childDy, half)) {
+                    covered += 0.25;
+                }
+                else {
+                    covered += 0.25 * drawChildren(g2, childX, childY, childZoom, childDx, childDy, half, depth - 1);
+                }
+            }
+        }
+        return covered;
+    }
+
+    /**
+     * Draws the part of the nearest decoded tile of a less detailed level
+     * covering the tile.
+     *
+     * @return true if a tile was found
+     */
+    private boolean drawAncestor(final Graphics2D g2, final int x, final int y, final int zoom, final int size,
+            final int depth) {
+        for (int level = 1; level <= depth; level++) {
+            final int ancestorZoom = zoom + level;
+            if (ancestorZoom > getInfo().getMaximumZoomLevel() || !isHalved(ancestorZoom - 1, ancestorZoom)) {
+                return false;
+            }
+            final int ancestorSize = getInfo().getTileSize(ancestorZoom);
+            final int part = ancestorSize >> level;
+            if (part < 1) {
+                return false;
+            }
+            final BufferedImage img = peek(x >> level, y >> level, ancestorZoom);
+            if (img != null) {
+                final int sx = (x - (x >> level << level)) * part;
+                final int sy = (y - (y >> level << level)) * part;
+                try {
+                    g2.drawImage(img, 0, 0, size, size, sx, sy, sx + part, sy + part, null);
+                }
+                finally {
+                    ImagePool.getDefault().release(img);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the detailed zoom level has twice the tiles of the other
+     *         one in each direction
+     */
+    private boolean isHalved(final int detailedZoom, final int zoom) {
+        final Dimension mapSize = getMapSize(zoom);
+        final Dimension detailedMapSize = getMapSize(detailedZoom);
+        return detailedMapSize.width == mapSize.width * 2 && detailedMapSize.height == mapSize.height * 2;
+    }
+
+    private boolean drawCached(final Graphics2D g2, final int x, final int y, final int zoom, final int dx,
+            final int dy, final int size) {
+        final BufferedImage img = peek(x, y, zoom);
+        if (img == null) {
+            return false;
+        }
+        try {
+            g2.drawImage(img, dx, dy, size, size, null);
+        }
+        finally {
+            ImagePool.getDefault().release(img);
+        }
+        return true;
+    }
+
+    /**
+     * Looks a tile up in the decoded tier of the shared cache only, without
+     * promoting it nor counting a hit or a miss. The caller must release the
+     * image.
+     */
+    private BufferedImage peek(final int x, final int y, final int zoom) {
+        try {
+            return getTileCache().getImageCache().peek(new URI(getInfo().getTileUrl(x, y, zoom)));
+        }
+        catch (final URISyntaxException ex) {
+            return null;
+        }
+    }
+
+    private synchronized void cacheImage(final String url, final BufferedImage img) {
+        if (cacheSize == 0) {
+            return;
+        }
+        ImagePool.getDefault().retain(img);
+        ImagePool.getDefault().release(images.put(url, img));
+        trimCache();
+    }
+
+    private void trimCache() {
+        for (final Iterator<BufferedImage> it = images.values().iterator(); it.hasNext()
+                && images.size() > cacheSize;) {
+            ImagePool.getDefault().release(it.next());
+            it.remove();
+        }
+    }
+
+    /**
+     * Loads the tiles from the cache of built tiles, then by downsampling and
+     * as a last resort like the base factory.
+     */
+    public class DownsamplingTileRunner extends TileRunner {
+        /**
+         * @inheritDoc
+         */
+        @Override
+        protected BufferedImage loadCachedImage(final Tile tile, final URI uri) throws IOException {
+            BufferedImage img = super.loadCachedImage(tile, uri);
+            if (img == null) {
+                img = getBuiltImage(tile.getURL());
+            }
+            if (img == null) {
+                img = downsample(tile.getX(), tile.getY(), tile.getZoom());
+                if (img != null) {
+                    cacheImage(tile.getURL(), img);
+                }
+            }
+            return img;
+        }
+    }
+}
@@ -17,6 +17,16 @@ import java.net.URLConnection;
 import java.util.List;
 import java.util.Map;
 
+/**
+ * Global response cache storing each downloaded resource in its own file.
+ *
+ * @deprecated It is disabled, names its files after the URI hash code so
+ *             different tiles can overwrite each other and contacts the
+ *             server on every cache hit. Use a
+ *             {@link org.jdesktop.swingx.mapviewer.cache.DiskTileStore} set
+ *             through {@link AbstractTileFactory#setTileStore} instead.
+ */
+@Deprecated
 public class LocalResponseCache extends ResponseCache {
     public static final boolean IS_CACHE_DISABLED = true;
     static {
@@ -0,0 +1,340 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+
+import org.jdesktop.swingx.JXMapViewer;
+import org.jdesktop.swingx.painter.Painter;
+
+/**
+ * Renders maps to images without a visible {@link JXMapViewer}, for example
+ * to generate maps on a server for reports and alerts. It works with
+ * <code>java.awt.headless=true</code>.
+ * <p>
+ * All the tiles of the map are requested at once, so they are loaded in
+ * parallel by the thread pool of the tile factory, and the renderer waits for
+ * them until the timeout. The tiles still not loaded are drawn following the
+ * {@link UnloadedTiles} policy. The overlay painters get a map viewer set to
+ * the rendered viewport, which is never shown. The viewers are reused by the
+ * next renders.
+ * </p>
+ * The renderer blocks while the tiles are loading, it can't be used from the
+ * event dispatch thread. It can be used from several threads at once.
+ */
+public class MapRenderer {
+    public static final long DEFAULT_TIMEOUT = 10000;
+
+    /**
+     * What to draw in place of the tiles not loaded before the timeout.
+     */
+    public enum UnloadedTiles {
+        /** Nothing, the background is left */
+        BLANK,
+        /** The cached tiles of the neighbor zoom levels, when there are some */
+        PLACEHOLDER,
+        /** Nothing, the rendering fails with an {@link IOException} */
+        FAIL
+    }
+
+    private final TileFactory factory;
+    private volatile long timeout = DEFAULT_TIMEOUT;
+    private volatile UnloadedTiles unloadedTiles = UnloadedTiles.PLACEHOLDER;
+    private volatile Color background;
+    private final Queue<JXMapViewer> maps = new ConcurrentLinkedQueue<JXMapViewer>();
+
+    /**
+     * @param factory the factory of the tiles
+     */
+    public MapRenderer(final TileFactory factory) {
+        if (factory == null) {
+            throw new IllegalArgumentException("The tile factory can't be null");
+        }
+        this.factory = factory;
+    }
+
+    /**
+     * @return the factory of the tiles
+     */
+    public TileFactory getTileFactory() {
+        return factory;
+    }
+
+    /**
+     * @return the milliseconds to wait for the tiles
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @param timeout the milliseconds to wait for the tiles
+     */
+    public void setTimeout(final long timeout) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("The timeout can't be negative");
+        }
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return what is drawn in place of the tiles not loaded in time
+     */
+    public UnloadedTiles getUnloadedTiles() {
+        return unloadedTiles;
+    }
+
+    /**
+     * @param unloadedTiles what to draw in place of the tiles not loaded in
+     *            time
+     */
+    public void setUnloadedTiles(final UnloadedTiles unloadedTiles) {
+        if (unloadedTiles == null) {
+            throw new IllegalArgumentException("The policy can't be null");
+        }
+        this.unloadedTiles = unloadedTiles;
+    }
+
+    /**
+     * @return the color of the background, or null for a transparent one
+     */
+    public Color getBackground() {
+        return background;
+    }
+
+    /**
+     * @param background the color of the background, or null for a
+     *            transparent one
+     */
+    public void setBackground(final Color background) {
+        this.background = background;
+    }
+
+    /**
+     * Renders a map centered on a position.
+     *
+     * @see #render(Point2D, int, Dimension, List)
+     */
+    public BufferedImage render(final GeoPosition center, final int zoom, final Dimension size,
+            final List<? extends Painter<? super JXMapViewer>> painters) throws IOException, InterruptedException {
+        return render(factory.geoToPixel(center, zoom), zoom, size, painters);
+    }
+
+    /**
+     * Renders a map.
+     *
+     * @param center the center of the map in pixel coordinates
+     * @param zoom the zoom level
+     * @param size the size of the image
+     * @param painters the overlays painted on top of the tiles, in order, can
+     *            be null
+     * @return the image of the map
+     * @throws IOException if some tiles aren't loaded in time and the policy
+     *             is {@link UnloadedTiles#FAIL}
+     * @throws InterruptedException if interrupted while waiting for the tiles
+     * @throws IllegalStateException if called from the event dispatch thread
+     */
+    public BufferedImage render(final Point2D center, final int zoom, final Dimension size,
+            final List<? extends Painter<? super JXMapViewer>> painters) throws IOException, InterruptedException {
+        if (SwingUtilities.isEventDispatchThread()) {
+            throw new IllegalStateException("Maps can't be rendered from the event dispatch thread");
+        }
+        final TileRange range = new TileRange(factory, zoom, TileRange.getViewport(center, size.width, size.height));
+        final List<PositionedTile> tiles = fetchTiles(range, zoom);
+        final int missing = awaitTiles(tiles);
+        final UnloadedTiles policy = unloadedTiles;
+        if (missing > 0 && policy == UnloadedTiles.FAIL) {
+            throw new IOException(missing + " tiles not loaded in " + timeout + " ms");
+        }
+
+        final BufferedImage result = new BufferedImage(size.width, size.height, BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D g2 = result.createGraphics();
+        try {
+            if (background != null) {
+                g2.setColor(background);
+                g2.fillRect(0, 0, size.width, size.height);
+            }
+            drawTiles(g2, tiles, range, zoom, policy);
+            if (painters != null && !painters.isEmpty()) {
+                // A viewer is only used by one render at once
+                JXMapViewer map = maps.poll();
+                if (map == null) {
+                    map = createMap(center, zoom, size);
+                }
+                else {
+                    moveMap(map, center, zoom, size);
+                }
+                try {
+                    for (final Painter<? super JXMapViewer> painter : painters) {
+                        final Graphics2D pg = (Graphics2D) g2.create();
+                        try {
+                            painter.paint(pg, map, size.width, size.height);
+                        }
+                        finally {
+                            pg.dispose();
+                        }
+                    }
+                }
+                finally {
+                    maps.offer(map);
+                }
+            }
+        }
+        finally {
+            g2.dispose();
+        }
+        return result;
+    }
+
+    /**
+     * Creates the map viewer given to the overlay painters. It is reused by
+     * the next renders, moved with {@link #moveMap(JXMapViewer, Point2D, int, Dimension)}.
+     *
+     * @param center the center of the map in pixel coordinates
+     * @param zoom the zoom level
+     * @param size the size of the image
+     * @return the map viewer, never shown
+     */
+    protected JXMapViewer createMap(final Point2D center, final int zoom, final Dimension size) {
+        final JXMapViewer map = new JXMapViewer();
+        map.setTileFactory(factory);
+        map.setZoom(zoom);
+        map.setSize(size);
+        map.setCenter(center);
+        return map;
+    }
+
+    /**
+     * Moves a map viewer created by
+     * {@link #createMap(Point2D, int, Dimension)} to another rendered
+     * viewport.
+     *
+     * @param map the map viewer
+     * @param center the center of the map in pixel coordinates
+     * @param zoom the zoom level
+     * @param size the size of the image
+     */
+    protected void moveMap(final JXMapViewer map, final Point2D center, final int zoom, final Dimension size) {
+        map.setZoom(zoom);
+        map.setSize(size);
+        map.setCenter(center);
+    }
+
+    private List<PositionedTile> fetchTiles(final TileRange range, final int zoom) {
+        final List<PositionedTile> tiles = new ArrayList<PositionedTile>();
+        for (int x = range.getFirstX(); x <= range.getLastX(); x++) {
+            for (int y = range.getFirstMapY(); y <= range.getLastMapY(); y++) {
+                tiles.add(new PositionedTile(factory.getTile(x, y, zoom), x, y));
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * Waits for the tiles until the timeout.
+     *
+     * @return the number of tiles not loaded
+     */
+    private int awaitTiles(final List<PositionedTile> tiles) throws InterruptedException {
+        final List<Tile> pending = new ArrayList<Tile>();
+        for (final PositionedTile pt : tiles) {
+            if (!isDone(pt.tile)) {
+                pending.add(pt.tile);
+            }
+        }
+        if (pending.isEmpty()) {
+            return 0;
+        }
+
+        final CountDownLatch latch = new CountDownLatch(pending.size());
+        final List<PropertyChangeListener> listeners = new ArrayList<PropertyChangeListener>(pending.size());
+        for (final Tile tile : pending) {
+            final PropertyChangeListener listener = new PropertyChangeListener() {
+                private boolean counted;
+
+                @Override
+                public synchronized void propertyChange(final PropertyChangeEvent evt) {
+                    if (!counted && isDone(tile)) {
+                        counted = true;
+                        latch.countDown();
+                    }
+                }
+            };
+            listeners.add(listener);
+            tile.addPropertyChangeListener(listener);
+            // Loaded before the listener was added
+            listener.propertyChange(null);
+        }
+        try {
+            latch.await(timeout, TimeUnit.MILLISECONDS);
+        }
+        finally {
+            for (int i = 0; i < pending.size(); i++) {
+                pending.get(i).removePropertyChangeListener(listeners.get(i));
+            }
+        }
+
+        int missing = 0;
+        for (final Tile tile : pending) {
+            if (!tile.isLoaded()) {
+                missing++;
+            }
+        }
+        return missing;
+    }
+
+    private static boolean isDone(final Tile tile) {
+        // Tiles without url are off the map, they never load
+        return tile.isLoaded() || tile.getURL() == null || tile.getUnrecoverableError() != null;
+    }
+
+    private void drawTiles(final Graphics2D g2, final List<PositionedTile> tiles, final TileRange range,
+            final int zoom, final UnloadedTiles policy) {
+        final TilePlaceholderCache placeholders = policy == UnloadedTiles.PLACEHOLDER ? new TilePlaceholderCache()
+                : null;
+        try {
+            for (final PositionedTile pt : tiles) {
+                if (!range.drawTile(g2, pt.tile, pt.x, pt.y, null) && placeholders != null
+                        && pt.tile.getURL() != null) {
+                    final BufferedImage placeholder = placeholders.getPlaceholder(factory, pt.x, pt.y, zoom);
+                    if (placeholder != null) {
+                        g2.drawImage(placeholder, range.getOffsetX(pt.x), range.getOffsetY(pt.y), null);
+                    }
+                }
+            }
+        }
+        finally {
+            if (placeholders != null) {
+                placeholders.clear();
+            }
+        }
+    }
+
+    /**
+     * A tile of the factory with its unwrapped position in the rendered map.
+     */
+    private static final class PositionedTile {
+        private final Tile tile;
+        private final int x;
+        private final int y;
+
+        private PositionedTile(final Tile tile, final int x, final int y) {
+            this.tile = tile;
+            this.x = x;
+            this.y = y;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.jdesktop.swingx.BackgroundWorker;
+import org.jdesktop.swingx.JXMapViewer;
+import org.jdesktop.swingx.mapviewer.util.PngStreamWriter;
+import org.jdesktop.swingx.painter.Painter;
+
+/**
+ * Exports maps larger than the memory allows, like wall posters, as PNG
+ * images. The map is rendered in bands of rows with a {@link MapRenderer}, each
+ * band with its overlays, and every band is compressed into the output before
+ * the next one is rendered. The tiles of the next bands are requested while a
+ * band is rendered, so they load in parallel ahead of the writer.
+ * <p>
+ * The bands are at most one row of tiles high and hold at most
+ * {@link #getMaxBandPixels()} pixels, so the memory used doesn't depend on the
+ * height of the map. Only the tile images bounded by the
+ * {@link TileImageBudget} of the factory are kept.
+ * </p>
+ * The export blocks, run it from the <code>doInBackground</code> event of a
+ * {@link BackgroundWorker} and give it the worker to report the progress.
+ */
+public class PosterExporter {
+    public static final int DEFAULT_MAX_BAND_PIXELS = 4 * 1024 * 1024;
+    public static final int DEFAULT_LOOKAHEAD = 2;
+
+    private final MapRenderer renderer;
+    private volatile List<? extends Painter<? super JXMapViewer>> painters = Collections.emptyList();
+    private volatile int maxBandPixels = DEFAULT_MAX_BAND_PIXELS;
+    private volatile int lookahead = DEFAULT_LOOKAHEAD;
+
+    /**
+     * @param factory the factory of the tiles
+     */
+    public PosterExporter(final TileFactory factory) {
+        this(new MapRenderer(factory));
+    }
+
+    /**
+     * @param renderer the renderer of the bands, whose timeout and policy for
+     *            the unloaded tiles are used
+     */
+    public PosterExporter(final MapRenderer renderer) {
+        this.renderer = renderer;
+    }
+
+    /**
+     * @return the renderer of the bands
+     */
+    public MapRenderer getRenderer() {
+        return renderer;
+    }
+
+    /**
+     * @return the overlays painted on the map
+     */
+    public List<? extends Painter<? super JXMapViewer>> getPainters() {
+        return painters;
+    }
+
+    /**
+     * @param painters the overlays painted on the map, in order
+     */
+    public void setPainters(final List<? extends Painter<? super JXMapViewer>> painters) {
+        this.painters = painters == null ? Collections.<Painter<JXMapViewer>> emptyList()
+                : new ArrayList<Painter<? super JXMapViewer>>(painters);
+    }
+
+    /**
+     * @return the maximum number of pixels of a band
+     */
+    public int getMaxBandPixels() {
+        return maxBandPixels;
+    }
+
+    /**
+     * @param maxBandPixels the maximum number of pixels of a band, a band is
+     *            at least one row high
+     */
+    public void setMaxBandPixels(final int maxBandPixels) {
+        if (maxBandPixels < 1) {
+            throw new IllegalArgumentException("The band size must be positive");
+        }
+        this.maxBandPixels = maxBandPixels;
+    }
+
+    /**
+     * @return the number of bands whose tiles are requested ahead
+     */
+    public int getLookahead() {
+        return lookahead;
+    }
+
+    /**
+     * @param lookahead the number of bands whose tiles are requested ahead
+     */
+    public void setLookahead(final int lookahead) {
+        if (lookahead < 0) {
+            throw new IllegalArgumentException("The lookahead can't be negative");
+        }
+        this.lookahead = lookahead;
+    }
+
+    /**
+     * Exports the map between two positions.
+     *
+     * @see #export(Rectangle, int, OutputStream, BackgroundWorker)
+     */
+    public void export(final GeoPosition northWest, final GeoPosition southEast, final int zoom,
+            final OutputStream out, final BackgroundWorker worker) throws IOException, InterruptedException {
+        final TileFactory factory = renderer.getTileFactory();
+        final Point2D topLeft = factory.geoToPixel(northWest, zoom);
+        final Point2D bottomRight = factory.geoToPixel(southEast, zoom);
+        final int x = (int) Math.floor(topLeft.getX());
+        final int y = (int) Math.floor(topLeft.getY());
+        export(new Rectangle(x, y, (int) Math.ceil(bottomRight.getX()) - x, (int) Math.ceil(bottomRight.getY()) - y),
+                zoom, out, worker);
+    }
+
+    /**
+     * Exports a part of the map as a PNG image.
+     *
+     * @param area the part of the map in pixel coordinates
+     * @param zoom the zoom level
+     * @param out the stream to write the image to, left open
+     * @param worker the worker whose progress is updated, can be null
+     * @throws IOException if the image can't be written, or some tiles aren't
+     *             loaded in time with the {@link MapRenderer.UnloadedTiles#FAIL}
+     *             policy
+     * @throws InterruptedException if the thread is interrupted
+     */
+    public void export(final Rectangle area, final int zoom, final OutputStream out, final BackgroundWorker worker)
+            throws IOException, InterruptedException {
+        if (area.isEmpty()) {
+            throw new IllegalArgumentException("The area can't be empty");
+        }
+        final TileFactory factory = renderer.getTileFactory();
+        final int tileSize = factory.getTileSize(zoom);
+        final int bandHeight = Math.max(1, Math.min(tileSize, maxBandPixels / area.width));
+        final int bands = (area.height + bandHeight - 1) / bandHeight;
+        final List<? extends Painter<? super JXMapViewer>> overlays = painters;
+        final boolean alpha = renderer.getBackground() == null || renderer.getBackground().getAlpha() < 255;
+
+        final PngStreamWriter writer = new PngStreamWriter(out, area.width, area.height, alpha);
+        int prefetched = -1;
+        for (int band = 0; band < bands; band++) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            final int y = area.y + band * bandHeight;
+            final int height = Math.min(bandHeight, area.y + area.height - y);
+
+            // Requests the tiles of the next bands before waiting for this one
+            final int lastAhead = Math.min(bands - 1, band + lookahead);
+            for (int ahead = Math.max(band + 1, prefetched + 1); ahead <= lastAhead; ahead++) {
+                final int aheadY = area.y + ahead * bandHeight;
+                prefetch(factory, new Rectangle(area.x, aheadY, area.width,
+                        Math.min(bandHeight, area.y + area.height - aheadY)), zoom);
+                prefetched = ahead;
+            }
+
+            final Point2D center = new Point2D.Double(area.x + area.width / 2, y + height / 2);
+            final BufferedImage img = renderer.render(center, zoom, new Dimension(area.width, height), overlays);
+            writer.write(img);
+            if (worker != null) {
+                worker.setProgress((band + 1) / (float) bands);
+            }
+        }
+        writer.finish();
+    }
+
+    private static void prefetch(final TileFactory factory, final Rectangle area, final int zoom) {
+        final TileRange range = new TileRange(factory, zoom, area);
+        for (int x = range.getFirstX(); x <= range.getLastX(); x++) {
+            for (int y = range.getFirstMapY(); y <= range.getLastMapY(); y++) {
+                factory.prefetchTile(x, y, zoom);
+            }
+        }
+    }
+}
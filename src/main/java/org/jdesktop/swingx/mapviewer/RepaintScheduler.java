@@ -0,0 +1,122 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.JComponent;
+import javax.swing.Timer;
+
+/**
+ * Coalesces the repaint requests of a component into at most one repaint per
+ * frame. Dirty regions, like the bounds of a loaded tile, are merged until
+ * the next frame and painted with a single clipped repaint, so a burst of
+ * tiles or property changes costs one paint instead of one each.
+ * <p>
+ * The requests can be made from any thread, the repaints are issued from the
+ * event dispatch thread.
+ * </p>
+ */
+public class RepaintScheduler {
+    public static final int DEFAULT_MAX_FPS = 60;
+
+    private final JComponent component;
+    private final Timer timer;
+    private Rectangle dirtyRegion;
+    private boolean fullRepaint;
+    private long lastFrame;
+    private long frames;
+    private int maxFps;
+
+    /**
+     * @param component the component to repaint
+     */
+    public RepaintScheduler(final JComponent component) {
+        this.component = component;
+        timer = new Timer(0, new ActionListener() {
+            @Override
+            public void actionPerformed(final ActionEvent e) {
+                fire();
+            }
+        });
+        timer.setRepeats(false);
+        setMaxFps(DEFAULT_MAX_FPS);
+    }
+
+    /**
+     * Repaints the whole component in the next frame.
+     */
+    public synchronized void repaint() {
+        fullRepaint = true;
+        dirtyRegion = null;
+        schedule();
+    }
+
+    /**
+     * Repaints a region of the component in the next frame.
+     *
+     * @param region the region, in component coordinates
+     */
+    public synchronized void repaint(final Rectangle region) {
+        if (region.isEmpty()) {
+            return;
+        }
+        if (!fullRepaint) {
+            dirtyRegion = dirtyRegion == null ? new Rectangle(region) : dirtyRegion.union(region);
+        }
+        schedule();
+    }
+
+    /**
+     * @return the maximum number of repaints per second
+     */
+    public synchronized int getMaxFps() {
+        return maxFps;
+    }
+
+    /**
+     * @param maxFps the maximum number of repaints per second
+     */
+    public synchronized void setMaxFps(final int maxFps) {
+        if (maxFps < 1) {
+            throw new IllegalArgumentException("The frame rate must be positive");
+        }
+        this.maxFps = maxFps;
+    }
+
+    /**
+     * @return the number of repaints issued
+     */
+    public synchronized long getFrameCount() {
+        return frames;
+    }
+
+    private void schedule() {
+        if (timer.isRunning()) {
+            return;
+        }
+        final long interval = 1000L / maxFps;
+        final long wait = Math.max(0, interval - (System.currentTimeMillis() - lastFrame));
+        timer.setInitialDelay((int) wait);
+        timer.start();
+    }
+
+    private void fire() {
+        final boolean full;
+        final Rectangle region;
+        synchronized (this) {
+            full = fullRepaint;
+            region = dirtyRegion;
+            fullRepaint = false;
+            dirtyRegion = null;
+            lastFrame = System.currentTimeMillis();
+            frames++;
+        }
+        if (full) {
+            component.repaint();
+        }
+        else if (region != null) {
+            component.repaint(region);
+        }
+    }
+}
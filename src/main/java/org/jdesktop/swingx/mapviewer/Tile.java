@@ -11,13 +11,13 @@ package org.jdesktop.swingx.mapviewer;
 
 import java.awt.image.BufferedImage;
 import java.beans.PropertyChangeListener;
-import java.lang.ref.SoftReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.swing.SwingUtilities;
 
 import org.jdesktop.beans.AbstractBean;
+import org.jdesktop.swingx.mapviewer.util.ImagePool;
 
 /**
  * The Tile class represents a particular square image piece of the world bitmap
@@ -65,7 +65,17 @@ public class Tile extends AbstractBean {
     /**
      * The image loaded for this Tile
      */
-    private SoftReference<BufferedImage> image = new SoftReference<BufferedImage>(null);
+    private volatile BufferedImage image;
+
+    /**
+     * Guards the image against being released while it is retained
+     */
+    private final Object imageLock = new Object();
+
+    /**
+     * The budget bounding the memory of the tile images, if any
+     */
+    private TileImageBudget imageBudget;
 
     /**
      * Create a new Tile at the specified tile point and zoom level
@@ -143,17 +153,97 @@ public class Tile extends AbstractBean {
      * operation will automatically be started for it.
      */
     public BufferedImage getImage() {
-        final BufferedImage img = image.get();
+        BufferedImage img = image;
         if (img == null) {
             setLoaded(false);
             dtf.startLoading(this);
+            // The factory may have set an already decoded image
+            img = image;
+        }
+        else if (imageBudget != null) {
+            imageBudget.touch(this);
         }
 
         return img;
     }
 
+    /**
+     * Same as {@link #getImage()}, but the caller holds a reference to the
+     * returned image in the {@link ImagePool} and must release it when done.
+     * This way the image can't be recycled for another tile, for example by
+     * the {@link TileImageBudget} from another thread, while it is drawn.
+     * Subclasses whose image isn't the one given to {@link #setImage} must
+     * override this method.
+     *
+     * @return the image, or null if it isn't loaded
+     */
+    public BufferedImage acquireImage() {
+        final ImagePool pool = ImagePool.getDefault();
+        synchronized (imageLock) {
+            final BufferedImage img = image;
+            if (img != null) {
+                pool.retain(img);
+                if (imageBudget != null) {
+                    imageBudget.touch(this);
+                }
+                return img;
+            }
+        }
+        // Starts the loading, the factory may set an already decoded image
+        final BufferedImage img = getImage();
+        synchronized (imageLock) {
+            if (img == null || img != image) {
+                // Released again in the meantime
+                return null;
+            }
+            pool.retain(img);
+            return img;
+        }
+    }
+
     public void setImage(BufferedImage image) {
-        this.image = new SoftReference<BufferedImage>(image);
+        final ImagePool pool = ImagePool.getDefault();
+        final BufferedImage old;
+        synchronized (imageLock) {
+            pool.retain(image);
+            old = this.image;
+            this.image = image;
+        }
+        pool.release(old);
+        if (imageBudget != null) {
+            imageBudget.update(this, image);
+        }
+    }
+
+    /**
+     * Drops the image of this tile to give back its memory. Called by the
+     * {@link TileImageBudget}, the image will be loaded again on the next
+     * call to {@link #getImage()}.
+     */
+    protected void releaseImage() {
+        final BufferedImage old;
+        synchronized (imageLock) {
+            old = image;
+            image = null;
+        }
+        ImagePool.getDefault().release(old);
+    }
+
+    /**
+     * @return the budget bounding the memory of the tile images, or null
+     */
+    public TileImageBudget getImageBudget() {
+        return imageBudget;
+    }
+
+    /**
+     * Sets the budget bounding the memory of the tile images. Without budget
+     * the image is kept until it's replaced.
+     *
+     * @param imageBudget the budget, or null
+     */
+    public void setImageBudget(final TileImageBudget imageBudget) {
+        this.imageBudget = imageBudget;
     }
 
     /**
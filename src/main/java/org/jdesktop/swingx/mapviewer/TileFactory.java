@@ -11,6 +11,7 @@ package org.jdesktop.swingx.mapviewer;
 
 import java.awt.Dimension;
 import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
 
 import org.jdesktop.swingx.mapviewer.util.GeoUtil;
 
@@ -82,6 +83,51 @@ public abstract class TileFactory /* TODO extends AbstractBean */{
      */
     public abstract Tile getTile(int x, int y, int zoom);
 
+    /**
+     * Returns a tile for a screen with more pixels than the map coordinates,
+     * like a HiDPI screen. The tile covers the same part of the map as the
+     * standard one, with an image <code>scale</code> times larger when the
+     * source has such variants, see {@link TileFactoryInfo#getMaximumTileScale()}.
+     * The default implementation returns the standard tile.
+     *
+     * @param x the x coordinate of the tile
+     * @param y the y coordinate of the tile
+     * @param zoom the zoom level
+     * @param scale the number of image pixels per map pixel wanted
+     * @return the tile
+     */
+    public Tile getTile(final int x, final int y, final int zoom, final int scale) {
+        return getTile(x, y, zoom);
+    }
+
+    /**
+     * Asks for a tile that will probably be shown soon, for example where a
+     * kinetic pan is going to stop. Factories loading tiles in background
+     * should load it after the visible ones. The default implementation does
+     * nothing.
+     *
+     * @param x the x coordinate of the tile
+     * @param y the y coordinate of the tile
+     * @param zoom the zoom level of the tile
+     */
+    public void prefetchTile(final int x, final int y, final int zoom) {
+    }
+
+    /**
+     * Returns the image of a tile if it is available right away, without
+     * starting to load it. The viewers use it to paint placeholders from the
+     * tiles of the neighbor zoom levels. The caller releases the image to the
+     * {@link org.jdesktop.swingx.mapviewer.util.ImagePool}.
+     *
+     * @param x the x coordinate of the tile
+     * @param y the y coordinate of the tile
+     * @param zoom the zoom level of the tile
+     * @return the image, or null if it isn't available right away
+     */
+    public BufferedImage getCachedImage(final int x, final int y, final int zoom) {
+        return null;
+    }
+
     /**
      * Convert a pixel in the world bitmap at the specified zoom level into a
      * GeoPosition
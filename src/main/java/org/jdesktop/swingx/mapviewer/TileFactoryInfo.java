@@ -271,6 +271,38 @@ public class TileFactoryInfo {
         return url;
     }
 
+    /**
+     * Returns the url of a scaled variant of a tile, for HiDPI screens: the
+     * image covers the same part of the map as the standard tile, with
+     * <code>scale</code> times more pixels in each direction, like the
+     * <code>@2x</code> tiles of many servers. Sources with such variants
+     * override this method and {@link #getMaximumTileScale()}. By default it
+     * returns the url of the standard tile.
+     * 
+     * @param x
+     *            the x coordinate of the tile
+     * @param y
+     *            the y coordinate of the tile
+     * @param zoom
+     *            the zoom level
+     * @param scale
+     *            the scale of the variant, from 2 to the maximum tile scale
+     * @return a valid url to load the tile
+     */
+    public String getTileUrl(int x, int y, int zoom, int scale) {
+        return getTileUrl(x, y, zoom);
+    }
+
+    /**
+     * The largest scale of the tile variants, see
+     * {@link #getTileUrl(int, int, int, int)}.
+     * 
+     * @return the largest scale, 1 if the source only has standard tiles
+     */
+    public int getMaximumTileScale() {
+        return 1;
+    }
+
     /**
      * Get the tile size.
      * 
@@ -0,0 +1,339 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsDevice;
+import java.awt.Image;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.jdesktop.swingx.mapviewer.util.ImagePool;
+import org.jdesktop.swingx.mapviewer.util.MemoryConsumer;
+import org.jdesktop.swingx.mapviewer.util.MemoryGovernor;
+
+/**
+ * Keeps copies of the painted tile images in a format the screen can draw
+ * fast. Decoded tiles often have a color model that Java2D converts on every
+ * draw, or a raster it can't cache in video memory; the copies are converted
+ * once, as images compatible with the screen (managed images) or as volatile
+ * images.
+ * <p>
+ * Only the tiles of the viewport are kept: call {@link #endFrame(TileRange)}
+ * after painting the tiles of a frame, even a frame only repainting a part of
+ * the viewport. Drawing to printers or images uses the tile images directly.
+ * This class is meant to be used from the event dispatch thread, except for
+ * the {@link MemoryConsumer} methods: the accelerator registers itself in the
+ * {@link MemoryGovernor}, which drops the copies when memory runs low.
+ * </p>
+ */
+public class TileImageAccelerator implements MemoryConsumer {
+    public static final int DEFAULT_KEPT_FRAMES = 2;
+
+    /**
+     * The kind of copies kept.
+     */
+    public enum Mode {
+        /** No copy, the tile images are drawn directly */
+        DISABLED,
+        /** Images compatible with the screen, cached by Java2D */
+        MANAGED,
+        /** Volatile images, restored when their contents are lost */
+        VOLATILE
+    }
+
+    private static final class Entry {
+        private final BufferedImage source;
+        private Image copy;
+        private long frame;
+        private long weight;
+
+        private Entry(final BufferedImage source) {
+            this.source = source;
+        }
+    }
+
+    private final Map<Tile, Entry> entries = new IdentityHashMap<Tile, Entry>();
+    private Mode mode = Mode.MANAGED;
+    private int keptFrames = DEFAULT_KEPT_FRAMES;
+    private long frame;
+    private long conversions;
+    private long usage;
+
+    public TileImageAccelerator() {
+        MemoryGovernor.getInstance().register(this);
+    }
+
+    /**
+     * Draws the image of a tile, through its accelerated copy when possible.
+     *
+     * @param g the graphics to draw to
+     * @param tile the tile
+     * @param image the image of the tile
+     * @param x the x coordinate to draw to
+     * @param y the y coordinate to draw to
+     */
+    public void drawTile(final Graphics g, final Tile tile, final BufferedImage image, final int x, final int y) {
+        if (image != null) {
+            drawTile(g, tile, image, x, y, image.getWidth(), image.getHeight());
+        }
+    }
+
+    /**
+     * Draws the image of a tile scaled to a size, like the HiDPI variant of a
+     * tile drawn at the size of the standard one. The copy keeps all the
+     * pixels of the image.
+     *
+     * @param g the graphics to draw to
+     * @param tile the tile
+     * @param image the image of the tile
+     * @param x the x coordinate to draw to
+     * @param y the y coordinate to draw to
+     * @param width the width to draw
+     * @param height the height to draw
+     */
+    public synchronized void drawTile(final Graphics g, final Tile tile, final BufferedImage image, final int x,
+            final int y, final int width, final int height) {
+        if (image == null) {
+            return;
+        }
+        final GraphicsConfiguration gc = mode == Mode.DISABLED ? null : getScreenConfiguration(g);
+        if (gc == null) {
+            g.drawImage(image, x, y, width, height, null);
+            return;
+        }
+
+        Entry entry = entries.get(tile);
+        if (entry != null && entry.source != image) {
+            entries.remove(tile);
+            flush(entry);
+            entry = null;
+        }
+        if (entry == null) {
+            ImagePool.getDefault().retain(image);
+            entry = new Entry(image);
+            entries.put(tile, entry);
+        }
+        entry.frame = frame;
+
+        if (mode == Mode.VOLATILE) {
+            drawVolatile(g, gc, entry, x, y, width, height);
+        }
+        else {
+            if (entry.copy == null) {
+                final BufferedImage copy = gc.createCompatibleImage(image.getWidth(), image.getHeight(),
+                        image.getTransparency());
+                render(copy, image);
+                setCopy(entry, copy);
+            }
+            g.drawImage(entry.copy, x, y, width, height, null);
+        }
+    }
+
+    /**
+     * Ends a frame, dropping the copies of the tiles out of the viewport. The
+     * tiles of the viewport outside of the repainted area are kept.
+     *
+     * @param visible the tiles of the whole viewport
+     */
+    public synchronized void endFrame(final TileRange visible) {
+        for (final Iterator<Map.Entry<Tile, Entry>> it = entries.entrySet().iterator(); it.hasNext();) {
+            final Map.Entry<Tile, Entry> entry = it.next();
+            if (entry.getValue().frame != frame && !visible.contains(entry.getKey())) {
+                flush(entry.getValue());
+                it.remove();
+            }
+        }
+        frame++;
+    }
+
+    /**
+     * Ends a frame without knowing the viewport, dropping the copies of the
+     * tiles not drawn in the last {@link #getKeptFrames()} frames.
+     */
+    public synchronized void endFrame() {
+        for (final Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+            final Entry entry = it.next();
+            if (frame - entry.frame >= keptFrames) {
+                flush(entry);
+                it.remove();
+            }
+        }
+        frame++;
+    }
+
+    /**
+     * Drops the copy of a tile whose image was painted again in place, like
+     * the composite of a {@link org.jdesktop.swingx.mapviewer.compound.CompoundTile}.
+     *
+     * @param tile the tile
+     */
+    public synchronized void invalidate(final Tile tile) {
+        final Entry entry = entries.remove(tile);
+        if (entry != null) {
+            flush(entry);
+        }
+    }
+
+    /**
+     * Drops all the copies.
+     */
+    public synchronized void clear() {
+        for (final Entry entry : entries.values()) {
+            flush(entry);
+        }
+        entries.clear();
+    }
+
+    public synchronized Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @param mode the kind of copies to keep
+     */
+    public synchronized void setMode(final Mode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("The mode can't be null");
+        }
+        if (this.mode != mode) {
+            clear();
+            this.mode = mode;
+        }
+    }
+
+    /**
+     * @return the number of frames a copy is kept without being drawn
+     */
+    public int getKeptFrames() {
+        return keptFrames;
+    }
+
+    /**
+     * @param keptFrames the number of frames a copy is kept without being
+     *            drawn, at least 1
+     */
+    public void setKeptFrames(final int keptFrames) {
+        if (keptFrames < 1) {
+            throw new IllegalArgumentException("At least one frame must be kept");
+        }
+        this.keptFrames = keptFrames;
+    }
+
+    /**
+     * @return the number of copies kept
+     */
+    public synchronized int getCount() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of tile images converted, including the restored
+     *         volatile images
+     */
+    public synchronized long getConversions() {
+        return conversions;
+    }
+
+    private void drawVolatile(final Graphics g, final GraphicsConfiguration gc, final Entry entry, final int x,
+            final int y, final int width, final int height) {
+        final BufferedImage source = entry.source;
+        VolatileImage copy = (VolatileImage) entry.copy;
+        do {
+            final int state = copy == null ? VolatileImage.IMAGE_INCOMPATIBLE : copy.validate(gc);
+            if (state == VolatileImage.IMAGE_INCOMPATIBLE) {
+                if (copy != null) {
+                    copy.flush();
+                }
+                copy = gc.createCompatibleVolatileImage(source.getWidth(), source.getHeight(),
+                        source.getTransparency());
+                setCopy(entry, copy);
+                render(copy, source);
+            }
+            else if (state == VolatileImage.IMAGE_RESTORED) {
+                render(copy, source);
+            }
+            g.drawImage(copy, x, y, width, height, null);
+        } while (copy.contentsLost());
+    }
+
+    private void render(final Image copy, final BufferedImage source) {
+        final Graphics2D g2 = (Graphics2D) copy.getGraphics();
+        if (source.getTransparency() != Transparency.OPAQUE) {
+            // Volatile images aren't cleared when created or restored
+            g2.setComposite(AlphaComposite.Src);
+        }
+        g2.drawImage(source, 0, 0, null);
+        g2.dispose();
+        conversions++;
+    }
+
+    /**
+     * @param g the graphics to draw to
+     * @return the configuration of the screen drawn to, or null if it isn't
+     *         drawing to a screen
+     */
+    protected GraphicsConfiguration getScreenConfiguration(final Graphics g) {
+        final GraphicsConfiguration gc = g instanceof Graphics2D ? ((Graphics2D) g).getDeviceConfiguration() : null;
+        return gc != null && gc.getDevice().getType() == GraphicsDevice.TYPE_RASTER_SCREEN ? gc : null;
+    }
+
+    /**
+     * @return the bytes of the copies, the tile images being counted by the
+     *         tile image budget
+     */
+    @Override
+    public synchronized long getMemoryUsage() {
+        return usage;
+    }
+
+    /**
+     * Drops the copies of the tiles drawn the longest ago first.
+     */
+    @Override
+    public synchronized long releaseMemory(final long bytes) {
+        final List<Map.Entry<Tile, Entry>> sorted = new ArrayList<Map.Entry<Tile, Entry>>(entries.entrySet());
+        Collections.sort(sorted, new Comparator<Map.Entry<Tile, Entry>>() {
+            @Override
+            public int compare(final Map.Entry<Tile, Entry> a, final Map.Entry<Tile, Entry> b) {
+                return a.getValue().frame < b.getValue().frame ? -1 : a.getValue().frame > b.getValue().frame ? 1
+                        : 0;
+            }
+        });
+        final long before = usage;
+        for (final Map.Entry<Tile, Entry> entry : sorted) {
+            if (before - usage >= bytes) {
+                break;
+            }
+            entries.remove(entry.getKey());
+            flush(entry.getValue());
+        }
+        return before - usage;
+    }
+
+    private void setCopy(final Entry entry, final Image copy) {
+        usage -= entry.weight;
+        entry.copy = copy;
+        // 32 bits per pixel, the format of the screen
+        entry.weight = 4L * copy.getWidth(null) * copy.getHeight(null);
+        usage += entry.weight;
+    }
+
+    private void flush(final Entry entry) {
+        if (entry.copy != null) {
+            entry.copy.flush();
+        }
+        usage -= entry.weight;
+        entry.weight = 0;
+        ImagePool.getDefault().release(entry.source);
+    }
+}
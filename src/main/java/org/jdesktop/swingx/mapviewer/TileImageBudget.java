@@ -0,0 +1,151 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jdesktop.swingx.mapviewer.util.ImagePool;
+import org.jdesktop.swingx.mapviewer.util.MemoryConsumer;
+
+/**
+ * Bounds the memory used by the images held by tiles. Tiles keep strong
+ * references to their images, and this budget releases the images of the
+ * least recently painted tiles when the total goes over the limit. A released
+ * tile reloads its image, usually from the {@link
+ * org.jdesktop.swingx.mapviewer.util.ImageCache}, the next time it is painted.
+ * The images shared by a tile and the image cache are counted here only, the
+ * cache counts the images it holds alone.
+ * <p>
+ * This class is thread safe.
+ * </p>
+ */
+public class TileImageBudget implements MemoryConsumer {
+    public static final long DEFAULT_LIMIT = 64L * 1024 * 1024;
+
+    private final Map<Tile, Long> tiles = new LinkedHashMap<Tile, Long>(64, 0.75f, true);
+    private long limit;
+    private long usage;
+
+    public TileImageBudget() {
+        this(DEFAULT_LIMIT);
+    }
+
+    /**
+     * @param limit maximum number of bytes of tile images to keep
+     */
+    public TileImageBudget(final long limit) {
+        setLimit(limit);
+    }
+
+    /**
+     * Records the image of a tile, releasing the least recently used ones if
+     * the budget is exceeded.
+     *
+     * @param tile the tile
+     * @param image the new image of the tile, or null if it has none
+     */
+    public void update(final Tile tile, final BufferedImage image) {
+        final List<Tile> victims;
+        synchronized (this) {
+            final Long old = image == null ? tiles.remove(tile) : tiles.put(tile, weight(image));
+            if (old != null) {
+                usage -= old;
+            }
+            if (image != null) {
+                usage += weight(image);
+            }
+            victims = collectVictims(limit, tile);
+        }
+        release(victims);
+    }
+
+    /**
+     * Marks a tile as recently used.
+     *
+     * @param tile the painted tile
+     */
+    public synchronized void touch(final Tile tile) {
+        tiles.get(tile);
+    }
+
+    public synchronized long getLimit() {
+        return limit;
+    }
+
+    /**
+     * Sets the maximum number of bytes of tile images to keep.
+     *
+     * @param limit the new limit
+     */
+    public void setLimit(final long limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("The limit can't be negative");
+        }
+        final List<Tile> victims;
+        synchronized (this) {
+            this.limit = limit;
+            victims = collectVictims(limit, null);
+        }
+        release(victims);
+    }
+
+    /**
+     * @return the number of tiles holding an image
+     */
+    public synchronized int getCount() {
+        return tiles.size();
+    }
+
+    @Override
+    public synchronized long getMemoryUsage() {
+        return usage;
+    }
+
+    @Override
+    public long releaseMemory(final long bytes) {
+        final List<Tile> victims;
+        final long released;
+        synchronized (this) {
+            final long before = usage;
+            victims = collectVictims(Math.max(0, usage - bytes), null);
+            released = before - usage;
+        }
+        release(victims);
+        return released;
+    }
+
+    /**
+     * Estimates the memory used by an image.
+     *
+     * @param image the image
+     * @return the size in bytes
+     */
+    protected long weight(final BufferedImage image) {
+        return ImagePool.sizeOf(image);
+    }
+
+    private List<Tile> collectVictims(final long target, final Tile keep) {
+        final List<Tile> victims = new ArrayList<Tile>();
+        for (final Iterator<Map.Entry<Tile, Long>> it = tiles.entrySet().iterator(); it.hasNext()
+                && usage > target;) {
+            final Map.Entry<Tile, Long> entry = it.next();
+            if (entry.getKey() == keep) {
+                continue;
+            }
+            usage -= entry.getValue();
+            victims.add(entry.getKey());
+            it.remove();
+        }
+        return victims;
+    }
+
+    private static void release(final List<Tile> victims) {
+        // Called without holding the budget lock, the tiles have their own
+        for (final Tile tile : victims) {
+            tile.releaseImage();
+        }
+    }
+}
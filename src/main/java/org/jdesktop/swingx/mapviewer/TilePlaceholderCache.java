@@ -0,0 +1,205 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jdesktop.swingx.mapviewer.util.ImagePool;
+
+/**
+ * Builds placeholders for the tiles still loading from the cached tiles of
+ * the neighbor zoom levels: a scaled up part of the nearest cached ancestor,
+ * with the cached children scaled down on top of it. Placeholders are kept in
+ * a small LRU cache so they aren't scaled again on every frame.
+ * <p>
+ * Remember that the zoom levels are inverted, the ancestors of a tile have a
+ * higher zoom level. This class is meant to be used from the event dispatch
+ * thread only.
+ * </p>
+ */
+public class TilePlaceholderCache {
+    public static final int DEFAULT_LEVELS = 4;
+    public static final int DEFAULT_SIZE = 64;
+
+    private static final class Key {
+        private final int x;
+        private final int y;
+        private final int zoom;
+
+        private Key(final int x, final int y, final int zoom) {
+            this.x = x;
+            this.y = y;
+            this.zoom = zoom;
+        }
+
+        @Override
+        public int hashCode() {
+            return (x * 31 + y) * 31 + zoom;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return x == other.x && y == other.y && zoom == other.zoom;
+        }
+    }
+
+    private final Map<Key, BufferedImage> fragments = new LinkedHashMap<Key, BufferedImage>(16, 0.75f, true);
+    private int levels = DEFAULT_LEVELS;
+    private int size = DEFAULT_SIZE;
+
+    /**
+     * Returns the placeholder of a tile, building it if needed. The image
+     * belongs to this cache and must not be kept.
+     *
+     * @param factory the factory of the tile
+     * @param x the x coordinate of the tile
+     * @param y the y coordinate of the tile
+     * @param zoom the zoom level of the tile
+     * @return the placeholder, or null if no neighbor tile is cached
+     */
+    public BufferedImage getPlaceholder(final TileFactory factory, final int x, final int y, final int zoom) {
+        final Key key = new Key(x, y, zoom);
+        BufferedImage result = fragments.get(key);
+        if (result != null || size == 0) {
+            return result;
+        }
+
+        result = build(factory, x, y, zoom);
+        if (result != null) {
+            fragments.put(key, result);
+            trim();
+        }
+        return result;
+    }
+
+    /**
+     * Removes all the placeholders, for example when the tile factory
+     * changes.
+     */
+    public void clear() {
+        for (final BufferedImage img : fragments.values()) {
+            ImagePool.getDefault().release(img);
+        }
+        fragments.clear();
+    }
+
+    /**
+     * @return the number of zoom levels searched for an ancestor
+     */
+    public int getLevels() {
+        return levels;
+    }
+
+    /**
+     * @param levels the number of zoom levels searched for an ancestor
+     */
+    public void setLevels(final int levels) {
+        if (levels < 0) {
+            throw new IllegalArgumentException("The number of levels can't be negative");
+        }
+        this.levels = levels;
+    }
+
+    /**
+     * @return the maximum number of placeholders kept
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @param size the maximum number of placeholders kept
+     */
+    public void setSize(final int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("The size can't be negative");
+        }
+        this.size = size;
+        trim();
+    }
+
+    private BufferedImage build(final TileFactory factory, final int x, final int y, final int zoom) {
+        final TileFactoryInfo info = factory.getInfo();
+        final int tileSize = factory.getTileSize(zoom);
+        final ImagePool pool = ImagePool.getDefault();
+        BufferedImage result = null;
+        Graphics2D g2 = null;
+        try {
+            // The nearest ancestor, scaled up
+            final Dimension mapSize = factory.getMapSize(zoom);
+            for (int k = 1; k <= levels && zoom + k <= info.getMaximumZoomLevel(); k++) {
+                if (!isPyramid(factory, zoom + k, mapSize, k)) {
+                    break;
+                }
+                final BufferedImage ancestor = factory.getCachedImage(x >> k, y >> k, zoom + k);
+                if (ancestor != null) {
+                    result = pool.acquire(tileSize, tileSize, BufferedImage.TYPE_INT_ARGB, true);
+                    g2 = createGraphics(result);
+                    final int fragment = tileSize >> k;
+                    final int sx = (x - (x >> k << k)) * fragment;
+                    final int sy = (y - (y >> k << k)) * fragment;
+                    g2.drawImage(ancestor, 0, 0, tileSize, tileSize, sx, sy, sx + fragment, sy + fragment, null);
+                    pool.release(ancestor);
+                    break;
+                }
+            }
+
+            // The children, scaled down
+            if (zoom - 1 >= info.getMinimumZoomLevel() && isPyramid(factory, zoom - 1, mapSize, -1)) {
+                final int half = tileSize / 2;
+                for (int i = 0; i < 2; i++) {
+                    for (int j = 0; j < 2; j++) {
+                        final BufferedImage child = factory.getCachedImage(x * 2 + i, y * 2 + j, zoom - 1);
+                        if (child == null) {
+                            continue;
+                        }
+                        if (result == null) {
+                            result = pool.acquire(tileSize, tileSize, BufferedImage.TYPE_INT_ARGB, true);
+                            g2 = createGraphics(result);
+                        }
+                        g2.drawImage(child, i * half, j * half, half, half, null);
+                        pool.release(child);
+                    }
+                }
+            }
+        }
+        finally {
+            if (g2 != null) {
+                g2.dispose();
+            }
+        }
+        return result;
+    }
+
+    private static boolean isPyramid(final TileFactory factory, final int otherZoom, final Dimension mapSize,
+            final int k) {
+        // Only the levels of a power of two size in tiles can be mapped
+        final Dimension other = factory.getMapSize(otherZoom);
+        if (k > 0) {
+            return mapSize.width == other.width << k && mapSize.height == other.height << k;
+        }
+        return other.width == mapSize.width << -k && other.height == mapSize.height << -k;
+    }
+
+    private static Graphics2D createGraphics(final BufferedImage img) {
+        final Graphics2D g2 = img.createGraphics();
+        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        return g2;
+    }
+
+    private void trim() {
+        for (final Iterator<BufferedImage> it = fragments.values().iterator(); it.hasNext()
+                && fragments.size() > size;) {
+            ImagePool.getDefault().release(it.next());
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+
+import org.jdesktop.swingx.mapviewer.util.ImagePool;
+
+/**
+ * The tiles of a zoom level covering a part of a viewport, and where they are
+ * drawn. This is the tile layout shared by
+ * {@link org.jdesktop.swingx.JXMapViewer}, the {@link MapRenderer} and the
+ * {@link PosterExporter}.
+ * <p>
+ * The range isn't bounded by the map: the columns out of it are wrapped by
+ * the tile factory, the rows can be excluded with {@link #getFirstMapY()} and
+ * {@link #getLastMapY()}.
+ * </p>
+ */
+public final class TileRange {
+    private final Rectangle viewport;
+    private final int zoom;
+    private final int tileSize;
+    private final int mapWidth;
+    private final int mapHeight;
+    private final int firstX;
+    private final int firstY;
+    private final int lastX;
+    private final int lastY;
+
+    /**
+     * Creates the range of the tiles of a whole viewport.
+     *
+     * @param factory the factory of the tiles
+     * @param zoom the zoom level
+     * @param viewport the viewport in pixel coordinates of the map
+     */
+    public TileRange(final TileFactory factory, final int zoom, final Rectangle viewport) {
+        this(factory, zoom, viewport, new Rectangle(0, 0, viewport.width, viewport.height));
+    }
+
+    /**
+     * Creates the range of the tiles of a part of a viewport, usually the clip
+     * of a paint.
+     *
+     * @param factory the factory of the tiles
+     * @param zoom the zoom level
+     * @param viewport the viewport in pixel coordinates of the map
+     * @param area the covered part, relative to the viewport. Not empty.
+     */
+    public TileRange(final TileFactory factory, final int zoom, final Rectangle viewport, final Rectangle area) {
+        this.viewport = new Rectangle(viewport);
+        this.zoom = zoom;
+        tileSize = factory.getTileSize(zoom);
+        mapWidth = factory.getMapSize(zoom).width;
+        mapHeight = factory.getMapSize(zoom).height;
+        firstX = (int) Math.floor((double) (viewport.x + area.x) / tileSize);
+        firstY = (int) Math.floor((double) (viewport.y + area.y) / tileSize);
+        lastX = (int) Math.floor((double) (viewport.x + area.x + area.width - 1) / tileSize);
+        lastY = (int) Math.floor((double) (viewport.y + area.y + area.height - 1) / tileSize);
+    }
+
+    /**
+     * Computes the viewport of a map of the given size centered on a point.
+     *
+     * @param center the center in pixel coordinates of the map
+     * @param width the width of the viewport
+     * @param height the height of the viewport
+     * @return the viewport in pixel coordinates of the map
+     */
+    public static Rectangle getViewport(final Point2D center, final int width, final int height) {
+        return new Rectangle((int) (center.getX() - width / 2), (int) (center.getY() - height / 2), width, height);
+    }
+
+    /**
+     * @return the size of the tiles in pixels
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public int getFirstX() {
+        return firstX;
+    }
+
+    public int getLastX() {
+        return lastX;
+    }
+
+    public int getFirstY() {
+        return firstY;
+    }
+
+    public int getLastY() {
+        return lastY;
+    }
+
+    /**
+     * @return the first row of the range which is on the map
+     */
+    public int getFirstMapY() {
+        return Math.max(0, firstY);
+    }
+
+    /**
+     * @return the last row of the range which is on the map
+     */
+    public int getLastMapY() {
+        return Math.min(mapHeight - 1, lastY);
+    }
+
+    /**
+     * Tells if a tile is drawn in the range, as one of its columns or as a
+     * column wrapped around the map.
+     *
+     * @param tile the tile
+     * @return true if the tile is in the range
+     */
+    public boolean contains(final Tile tile) {
+        if (tile.getZoom() != zoom || tile.getY() < firstY || tile.getY() > lastY) {
+            return false;
+        }
+        if (mapWidth <= 0 || lastX - firstX + 1 >= mapWidth) {
+            return true;
+        }
+        final int column = ((tile.getX() - firstX) % mapWidth + mapWidth) % mapWidth;
+        return column <= lastX - firstX;
+    }
+
+    /**
+     * @param x the column of a tile
+     * @return where the tile is drawn, relative to the viewport
+     */
+    public int getOffsetX(final int x) {
+        return x * tileSize - viewport.x;
+    }
+
+    /**
+     * @param y the row of a tile
+     * @return where the tile is drawn, relative to the viewport
+     */
+    public int getOffsetY(final int y) {
+        return y * tileSize - viewport.y;
+    }
+
+    /**
+     * Draws the image of a loaded tile at its place. The image is retained
+     * while it is drawn, so it can't be recycled for another tile meanwhile.
+     *
+     * @param g the graphics of the viewport
+     * @param tile the tile
+     * @param x the column of the tile in the range
+     * @param y the row of the tile in the range
+     * @param accelerator draws the tile with a copy converted for the screen,
+     *            can be null
+     * @return false if the tile has no image yet, nothing is drawn then
+     */
+    public boolean drawTile(final Graphics g, final Tile tile, final int x, final int y,
+            final TileImageAccelerator accelerator) {
+        final BufferedImage image = tile.isLoaded() ? tile.acquireImage() : null;
+        if (image == null) {
+            return false;
+        }
+        try {
+            // The HiDPI variants are drawn at the standard size
+            if (accelerator != null) {
+                accelerator.drawTile(g, tile, image, getOffsetX(x), getOffsetY(y), tileSize, tileSize);
+            }
+            else {
+                g.drawImage(image, getOffsetX(x), getOffsetY(y), tileSize, tileSize, null);
+            }
+        }
+        finally {
+            ImagePool.getDefault().release(image);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,136 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.awt.Dimension;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+
+import org.jdesktop.swingx.mapviewer.util.QuadTree;
+
+/**
+ * Spatial index of waypoints, finding the waypoints within a viewport in
+ * O(log n + k). The waypoints are projected once with the tile factory, to
+ * coordinates relative to the width of the world, and kept in a
+ * {@link QuadTree}. The viewports crossing the antimeridian, or wider than the
+ * world, are split into one query per copy of the world.
+ * <p>
+ * The index assumes the pixel coordinates of the factory scale linearly with
+ * the size of the map, like in the Mercator projection of the tile servers.
+ * Note that this class is not thread safe.
+ * </p>
+ */
+public class WaypointIndex {
+    /**
+     * Receives the waypoints found by a query.
+     */
+    public interface Visitor {
+        /**
+         * @param waypoint the waypoint
+         * @param x the x coordinate of the waypoint in pixels of the map,
+         *            moved to the copy of the world of the viewport
+         * @param y the y coordinate of the waypoint in pixels of the map
+         */
+        void visit(Waypoint waypoint, double x, double y);
+    }
+
+    private final TileFactory factory;
+    private final int referenceZoom;
+    private final double referenceWidth;
+    private final QuadTree<Waypoint> tree;
+
+    /**
+     * @param factory the factory whose projection is used
+     */
+    public WaypointIndex(final TileFactory factory) {
+        this.factory = factory;
+        // The largest map, for the precision of the projection
+        referenceZoom = factory.getInfo().getMinimumZoomLevel();
+        referenceWidth = getWorldWidth(referenceZoom);
+        final Dimension mapSize = factory.getMapSize(referenceZoom);
+        tree = new QuadTree<Waypoint>(new Rectangle2D.Double(0, 0, 1, (double) mapSize.height / mapSize.width));
+    }
+
+    /**
+     * @return the factory whose projection is used
+     */
+    public TileFactory getTileFactory() {
+        return factory;
+    }
+
+    /**
+     * @return the number of indexed waypoints
+     */
+    public int size() {
+        return tree.size();
+    }
+
+    /**
+     * Adds a waypoint, or moves it to its current position if it's already
+     * indexed.
+     *
+     * @param waypoint the waypoint
+     */
+    public void put(final Waypoint waypoint) {
+        final Point2D point = factory.geoToPixel(waypoint.getPosition(), referenceZoom);
+        final double x = point.getX() / referenceWidth;
+        tree.put(waypoint, x - Math.floor(x), point.getY() / referenceWidth);
+    }
+
+    /**
+     * Adds waypoints.
+     *
+     * @param waypoints the waypoints
+     */
+    public void putAll(final Iterable<? extends Waypoint> waypoints) {
+        for (final Waypoint waypoint : waypoints) {
+            put(waypoint);
+        }
+    }
+
+    /**
+     * @param waypoint the waypoint
+     * @return true if the waypoint was indexed
+     */
+    public boolean remove(final Waypoint waypoint) {
+        return tree.remove(waypoint);
+    }
+
+    /**
+     * Removes all the waypoints.
+     */
+    public void clear() {
+        tree.clear();
+    }
+
+    /**
+     * Finds the waypoints within an area of the map, borders included. The
+     * area can extend over the left and right edges of the world, the
+     * waypoints are then found once per copy of the world.
+     *
+     * @param area the area in pixels of the map
+     * @param zoom the zoom level of the map
+     * @param visitor receives the waypoints found, in no particular order
+     */
+    public void query(final Rectangle2D area, final int zoom, final Visitor visitor) {
+        final double worldWidth = getWorldWidth(zoom);
+        final double minX = area.getMinX() / worldWidth;
+        final double maxX = area.getMaxX() / worldWidth;
+        final double minY = area.getMinY() / worldWidth;
+        final double maxY = area.getMaxY() / worldWidth;
+        for (int copy = (int) Math.floor(minX); copy <= (int) Math.floor(maxX); copy++) {
+            final double offset = copy * worldWidth;
+            final double copyMinX = Math.max(minX, copy) - copy;
+            final double copyMaxX = Math.min(maxX, copy + 1) - copy;
+            tree.query(new Rectangle2D.Double(copyMinX, minY, copyMaxX - copyMinX, maxY - minY),
+                    new QuadTree.Visitor<Waypoint>() {
+                        @Override
+                        public void visit(final Waypoint item, final double x, final double y) {
+                            visitor.visit(item, x * worldWidth + offset, y * worldWidth);
+                        }
+                    });
+        }
+    }
+
+    private double getWorldWidth(final int zoom) {
+        return (double) factory.getMapSize(zoom).width * factory.getTileSize(zoom);
+    }
+}
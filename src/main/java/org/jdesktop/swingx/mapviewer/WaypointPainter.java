@@ -9,11 +9,14 @@
 
 package org.jdesktop.swingx.mapviewer;
 
+import java.awt.AlphaComposite;
 import java.awt.Dimension;
 import java.awt.Graphics2D;
 import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -23,6 +26,19 @@ import org.jdesktop.swingx.painter.AbstractPainter;
 /**
  * Paints waypoints on the JXMapViewer. This is an instance of Painter that only
  * can draw on to JXMapViewers.
+ * <p>
+ * With {@link #setLayerCached(boolean)} the waypoints are rendered into a
+ * layer image kept between paints. Panning moves the layer and only renders
+ * the waypoints of the uncovered margins, the whole layer is rendered again
+ * when the zoom or the waypoints change.
+ * </p>
+ * <p>
+ * With {@link #setSpatiallyIndexed(boolean)} the visible waypoints are found
+ * with a {@link WaypointIndex} instead of projecting all the waypoints on
+ * every paint, use {@link #addWaypoint(Waypoint)},
+ * {@link #removeWaypoint(Waypoint)} and {@link #updateWaypoint(Waypoint)} to
+ * update it incrementally.
+ * </p>
  * 
  * @author rbair
  */
@@ -30,6 +46,30 @@ public class WaypointPainter<T extends JXMapViewer> extends AbstractPainter<T> {
     private WaypointRenderer renderer = new DefaultWaypointRenderer();
     private Set<Waypoint> waypoints;
 
+    public static final int DEFAULT_ICON_MARGIN = 64;
+
+    private boolean layerCached = false;
+    private boolean spatiallyIndexed = false;
+    private WaypointIndex index;
+    private int iconMargin = DEFAULT_ICON_MARGIN;
+    /** Incremented when the waypoints or their rendering change */
+    private int version;
+
+    private BufferedImage layer;
+    private BufferedImage spareLayer;
+    private JXMapViewer layerMap;
+    private Rectangle layerViewport;
+    private int layerZoom;
+    private int layerVersion;
+
+    /** The waypoints projected at the zoom of the layer */
+    private Waypoint[] projected;
+    private double[] projectedX;
+    private double[] projectedY;
+    private TileFactory projectedFactory;
+    private int projectedZoom;
+    private int projectedVersion;
+
     /**
      * Creates a new instance of WaypointPainter
      */
@@ -47,6 +87,7 @@ public class WaypointPainter<T extends JXMapViewer> extends AbstractPainter<T> {
      */
     public void setRenderer(WaypointRenderer r) {
         this.renderer = r;
+        version++;
     }
 
     /**
@@ -66,6 +107,145 @@ public class WaypointPainter<T extends JXMapViewer> extends AbstractPainter<T> {
      */
     public void setWaypoints(Set<Waypoint> waypoints) {
         this.waypoints = waypoints;
+        version++;
+        index = null;
+    }
+
+    /**
+     * Adds a waypoint to the painted ones, and to the spatial index.
+     * 
+     * @param waypoint
+     *            the waypoint
+     */
+    public void addWaypoint(final Waypoint waypoint) {
+        getWaypoints().add(waypoint);
+        if (index != null) {
+            index.put(waypoint);
+        }
+        version++;
+    }
+
+    /**
+     * Removes a waypoint from the painted ones, and from the spatial index.
+     * 
+     * @param waypoint
+     *            the waypoint
+     */
+    public void removeWaypoint(final Waypoint waypoint) {
+        getWaypoints().remove(waypoint);
+        if (index != null) {
+            index.remove(waypoint);
+        }
+        version++;
+    }
+
+    /**
+     * Updates the painting of a waypoint after its position or its content
+     * has changed, and moves it in the spatial index.
+     * 
+     * @param waypoint
+     *            the waypoint
+     */
+    public void updateWaypoint(final Waypoint waypoint) {
+        if (index != null && getWaypoints().contains(waypoint)) {
+            index.put(waypoint);
+        }
+        version++;
+    }
+
+    /**
+     * Indicates if the visible waypoints are found with a spatial index
+     * 
+     * @return the current value of the spatiallyIndexed property
+     */
+    public boolean isSpatiallyIndexed() {
+        return spatiallyIndexed;
+    }
+
+    /**
+     * Sets if the visible waypoints are found with a {@link WaypointIndex},
+     * so a paint costs O(log n + k) for k visible waypoints out of n. The index
+     * is built on the next paint and kept up to date by
+     * {@link #addWaypoint(Waypoint)}, {@link #removeWaypoint(Waypoint)} and
+     * {@link #updateWaypoint(Waypoint)}. Call {@link #clearCache()} after
+     * changing the set returned by {@link #getWaypoints()} directly, to build
+     * the index again.
+     * 
+     * @param spatiallyIndexed
+     *            new value of the spatiallyIndexed property
+     */
+    public void setSpatiallyIndexed(final boolean spatiallyIndexed) {
+        final boolean old = isSpatiallyIndexed();
+        this.spatiallyIndexed = spatiallyIndexed;
+        index = null;
+        version++;
+        firePropertyChange("spatiallyIndexed", old, isSpatiallyIndexed());
+    }
+
+    /**
+     * Indicates if the waypoints are painted through a cached layer
+     * 
+     * @return the current value of the layerCached property
+     */
+    public boolean isLayerCached() {
+        return layerCached;
+    }
+
+    /**
+     * Sets if the waypoints are rendered into a layer image kept between
+     * paints, keyed by the zoom, the viewport and the version of the
+     * waypoints. Call {@link #clearCache()} after changing the set returned
+     * by {@link #getWaypoints()} or a waypoint, {@link #setWaypoints(Set)}
+     * does it. Paints with a scaled graphics, like the zoom animation, don't
+     * use the layer.
+     * 
+     * @param layerCached
+     *            new value of the layerCached property
+     */
+    public void setLayerCached(final boolean layerCached) {
+        final boolean old = isLayerCached();
+        this.layerCached = layerCached;
+        if (!layerCached) {
+            dropLayer();
+        }
+        firePropertyChange("layerCached", old, isLayerCached());
+    }
+
+    /**
+     * Gets the distance the waypoint icons may extend from their position
+     * 
+     * @return the current value of the iconMargin property, in pixels
+     */
+    public int getIconMargin() {
+        return iconMargin;
+    }
+
+    /**
+     * Sets the distance the waypoint icons may extend from their position.
+     * The waypoints up to this distance out of a rendered part of the layer
+     * are painted into it, so their icons aren't cut.
+     * 
+     * @param iconMargin
+     *            new value of the iconMargin property, in pixels
+     */
+    public void setIconMargin(final int iconMargin) {
+        if (iconMargin < 0) {
+            throw new IllegalArgumentException("The margin can't be negative");
+        }
+        final int old = getIconMargin();
+        this.iconMargin = iconMargin;
+        version++;
+        firePropertyChange("iconMargin", old, getIconMargin());
+    }
+
+    /**
+     * {@inheritDoc} The cached layer is rendered again on the next paint.
+     */
+    @Override
+    public void clearCache() {
+        super.clearCache();
+        version++;
+        index = null;
     }
 
     /**
@@ -81,6 +261,14 @@ public class WaypointPainter<T extends JXMapViewer> extends AbstractPainter<T> {
         if (renderer == null) {
             return;
         }
+        if (isLayerCached() && isTranslation(g.getTransform())) {
+            paintLayer(g, map);
+            return;
+        }
+        if (isSpatiallyIndexed()) {
+            paintIndexed(g, map);
+            return;
+        }
 
         // figure out which waypoints are within this map viewport
         // so, get the bounds
@@ -155,6 +343,207 @@ public class WaypointPainter<T extends JXMapViewer> extends AbstractPainter<T> {
         renderer.paintWaypoint(g, map, w);
     }
 
+    private static boolean isTranslation(final AffineTransform tx) {
+        return (tx.getType() & ~AffineTransform.TYPE_TRANSLATION) == 0;
+    }
+
+    /**
+     * Updates the layer to the viewport of the map and draws it.
+     */
+    private void paintLayer(final Graphics2D g, final T map) {
+        final Rectangle viewport = map.getViewportBounds();
+        if (viewport.isEmpty()) {
+            return;
+        }
+        final int zoom = map.getZoom();
+        if (!isSpatiallyIndexed()) {
+            project(map.getTileFactory(), zoom);
+        }
+
+        final int dx = layerViewport == null ? 0 : viewport.x - layerViewport.x;
+        final int dy = layerViewport == null ? 0 : viewport.y - layerViewport.y;
+        if (layer == null || layerMap != map || layerZoom != zoom || layerVersion != version
+                || layer.getWidth() != viewport.width || layer.getHeight() != viewport.height
+                || Math.abs(dx) >= viewport.width || Math.abs(dy) >= viewport.height) {
+            if (layer == null || layer.getWidth() != viewport.width || layer.getHeight() != viewport.height) {
+                layer = new BufferedImage(viewport.width, viewport.height, BufferedImage.TYPE_INT_ARGB);
+                spareLayer = null;
+            }
+            final Graphics2D lg = createLayerGraphics(g, layer);
+            try {
+                renderRegion(lg, map, viewport, viewport);
+            }
+            finally {
+                lg.dispose();
+            }
+        }
+        else if (dx != 0 || dy != 0) {
+            if (spareLayer == null) {
+                spareLayer = new BufferedImage(viewport.width, viewport.height, BufferedImage.TYPE_INT_ARGB);
+            }
+            final Graphics2D lg = createLayerGraphics(g, spareLayer);
+            try {
+                lg.drawImage(layer, -dx, -dy, null);
+                // The uncovered column, then the uncovered row without the
+                // corner already rendered with the column
+                int rowX = viewport.x;
+                int rowWidth = viewport.width;
+                if (dx != 0) {
+                    final int columnX = dx > 0 ? viewport.x + viewport.width - dx : viewport.x;
+                    renderRegion(lg, map, viewport, new Rectangle(columnX, viewport.y, Math.abs(dx),
+                            viewport.height));
+                    rowWidth -= Math.abs(dx);
+                    if (dx < 0) {
+                        rowX -= dx;
+                    }
+                }
+                if (dy != 0) {
+                    final int rowY = dy > 0 ? viewport.y + viewport.height - dy : viewport.y;
+                    renderRegion(lg, map, viewport, new Rectangle(rowX, rowY, rowWidth, Math.abs(dy)));
+                }
+            }
+            finally {
+                lg.dispose();
+            }
+            final BufferedImage old = layer;
+            layer = spareLayer;
+            spareLayer = old;
+        }
+        layerMap = map;
+        layerViewport = viewport;
+        layerZoom = zoom;
+        layerVersion = version;
+        g.drawImage(layer, 0, 0, null);
+    }
+
+    /**
+     * Clears the image and returns a graphics with the hints of the map
+     * graphics.
+     */
+    private static Graphics2D createLayerGraphics(final Graphics2D g, final BufferedImage image) {
+        final Graphics2D lg = image.createGraphics();
+        lg.setComposite(AlphaComposite.Clear);
+        lg.fillRect(0, 0, image.getWidth(), image.getHeight());
+        lg.setComposite(AlphaComposite.SrcOver);
+        lg.setRenderingHints(g.getRenderingHints());
+        return lg;
+    }
+
+    /**
+     * Renders the waypoints of a part of the viewport into the layer.
+     * 
+     * @param region
+     *            the part of the viewport, in pixels of the map
+     */
+    private void renderRegion(final Graphics2D lg, final T map, final Rectangle viewport, final Rectangle region) {
+        final Graphics2D rg = (Graphics2D) lg.create();
+        try {
+            rg.clipRect(region.x - viewport.x, region.y - viewport.y, region.width, region.height);
+            final int zoom = map.getZoom();
+            final double mapWidth = (double) map.getTileFactory().getMapSize(zoom).width
+                    * map.getTileFactory().getTileSize(zoom);
+            final double minX = region.getMinX() - iconMargin;
+            final double maxX = region.getMaxX() + iconMargin;
+            final double minY = region.getMinY() - iconMargin;
+            final double maxY = region.getMaxY() + iconMargin;
+            if (isSpatiallyIndexed()) {
+                getIndex(map.getTileFactory()).query(new Rectangle2D.Double(minX, minY, maxX - minX, maxY - minY),
+                        zoom, new WaypointIndex.Visitor() {
+                            @Override
+                            public void visit(final Waypoint waypoint, final double px, final double py) {
+                                final int x = (int) Math.floor(px) - viewport.x;
+                                final int y = (int) Math.floor(py) - viewport.y;
+                                rg.translate(x, y);
+                                paintWaypoint(waypoint, map, rg);
+                                rg.translate(-x, -y);
+                            }
+                        });
+                return;
+            }
+            for (int i = 0; i < projected.length; i++) {
+                final double py = projectedY[i];
+                if (py < minY || py > maxY) {
+                    continue;
+                }
+                // Every copy of the wrapped world within the region
+                final double px = projectedX[i];
+                final int first = (int) Math.ceil((minX - px) / mapWidth);
+                final int last = (int) Math.floor((maxX - px) / mapWidth);
+                for (int k = first; k <= last; k++) {
+                    final int x = (int) Math.floor(px + k * mapWidth) - viewport.x;
+                    final int y = (int) Math.floor(py) - viewport.y;
+                    rg.translate(x, y);
+                    paintWaypoint(projected[i], map, rg);
+                    rg.translate(-x, -y);
+                }
+            }
+        }
+        finally {
+            rg.dispose();
+        }
+    }
+
+    /**
+     * Paints the waypoints of the viewport found with the index.
+     */
+    private void paintIndexed(final Graphics2D g, final T map) {
+        final Rectangle viewport = map.getViewportBounds();
+        getIndex(map.getTileFactory()).query(viewport, map.getZoom(), new WaypointIndex.Visitor() {
+            @Override
+            public void visit(final Waypoint waypoint, final double px, final double py) {
+                final int x = (int) (px - viewport.x);
+                final int y = (int) (py - viewport.y);
+                g.translate(x, y);
+                paintWaypoint(waypoint, map, g);
+                g.translate(-x, -y);
+            }
+        });
+    }
+
+    /**
+     * Builds the index of the waypoints for the projection of the factory.
+     */
+    private WaypointIndex getIndex(final TileFactory factory) {
+        if (index == null || index.getTileFactory() != factory) {
+            index = new WaypointIndex(factory);
+            index.putAll(getWaypoints());
+        }
+        return index;
+    }
+
+    /**
+     * Projects the waypoints once per zoom level and version.
+     */
+    private void project(final TileFactory factory, final int zoom) {
+        if (projected != null && projectedFactory == factory && projectedZoom == zoom
+                && projectedVersion == version) {
+            return;
+        }
+        final Set<Waypoint> points = getWaypoints();
+        projected = points.toArray(new Waypoint[points.size()]);
+        projectedX = new double[projected.length];
+        projectedY = new double[projected.length];
+        for (int i = 0; i < projected.length; i++) {
+            final Point2D point = factory.geoToPixel(projected[i].getPosition(), zoom);
+            projectedX[i] = point.getX();
+            projectedY[i] = point.getY();
+        }
+        projectedFactory = factory;
+        projectedZoom = zoom;
+        projectedVersion = version;
+    }
+
+    private void dropLayer() {
+        layer = null;
+        spareLayer = null;
+        layerMap = null;
+        layerViewport = null;
+        projected = null;
+        projectedX = null;
+        projectedY = null;
+        projectedFactory = null;
+    }
+
     private static void p(String str) {
         System.out.println(str);
     }
@@ -0,0 +1,1381 @@
+package org.jdesktop.swingx.mapviewer.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persistent store for the compressed tile data.
+ * <p>
+ * Tiles are appended to size limited data files and located through a memory
+ * mapped index, an open addressing hash table keyed by a 64 bit hash of the
+ * tile key. The full key is stored next to the data and verified on every
+ * lookup, so hash collisions never return the wrong tile. The HTTP caching
+ * information of each tile is kept with it, see {@link TileMetadata}.
+ * </p>
+ * <p>
+ * The store is bounded by {@link #getMaxSize()}. When the live data grows
+ * over that limit the least recently used tiles are evicted and the data
+ * files with too much dead space are compacted on a background thread.
+ * </p>
+ * <p>
+ * Several processes can share the same directory. The lookups run under a
+ * shared lock on a lock file and the changes under an exclusive one. The lock
+ * file also publishes the current index file and a generation counter. A
+ * process that finds a new index or generation remaps the index and reopens
+ * its data files, so the index is never rebuilt in place and data files are
+ * never reused while another process reads them.
+ * </p>
+ * <p>
+ * The lookups never write to the shared files. The tiles read by a process
+ * are remembered and their access times, used to evict the least recently
+ * used tiles, are written to the index with the next change.
+ * </p>
+ * This class is thread safe.
+ */
+public class DiskTileStore {
+    private static final Logger LOG = Logger.getLogger(DiskTileStore.class.getName());
+
+    public static final long DEFAULT_MAX_SIZE = 256L * 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String LOCK_FILE = "tiles.lock";
+    private static final String INDEX_FILE_PREFIX = "index-";
+    private static final String INDEX_FILE_SUFFIX = ".idx";
+    private static final String DATA_FILE_PREFIX = "tiles-";
+    private static final String DATA_FILE_SUFFIX = ".dat";
+
+    private static final int INDEX_MAGIC = 0x5449584d;
+    private static final int RECORD_MAGIC = 0x54494c45;
+    private static final int LOCK_MAGIC = 0x544c434b;
+    private static final int VERSION = 2;
+
+    private static final int INITIAL_CAPACITY = 4096;
+    private static final int DATA_FILE_LIMIT = 32 * 1024 * 1024;
+    private static final float MAX_LOAD_FACTOR = 0.6f;
+    private static final float EVICTION_TARGET = 0.9f;
+    private static final float COMPACTION_THRESHOLD = 0.5f;
+    private static final int MAX_PENDING_ACCESSES = 1024;
+
+    // Lock file layout: magic, generation, id of the current index file
+    private static final int LOCK_STATE_SIZE = 16;
+
+    // Index header layout
+    private static final int HEADER_SIZE = 64;
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_CAPACITY = 8;
+    private static final int H_COUNT = 12;
+    private static final int H_USED = 16;
+    private static final int H_WRITE_FILE = 20;
+    private static final int H_LIVE_BYTES = 24;
+    private static final int H_CLOCK = 32;
+
+    // Index slot layout
+    private static final int SLOT_SIZE = 40;
+    private static final int S_HASH = 0;
+    private static final int S_FILE = 8;
+    private static final int S_OFFSET = 12;
+    private static final int S_LENGTH = 16;
+    private static final int S_ACCESS = 24;
+    private static final int S_EXPIRES = 32;
+
+    private static final int EMPTY = 0;
+    private static final int DELETED = -1;
+
+    // Record layout: magic, key length, metadata length, value length, key,
+    // metadata, value. The expiration time lives in the index so it can be
+    // refreshed without rewriting the record.
+    private static final int RECORD_HEADER_SIZE = 16;
+
+    private static final class Record {
+        private final long lastModified;
+        private final String etag;
+        private final byte[] value;
+
+        private Record(final long lastModified, final String etag, final byte[] value) {
+            this.lastModified = lastModified;
+            this.etag = etag;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Locks of a directory shared by the stores of this JVM. FileChannel
+     * locks are held by the whole JVM and can't overlap, so the stores take
+     * turns with a read write lock and the readers share one file lock.
+     */
+    private static final class DirectoryLock {
+        private final String path;
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private int users;
+        private FileChannel channel;
+        private FileLock sharedLock;
+        private int readers;
+
+        private DirectoryLock(final String path) {
+            this.path = path;
+        }
+
+        /**
+         * @return the channel of the lock file, reopened if it was closed by
+         *         an interrupted thread
+         */
+        private synchronized FileChannel getChannel() throws IOException {
+            if (channel == null || !channel.isOpen()) {
+                channel = new RandomAccessFile(new File(path, LOCK_FILE), "rw").getChannel();
+            }
+            return channel;
+        }
+
+        private void lockShared() throws IOException {
+            lock.readLock().lock();
+            boolean locked = false;
+            try {
+                synchronized (this) {
+                    if (readers == 0) {
+                        sharedLock = getChannel().lock(0, Long.MAX_VALUE, true);
+                    }
+                    readers++;
+                }
+                locked = true;
+            }
+            finally {
+                if (!locked) {
+                    lock.readLock().unlock();
+                }
+            }
+        }
+
+        private void unlockShared() {
+            try {
+                synchronized (this) {
+                    readers--;
+                    if (readers == 0 && sharedLock != null) {
+                        final FileLock released = sharedLock;
+                        sharedLock = null;
+                        if (released.isValid()) {
+                            released.release();
+                        }
+                    }
+                }
+            }
+            catch (final IOException ex) {
+                LOG.log(Level.WARNING, "Failed to release the tile store lock at " + path, ex);
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+
+    private static final Map<String, DirectoryLock> DIRECTORY_LOCKS = new HashMap<String, DirectoryLock>();
+
+    private final File directory;
+    private final DirectoryLock directoryLock;
+    private final ConcurrentMap<Integer, FileChannel> dataFiles = new ConcurrentHashMap<Integer, FileChannel>();
+    private final Set<ByteBuffer> pendingAccesses = new LinkedHashSet<ByteBuffer>();
+    private final ExecutorService maintenance;
+    private final AtomicBoolean maintenancePending = new AtomicBoolean();
+
+    private RandomAccessFile indexFile;
+    private MappedByteBuffer index;
+    private int indexId;
+    private long generation;
+    private volatile long maxSize;
+    private volatile boolean closed;
+
+    /**
+     * Opens (or creates) a store in the given directory with the default
+     * maximum size.
+     *
+     * @param directory directory holding the index and data files
+     * @throws IOException if the store can't be opened
+     */
+    public DiskTileStore(final File directory) throws IOException {
+        this(directory, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Opens (or creates) a store in the given directory.
+     *
+     * @param directory directory holding the index and data files
+     * @param maxSize maximum number of bytes of tile data to keep
+     * @throws IOException if the store can't be opened
+     */
+    public DiskTileStore(final File directory, final long maxSize) throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create the tile store directory " + directory);
+        }
+
+        this.directory = directory;
+        this.directoryLock = openDirectoryLock(directory);
+        this.maxSize = maxSize;
+
+        maintenance = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "DiskTileStore-maintenance");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+
+        try {
+            unlock(lock());
+        }
+        catch (final IOException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Returns the data stored for the given key, or null if it isn't stored.
+     *
+     * @param key the tile key, usually the tile url
+     * @return the stored bytes or null
+     * @throws IOException if the data can't be read
+     */
+    public byte[] get(final String key) throws IOException {
+        lockShared();
+        try {
+            return doGet(key.getBytes(UTF8));
+        }
+        finally {
+            unlockShared();
+        }
+    }
+
+    /**
+     * Returns the caching information stored for the given key, or null if it
+     * isn't stored.
+     *
+     * @param key the tile key, usually the tile url
+     * @return the stored metadata or null
+     * @throws IOException if the data can't be read
+     */
+    public TileMetadata getMetadata(final String key) throws IOException {
+        lockShared();
+        try {
+            final byte[] keyBytes = key.getBytes(UTF8);
+            final int slot = findSlot(keyBytes, hash(keyBytes));
+            if (slot < 0) {
+                return null;
+            }
+
+            final Record record = readRecord(slot, keyBytes, false);
+            if (record == null) {
+                return null;
+            }
+            return new TileMetadata(index.getLong(slotPosition(slot) + S_EXPIRES), record.lastModified,
+                    record.etag, true);
+        }
+        finally {
+            unlockShared();
+        }
+    }
+
+    /**
+     * Refreshes the caching information of a stored tile, for example after
+     * the server answered a conditional request with 304 (Not Modified). If
+     * the validators didn't change only the index is updated.
+     *
+     * @param key the tile key
+     * @param metadata the new metadata
+     * @return false if the tile isn't stored
+     * @throws IOException if the data can't be read or written
+     */
+    public boolean updateMetadata(final String key, final TileMetadata metadata) throws IOException {
+        final FileLock lock = lock();
+        try {
+            final byte[] keyBytes = key.getBytes(UTF8);
+            final int slot = findSlot(keyBytes, hash(keyBytes));
+            if (slot < 0) {
+                return false;
+            }
+
+            final Record record = readRecord(slot, keyBytes, false);
+            if (record == null) {
+                return false;
+            }
+            if (metadata.hasSameValidators(new TileMetadata(0, record.lastModified, record.etag, true))) {
+                index.putLong(slotPosition(slot) + S_EXPIRES, metadata.getExpires());
+                return true;
+            }
+
+            final byte[] value = doGet(keyBytes);
+            if (value == null) {
+                return false;
+            }
+            doPut(keyBytes, value, metadata);
+            return true;
+        }
+        finally {
+            unlock(lock);
+        }
+    }
+
+    /**
+     * Indicates if there is data stored for the given key.
+     *
+     * @param key the tile key
+     * @return true if the key is stored
+     */
+    public boolean contains(final String key) {
+        if (closed) {
+            return false;
+        }
+        try {
+            lockShared();
+            try {
+                final byte[] keyBytes = key.getBytes(UTF8);
+                return findSlot(keyBytes, hash(keyBytes)) >= 0;
+            }
+            finally {
+                unlockShared();
+            }
+        }
+        catch (final IOException ex) {
+            LOG.log(Level.WARNING, "Failed to look up a tile in " + directory, ex);
+            return false;
+        }
+    }
+
+    /**
+     * Stores the data for the given key, replacing any previous value.
+     *
+     * @param key the tile key, usually the tile url
+     * @param data the compressed tile data
+     * @throws IOException if the data can't be written
+     */
+    public void put(final String key, final byte[] data) throws IOException {
+        put(key, data, TileMetadata.PERMANENT);
+    }
+
+    /**
+     * Stores the data for the given key with its caching information,
+     * replacing any previous value.
+     *
+     * @param key the tile key, usually the tile url
+     * @param data the compressed tile data
+     * @param metadata the caching information of the tile
+     * @throws IOException if the data can't be written
+     */
+    public void put(final String key, final byte[] data, final TileMetadata metadata) throws IOException {
+        final FileLock lock = lock();
+        try {
+            doPut(key.getBytes(UTF8), data, metadata);
+        }
+        finally {
+            unlock(lock);
+        }
+    }
+
+    /**
+     * Removes the data stored for the given key.
+     *
+     * @param key the tile key
+     * @return true if the key was stored
+     * @throws IOException if the index can't be read
+     */
+    public boolean remove(final String key) throws IOException {
+        final FileLock lock = lock();
+        try {
+            final byte[] keyBytes = key.getBytes(UTF8);
+            final int slot = findSlot(keyBytes, hash(keyBytes));
+            if (slot < 0) {
+                return false;
+            }
+            deleteSlot(slot);
+            return true;
+        }
+        finally {
+            unlock(lock);
+        }
+    }
+
+    /**
+     * Removes all the stored tiles.
+     *
+     * @throws IOException if the files can't be deleted
+     */
+    public void clear() throws IOException {
+        final FileLock lock = lock();
+        try {
+            closeDataFiles();
+            for (final File file : listDataFiles()) {
+                if (!file.delete()) {
+                    LOG.log(Level.WARNING, "Can't delete " + file);
+                }
+            }
+            final int capacity = getCapacity();
+            index.clear();
+            for (int i = 0; i < index.capacity(); i++) {
+                index.put(i, (byte) 0);
+            }
+            initHeader(index, capacity);
+            publish(generation + 1, indexId);
+        }
+        finally {
+            unlock(lock);
+        }
+    }
+
+    /**
+     * @return the number of bytes of live tile data in the store
+     */
+    public long getSize() {
+        if (closed) {
+            return 0;
+        }
+        try {
+            lockShared();
+            try {
+                return liveBytes();
+            }
+            finally {
+                unlockShared();
+            }
+        }
+        catch (final IOException ex) {
+            LOG.log(Level.WARNING, "Failed to read the tile store index at " + directory, ex);
+            return 0;
+        }
+    }
+
+    /**
+     * @return the number of tiles in the store
+     */
+    public int getCount() {
+        if (closed) {
+            return 0;
+        }
+        try {
+            lockShared();
+            try {
+                return index.getInt(H_COUNT);
+            }
+            finally {
+                unlockShared();
+            }
+        }
+        catch (final IOException ex) {
+            LOG.log(Level.WARNING, "Failed to read the tile store index at " + directory, ex);
+            return 0;
+        }
+    }
+
+    /**
+     * @return the maximum number of bytes of tile data to keep
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Sets the maximum number of bytes of tile data to keep. If the store is
+     * bigger it will be shrunk in background.
+     *
+     * @param maxSize the new maximum size
+     */
+    public void setMaxSize(final long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        this.maxSize = maxSize;
+        if (!closed) {
+            scheduleMaintenance();
+        }
+    }
+
+    /**
+     * @return the directory holding the store files
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Evicts the least recently used tiles if the store is over its size
+     * limit and compacts the data files with too much dead space. This is
+     * done automatically in background, but can be forced calling this method.
+     *
+     * @throws IOException if the files can't be rewritten
+     */
+    public void compact() throws IOException {
+        final FileLock lock = lock();
+        try {
+            maintenancePending.set(false);
+            if (liveBytes() > maxSize) {
+                evict((long) (maxSize * EVICTION_TARGET));
+            }
+
+            final int writeFile = index.getInt(H_WRITE_FILE);
+            final Map<Integer, Long> liveBytes = new HashMap<Integer, Long>();
+            for (int slot = 0; slot < getCapacity(); slot++) {
+                final int fileId = index.getInt(slotPosition(slot) + S_FILE);
+                if (fileId > 0) {
+                    final Long live = liveBytes.get(fileId);
+                    final long length = index.getInt(slotPosition(slot) + S_LENGTH);
+                    liveBytes.put(fileId, live == null ? length : live + length);
+                }
+            }
+
+            boolean deleted = false;
+            for (final File file : listDataFiles()) {
+                final int fileId = getFileId(file);
+                if (fileId == writeFile) {
+                    continue;
+                }
+                final Long live = liveBytes.get(fileId);
+                if (live == null) {
+                    deleteDataFile(fileId, file);
+                    deleted = true;
+                }
+                else if (live < file.length() * COMPACTION_THRESHOLD) {
+                    compactFile(fileId, file);
+                    deleted = true;
+                }
+            }
+            if (deleted) {
+                // Other processes must drop their handles on the deleted files
+                publish(generation + 1, indexId);
+            }
+        }
+        finally {
+            unlock(lock);
+        }
+    }
+
+    /**
+     * Closes the store. Further calls will fail with an
+     * {@link IllegalStateException}. The files are left in place for the
+     * other processes sharing them.
+     */
+    public void close() {
+        if (!closed) {
+            try {
+                // Writes the pending access times
+                unlock(lock());
+            }
+            catch (final IOException ex) {
+                LOG.log(Level.WARNING, "Failed to update the tile store index at " + directory, ex);
+            }
+            catch (final IllegalStateException ex) {
+                // Already closed
+            }
+        }
+        directoryLock.lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            maintenance.shutdownNow();
+            closeDataFiles();
+            closeIndex();
+        }
+        finally {
+            directoryLock.lock.writeLock().unlock();
+        }
+        closeDirectoryLock(directoryLock);
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("The tile store is closed");
+        }
+    }
+
+    private void scheduleMaintenance() {
+        if (!maintenancePending.compareAndSet(false, true)) {
+            return;
+        }
+        maintenance.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!closed) {
+                        compact();
+                    }
+                }
+                catch (final IllegalStateException ex) {
+                    // Closed in the meantime
+                }
+                catch (final IOException ex) {
+                    LOG.log(Level.WARNING, "Failed to compact the tile store at " + directory, ex);
+                }
+            }
+        });
+    }
+
+    private byte[] doGet(final byte[] keyBytes) throws IOException {
+        final int slot = findSlot(keyBytes, hash(keyBytes));
+        if (slot < 0) {
+            return null;
+        }
+
+        final Record record = readRecord(slot, keyBytes, true);
+        if (record == null) {
+            return null;
+        }
+
+        if (directoryLock.lock.isWriteLockedByCurrentThread()) {
+            touch(slot);
+        }
+        else {
+            recordAccess(keyBytes);
+        }
+        return record.value;
+    }
+
+    private void doPut(final byte[] keyBytes, final byte[] data, final TileMetadata metadata) throws IOException {
+        final long hash = hash(keyBytes);
+
+        final byte[] etagBytes = metadata.getETag() == null ? new byte[0] : metadata.getETag().getBytes(UTF8);
+        final int metadataLength = 8 + 1 + etagBytes.length;
+        final int length = RECORD_HEADER_SIZE + keyBytes.length + metadataLength + data.length;
+        final int fileId = getWriteFile(length);
+        final FileChannel channel = getDataFile(fileId, true);
+        final int offset = (int) channel.size();
+
+        final ByteBuffer record = ByteBuffer.allocate(length);
+        record.putInt(RECORD_MAGIC);
+        record.putInt(keyBytes.length);
+        record.putInt(metadataLength);
+        record.putInt(data.length);
+        record.put(keyBytes);
+        record.putLong(metadata.getLastModified());
+        record.put((byte) (metadata.getETag() == null ? 0 : 1));
+        record.put(etagBytes);
+        record.put(data);
+        record.flip();
+        writeFully(channel, record, offset);
+
+        int slot = findSlot(keyBytes, hash);
+        if (slot >= 0) {
+            addLiveBytes(-index.getInt(slotPosition(slot) + S_LENGTH));
+        }
+        else {
+            ensureCapacity();
+            slot = findFreeSlot(hash);
+            if (index.getInt(slotPosition(slot) + S_FILE) == EMPTY) {
+                index.putInt(H_USED, index.getInt(H_USED) + 1);
+            }
+            index.putInt(H_COUNT, index.getInt(H_COUNT) + 1);
+        }
+
+        final int position = slotPosition(slot);
+        index.putLong(position + S_HASH, hash);
+        index.putInt(position + S_FILE, fileId);
+        index.putInt(position + S_OFFSET, offset);
+        index.putInt(position + S_LENGTH, length);
+        index.putLong(position + S_EXPIRES, metadata.getExpires());
+        touch(slot);
+        addLiveBytes(length);
+
+        if (liveBytes() > maxSize) {
+            scheduleMaintenance();
+        }
+    }
+
+    /* ==== locking === */
+
+    private static DirectoryLock openDirectoryLock(final File directory) throws IOException {
+        final String path = directory.getCanonicalPath();
+        synchronized (DIRECTORY_LOCKS) {
+            DirectoryLock lock = DIRECTORY_LOCKS.get(path);
+            if (lock == null) {
+                lock = new DirectoryLock(path);
+                DIRECTORY_LOCKS.put(path, lock);
+            }
+            lock.users++;
+            return lock;
+        }
+    }
+
+    private static void closeDirectoryLock(final DirectoryLock lock) {
+        synchronized (DIRECTORY_LOCKS) {
+            lock.users--;
+            if (lock.users > 0) {
+                return;
+            }
+            DIRECTORY_LOCKS.remove(lock.path);
+        }
+        synchronized (lock) {
+            if (lock.channel != null) {
+                try {
+                    lock.channel.close();
+                }
+                catch (final IOException ex) {
+                    LOG.log(Level.WARNING, "Failed to close the tile store lock", ex);
+                }
+                lock.channel = null;
+            }
+        }
+    }
+
+    /**
+     * Takes the exclusive lock on the store, shared with the other processes
+     * using the same directory, brings the index mapping up to date and
+     * writes the pending access times. The lock must be released with
+     * {@link #unlock(FileLock)}.
+     */
+    private FileLock lock() throws IOException {
+        directoryLock.lock.writeLock().lock();
+        FileLock lock = null;
+        boolean locked = false;
+        try {
+            ensureOpen();
+            lock = directoryLock.getChannel().lock();
+            synchronize();
+            flushAccesses();
+            locked = true;
+            return lock;
+        }
+        finally {
+            if (!locked) {
+                unlock(lock);
+            }
+        }
+    }
+
+    private void unlock(final FileLock lock) {
+        try {
+            if (lock != null && lock.isValid()) {
+                lock.release();
+            }
+        }
+        catch (final IOException ex) {
+            LOG.log(Level.WARNING, "Failed to release the tile store lock at " + directory, ex);
+        }
+        finally {
+            directoryLock.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Takes the shared lock on the store for a lookup, which must not write
+     * to the files. If the index mapping is out of date it is updated under
+     * the exclusive lock first. The lock must be released with
+     * {@link #unlockShared()}.
+     */
+    private void lockShared() throws IOException {
+        while (true) {
+            directoryLock.lockShared();
+            boolean locked = false;
+            try {
+                ensureOpen();
+                if (isSynchronized()) {
+                    locked = true;
+                    return;
+                }
+            }
+            finally {
+                if (!locked) {
+                    directoryLock.unlockShared();
+                }
+            }
+            unlock(lock());
+        }
+    }
+
+    private void unlockShared() {
+        directoryLock.unlockShared();
+    }
+
+    /**
+     * Indicates if the mapped index is the one published in the lock file.
+     */
+    private boolean isSynchronized() throws IOException {
+        if (index == null) {
+            return false;
+        }
+        final ByteBuffer state = ByteBuffer.allocate(LOCK_STATE_SIZE);
+        if (!readFully(directoryLock.getChannel(), state, 0)) {
+            return false;
+        }
+        state.flip();
+        return state.getInt() == LOCK_MAGIC && state.getLong() == generation && state.getInt() == indexId;
+    }
+
+    /**
+     * Remembers a lookup made under the shared lock, its access time is
+     * written with the next change.
+     */
+    private void recordAccess(final byte[] keyBytes) {
+        final ByteBuffer key = ByteBuffer.wrap(keyBytes);
+        final int pending;
+        synchronized (pendingAccesses) {
+            // Moved to the end, the most recent access is written last
+            pendingAccesses.remove(key);
+            pendingAccesses.add(key);
+            pending = pendingAccesses.size();
+        }
+        if (pending == MAX_PENDING_ACCESSES) {
+            maintenance.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (!closed) {
+                            unlock(lock());
+                        }
+                    }
+                    catch (final IllegalStateException ex) {
+                        // Closed in the meantime
+                    }
+                    catch (final IOException ex) {
+                        LOG.log(Level.WARNING, "Failed to update the tile store index at " + directory, ex);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes the access times of the lookups made under the shared lock. Must
+     * be called with the exclusive lock held.
+     */
+    private void flushAccesses() throws IOException {
+        final ByteBuffer[] keys;
+        synchronized (pendingAccesses) {
+            if (pendingAccesses.isEmpty()) {
+                return;
+            }
+            keys = pendingAccesses.toArray(new ByteBuffer[pendingAccesses.size()]);
+            pendingAccesses.clear();
+        }
+        for (final ByteBuffer key : keys) {
+            final byte[] keyBytes = key.array();
+            final int slot = findSlot(keyBytes, hash(keyBytes));
+            if (slot >= 0) {
+                touch(slot);
+            }
+        }
+    }
+
+    /**
+     * Reads the state published in the lock file and remaps the index or
+     * drops the data file handles if another process changed them.
+     */
+    private void synchronize() throws IOException {
+        long storeGeneration = 0;
+        int storeIndexId = 0;
+        final ByteBuffer state = ByteBuffer.allocate(LOCK_STATE_SIZE);
+        if (readFully(directoryLock.getChannel(), state, 0)) {
+            state.flip();
+            if (state.getInt() == LOCK_MAGIC) {
+                storeGeneration = state.getLong();
+                storeIndexId = state.getInt();
+            }
+        }
+        if (index != null && storeGeneration == generation && storeIndexId == indexId) {
+            return;
+        }
+
+        closeDataFiles();
+        if (storeIndexId != indexId || index == null) {
+            closeIndex();
+            if (storeIndexId == 0 || !mapIndex(storeIndexId)) {
+                if (storeIndexId != 0) {
+                    LOG.log(Level.WARNING, "Discarding unreadable tile store index at " + directory);
+                }
+                for (final File data : listDataFiles()) {
+                    data.delete();
+                }
+                createIndex(storeIndexId + 1, INITIAL_CAPACITY);
+                publish(storeGeneration + 1, storeIndexId + 1);
+                deleteStaleIndexes();
+                return;
+            }
+            indexId = storeIndexId;
+        }
+        generation = storeGeneration;
+    }
+
+    /**
+     * Makes a new index or generation visible to the other processes. Must be
+     * called with the lock held.
+     */
+    private void publish(final long newGeneration, final int newIndexId) throws IOException {
+        final ByteBuffer state = ByteBuffer.allocate(LOCK_STATE_SIZE);
+        state.putInt(LOCK_MAGIC);
+        state.putLong(newGeneration);
+        state.putInt(newIndexId);
+        state.flip();
+        writeFully(directoryLock.getChannel(), state, 0);
+        generation = newGeneration;
+        indexId = newIndexId;
+    }
+
+    /* ==== index handling === */
+
+    private File indexFile(final int id) {
+        return new File(directory, INDEX_FILE_PREFIX + id + INDEX_FILE_SUFFIX);
+    }
+
+    private boolean mapIndex(final int id) throws IOException {
+        final File file = indexFile(id);
+        if (!file.exists() || file.length() < HEADER_SIZE) {
+            return false;
+        }
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        final int capacity;
+        if (readFully(raf.getChannel(), header, 0)) {
+            capacity = header.getInt(H_CAPACITY);
+            if (header.getInt(H_MAGIC) == INDEX_MAGIC && header.getInt(H_VERSION) == VERSION && capacity > 0
+                    && raf.length() == indexSize(capacity)) {
+                indexFile = raf;
+                index = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexSize(capacity));
+                return true;
+            }
+        }
+        raf.close();
+        return false;
+    }
+
+    private void createIndex(final int id, final int capacity) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(indexFile(id), "rw");
+        raf.setLength(indexSize(capacity));
+        indexFile = raf;
+        index = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexSize(capacity));
+        initHeader(index, capacity);
+    }
+
+    private void closeIndex() {
+        if (index != null) {
+            index.force();
+            index = null;
+        }
+        if (indexFile != null) {
+            try {
+                indexFile.close();
+            }
+            catch (final IOException ex) {
+                LOG.log(Level.WARNING, "Failed to close the tile store index", ex);
+            }
+            indexFile = null;
+        }
+    }
+
+    /**
+     * Deletes the replaced index files. Files still mapped by other processes
+     * may not be deletable on some platforms, they are retried next time.
+     */
+    private void deleteStaleIndexes() {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        final String current = indexFile(indexId).getName();
+        for (final File file : files) {
+            final String name = file.getName();
+            if (name.startsWith(INDEX_FILE_PREFIX) && name.endsWith(INDEX_FILE_SUFFIX) && !name.equals(current)) {
+                file.delete();
+            }
+        }
+    }
+
+    private static void initHeader(final ByteBuffer buffer, final int capacity) {
+        buffer.putInt(H_MAGIC, INDEX_MAGIC);
+        buffer.putInt(H_VERSION, VERSION);
+        buffer.putInt(H_CAPACITY, capacity);
+        buffer.putInt(H_COUNT, 0);
+        buffer.putInt(H_USED, 0);
+        buffer.putInt(H_WRITE_FILE, 1);
+        buffer.putLong(H_LIVE_BYTES, 0);
+        buffer.putLong(H_CLOCK, 0);
+    }
+
+    private static long indexSize(final int capacity) {
+        return HEADER_SIZE + (long) capacity * SLOT_SIZE;
+    }
+
+    private int getCapacity() {
+        return index.getInt(H_CAPACITY);
+    }
+
+    private static int slotPosition(final int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private int findSlot(final byte[] keyBytes, final long hash) throws IOException {
+        final int capacity = getCapacity();
+        int slot = (int) (hash & (capacity - 1));
+        for (int probes = 0; probes < capacity; probes++) {
+            final int position = slotPosition(slot);
+            final int fileId = index.getInt(position + S_FILE);
+            if (fileId == EMPTY) {
+                return -1;
+            }
+            if (fileId != DELETED && index.getLong(position + S_HASH) == hash
+                    && keyMatches(fileId, index.getInt(position + S_OFFSET), keyBytes)) {
+                return slot;
+            }
+            slot = (slot + 1) & (capacity - 1);
+        }
+        return -1;
+    }
+
+    private int findFreeSlot(final long hash) {
+        final int capacity = getCapacity();
+        int slot = (int) (hash & (capacity - 1));
+        while (index.getInt(slotPosition(slot) + S_FILE) > 0) {
+            slot = (slot + 1) & (capacity - 1);
+        }
+        return slot;
+    }
+
+    private void deleteSlot(final int slot) {
+        final int position = slotPosition(slot);
+        addLiveBytes(-index.getInt(position + S_LENGTH));
+        index.putInt(position + S_FILE, DELETED);
+        index.putInt(position + S_LENGTH, 0);
+        index.putInt(H_COUNT, index.getInt(H_COUNT) - 1);
+    }
+
+    private void touch(final int slot) {
+        final long clock = index.getLong(H_CLOCK) + 1;
+        index.putLong(H_CLOCK, clock);
+        index.putLong(slotPosition(slot) + S_ACCESS, clock);
+    }
+
+    private long liveBytes() {
+        return index.getLong(H_LIVE_BYTES);
+    }
+
+    private void addLiveBytes(final long delta) {
+        index.putLong(H_LIVE_BYTES, index.getLong(H_LIVE_BYTES) + delta);
+    }
+
+    private void ensureCapacity() throws IOException {
+        final int capacity = getCapacity();
+        if (index.getInt(H_USED) + 1 <= capacity * MAX_LOAD_FACTOR) {
+            return;
+        }
+        // Grow only if the live entries need it, otherwise just drop the
+        // tombstones
+        final int newCapacity = index.getInt(H_COUNT) + 1 > capacity * MAX_LOAD_FACTOR / 2 ? capacity * 2 : capacity;
+        rehash(newCapacity);
+    }
+
+    private void rehash(final int newCapacity) throws IOException {
+        // The new index is written to a new file and published through the
+        // lock file, the other processes still map the old one
+        final int newId = indexId + 1;
+        final RandomAccessFile newFile = new RandomAccessFile(indexFile(newId), "rw");
+        newFile.setLength(indexSize(newCapacity));
+        final MappedByteBuffer newIndex = newFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                indexSize(newCapacity));
+
+        initHeader(newIndex, newCapacity);
+        newIndex.putInt(H_WRITE_FILE, index.getInt(H_WRITE_FILE));
+        newIndex.putLong(H_LIVE_BYTES, index.getLong(H_LIVE_BYTES));
+        newIndex.putLong(H_CLOCK, index.getLong(H_CLOCK));
+
+        int count = 0;
+        for (int slot = 0; slot < getCapacity(); slot++) {
+            final int position = slotPosition(slot);
+            if (index.getInt(position + S_FILE) <= 0) {
+                continue;
+            }
+            final long hash = index.getLong(position + S_HASH);
+            int target = (int) (hash & (newCapacity - 1));
+            while (newIndex.getInt(slotPosition(target) + S_FILE) != EMPTY) {
+                target = (target + 1) & (newCapacity - 1);
+            }
+            for (int i = 0; i < SLOT_SIZE; i++) {
+                newIndex.put(slotPosition(target) + i, index.get(position + i));
+            }
+            count++;
+        }
+        newIndex.putInt(H_COUNT, count);
+        newIndex.putInt(H_USED, count);
+        newIndex.force();
+
+        closeIndex();
+        indexFile = newFile;
+        index = newIndex;
+        publish(generation + 1, newId);
+        deleteStaleIndexes();
+    }
+
+    /* ==== eviction and compaction === */
+
+    private void evict(final long targetSize) {
+        final List<long[]> entries = new ArrayList<long[]>(index.getInt(H_COUNT));
+        for (int slot = 0; slot < getCapacity(); slot++) {
+            final int position = slotPosition(slot);
+            if (index.getInt(position + S_FILE) > 0) {
+                entries.add(new long[] { index.getLong(position + S_ACCESS), slot });
+            }
+        }
+
+        final long[][] sorted = entries.toArray(new long[entries.size()][]);
+        Arrays.sort(sorted, new Comparator<long[]>() {
+            @Override
+            public int compare(final long[] o1, final long[] o2) {
+                return o1[0] < o2[0] ? -1 : o1[0] == o2[0] ? 0 : 1;
+            }
+        });
+
+        int evicted = 0;
+        for (int i = 0; i < sorted.length && liveBytes() > targetSize; i++) {
+            deleteSlot((int) sorted[i][1]);
+            evicted++;
+        }
+        LOG.log(Level.FINE, "Evicted " + evicted + " tiles from " + directory);
+    }
+
+    private void compactFile(final int fileId, final File file) throws IOException {
+        for (int slot = 0; slot < getCapacity(); slot++) {
+            final int position = slotPosition(slot);
+            if (index.getInt(position + S_FILE) != fileId) {
+                continue;
+            }
+
+            final int length = index.getInt(position + S_LENGTH);
+            final ByteBuffer record = ByteBuffer.allocate(length);
+            readFully(getDataFile(fileId, false), record, index.getInt(position + S_OFFSET));
+            record.flip();
+
+            final int targetId = getWriteFile(length);
+            final FileChannel target = getDataFile(targetId, true);
+            final int offset = (int) target.size();
+            writeFully(target, record, offset);
+
+            index.putInt(position + S_FILE, targetId);
+            index.putInt(position + S_OFFSET, offset);
+        }
+        deleteDataFile(fileId, file);
+    }
+
+    /* ==== data files === */
+
+    private int getWriteFile(final int length) throws IOException {
+        int fileId = index.getInt(H_WRITE_FILE);
+        final FileChannel channel = getDataFile(fileId, true);
+        if (channel.size() > 0 && channel.size() + length > DATA_FILE_LIMIT) {
+            fileId = nextFileId(fileId);
+            index.putInt(H_WRITE_FILE, fileId);
+        }
+        return fileId;
+    }
+
+    private int nextFileId(final int current) {
+        int fileId = current + 1;
+        while (dataFile(fileId).exists()) {
+            fileId++;
+        }
+        return fileId;
+    }
+
+    private File dataFile(final int fileId) {
+        return new File(directory, DATA_FILE_PREFIX + fileId + DATA_FILE_SUFFIX);
+    }
+
+    private static int getFileId(final File file) {
+        final String name = file.getName();
+        return Integer.parseInt(name.substring(DATA_FILE_PREFIX.length(), name.length() - DATA_FILE_SUFFIX.length()));
+    }
+
+    private List<File> listDataFiles() {
+        final List<File> result = new ArrayList<File>();
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                final String name = file.getName();
+                if (name.startsWith(DATA_FILE_PREFIX) && name.endsWith(DATA_FILE_SUFFIX)) {
+                    try {
+                        getFileId(file);
+                        result.add(file);
+                    }
+                    catch (final NumberFormatException ex) {
+                        // Not one of our files
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Opens a data file. The lookups running under the shared lock may open
+     * the same file at once, only one of the channels is kept.
+     */
+    private FileChannel getDataFile(final int fileId, final boolean create) throws IOException {
+        FileChannel channel = dataFiles.get(fileId);
+        if (channel != null && !channel.isOpen()) {
+            // Closed by an interrupted thread
+            dataFiles.remove(fileId, channel);
+            channel = null;
+        }
+        if (channel == null) {
+            final File file = dataFile(fileId);
+            if (!create && !file.exists()) {
+                return null;
+            }
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            final FileChannel existing = dataFiles.putIfAbsent(fileId, channel);
+            if (existing != null) {
+                channel.close();
+                channel = existing;
+            }
+        }
+        return channel;
+    }
+
+    private void deleteDataFile(final int fileId, final File file) throws IOException {
+        final FileChannel channel = dataFiles.remove(fileId);
+        if (channel != null) {
+            channel.close();
+        }
+        if (!file.delete()) {
+            LOG.log(Level.WARNING, "Can't delete " + file);
+        }
+    }
+
+    private void closeDataFiles() {
+        for (final FileChannel channel : dataFiles.values()) {
+            try {
+                channel.close();
+            }
+            catch (final IOException ex) {
+                LOG.log(Level.WARNING, "Failed to close a tile store data file", ex);
+            }
+        }
+        dataFiles.clear();
+    }
+
+    private boolean keyMatches(final int fileId, final int offset, final byte[] keyBytes) throws IOException {
+        final FileChannel channel = getDataFile(fileId, false);
+        if (channel == null) {
+            return false;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + keyBytes.length);
+        if (!readFully(channel, buffer, offset)) {
+            return false;
+        }
+        buffer.flip();
+        if (buffer.getInt() != RECORD_MAGIC || buffer.getInt() != keyBytes.length) {
+            return false;
+        }
+        buffer.position(RECORD_HEADER_SIZE);
+        for (final byte b : keyBytes) {
+            if (buffer.get() != b) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the record of an index slot. If the record is damaged or its data
+     * file is gone the slot is deleted and null is returned.
+     */
+    private Record readRecord(final int slot, final byte[] keyBytes, final boolean withValue) throws IOException {
+        final int position = slotPosition(slot);
+        final int length = index.getInt(position + S_LENGTH);
+        final FileChannel channel = getDataFile(index.getInt(position + S_FILE), false);
+
+        Record result = null;
+        if (channel != null) {
+            final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            final long offset = index.getInt(position + S_OFFSET);
+            if (readFully(channel, header, offset)) {
+                header.flip();
+                final int magic = header.getInt();
+                final int keyLength = header.getInt();
+                final int metadataLength = header.getInt();
+                final int valueLength = header.getInt();
+                if (magic == RECORD_MAGIC && keyLength == keyBytes.length && metadataLength >= 9 && valueLength >= 0
+                        && length == RECORD_HEADER_SIZE + keyLength + metadataLength + valueLength) {
+                    final ByteBuffer body = ByteBuffer.allocate(metadataLength + (withValue ? valueLength : 0));
+                    if (readFully(channel, body, offset + RECORD_HEADER_SIZE + keyLength)) {
+                        body.flip();
+                        final long lastModified = body.getLong();
+                        final boolean hasETag = body.get() != 0;
+                        final byte[] etag = new byte[metadataLength - 9];
+                        body.get(etag);
+                        byte[] value = null;
+                        if (withValue) {
+                            value = new byte[valueLength];
+                            body.get(value);
+                        }
+                        result = new Record(lastModified, hasETag ? new String(etag, UTF8) : null, value);
+                    }
+                }
+            }
+        }
+
+        if (result == null && directoryLock.lock.isWriteLockedByCurrentThread()) {
+            // The data file is damaged or gone, forget the entry. Lookups
+            // leave it to the next change.
+            deleteSlot(slot);
+        }
+        return result;
+    }
+
+    private static boolean readFully(final FileChannel channel, final ByteBuffer buffer, final long position)
+            throws IOException {
+        long current = position;
+        while (buffer.hasRemaining()) {
+            final int n = channel.read(buffer, current);
+            if (n < 0) {
+                return false;
+            }
+            current += n;
+        }
+        return true;
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer, final long position)
+            throws IOException {
+        long current = position;
+        while (buffer.hasRemaining()) {
+            current += channel.write(buffer, current);
+        }
+    }
+
+    /**
+     * 64 bit FNV-1a hash. Zero is never returned.
+     */
+    private static long hash(final byte[] bytes) {
+        long hash = 0xcbf29ce484222325L;
+        for (final byte b : bytes) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+}
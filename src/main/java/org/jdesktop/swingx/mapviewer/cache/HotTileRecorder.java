@@ -0,0 +1,243 @@
+package org.jdesktop.swingx.mapviewer.cache;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records which tiles are used the most, so the next session can load them
+ * before the first paint.
+ * <p>
+ * Every use of a tile adds one to its score, and scores decay with a
+ * configurable half-life, so the ranking mixes frequency and recency. The
+ * best tiles are saved to a small text file with {@link #save(File)} and
+ * read back with {@link #load(File)}.
+ * </p>
+ * This class is thread safe.
+ */
+public class HotTileRecorder {
+    private static final Logger LOG = Logger.getLogger(HotTileRecorder.class.getName());
+
+    public static final int DEFAULT_MAX_SAVED = 512;
+    public static final long DEFAULT_HALF_LIFE = 60L * 60 * 1000;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final class Entry {
+        private double score;
+        private long time;
+
+        private Entry(final double score, final long time) {
+            this.score = score;
+            this.time = time;
+        }
+    }
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private final int maxSaved;
+    private final long halfLife;
+    private Timer timer;
+
+    public HotTileRecorder() {
+        this(DEFAULT_MAX_SAVED, DEFAULT_HALF_LIFE);
+    }
+
+    /**
+     * @param maxSaved maximum number of tiles to save
+     * @param halfLife time in milliseconds for a score to halve
+     */
+    public HotTileRecorder(final int maxSaved, final long halfLife) {
+        if (maxSaved <= 0 || halfLife <= 0) {
+            throw new IllegalArgumentException("maxSaved and halfLife must be positive");
+        }
+        this.maxSaved = maxSaved;
+        this.halfLife = halfLife;
+    }
+
+    /**
+     * Records a use of a tile.
+     *
+     * @param key the tile key, usually the tile url
+     */
+    public void record(final String key) {
+        final long now = System.currentTimeMillis();
+        synchronized (entries) {
+            final Entry entry = entries.get(key);
+            if (entry == null) {
+                entries.put(key, new Entry(1, now));
+                if (entries.size() > maxSaved * 4) {
+                    trim(maxSaved * 2, now);
+                }
+            }
+            else {
+                entry.score = decay(entry, now) + 1;
+                entry.time = now;
+            }
+        }
+    }
+
+    /**
+     * @return the keys of the hottest tiles, best first
+     */
+    public List<String> getHotTiles() {
+        final long now = System.currentTimeMillis();
+        synchronized (entries) {
+            final List<String> keys = rank(now);
+            return new ArrayList<String>(keys.subList(0, Math.min(maxSaved, keys.size())));
+        }
+    }
+
+    /**
+     * Saves the hottest tiles to a file.
+     *
+     * @param file the file to write
+     * @throws IOException if the file can't be written
+     */
+    public void save(final File file) throws IOException {
+        final long now = System.currentTimeMillis();
+        final StringBuilder content = new StringBuilder();
+        synchronized (entries) {
+            final List<String> keys = rank(now);
+            for (int i = 0; i < keys.size() && i < maxSaved; i++) {
+                content.append(decay(entries.get(keys.get(i)), now)).append('\t').append(keys.get(i)).append('\n');
+            }
+        }
+
+        // Written aside and moved, so a crash never leaves a truncated file
+        final File tmp = new File(file.getPath() + ".tmp");
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), UTF8));
+        try {
+            writer.write(content.toString());
+        }
+        finally {
+            writer.close();
+        }
+        if (file.exists() && !file.delete() || !tmp.renameTo(file)) {
+            throw new IOException("Can't replace " + file);
+        }
+    }
+
+    /**
+     * Reads the tiles saved by a previous session and merges them into this
+     * recorder, so their scores carry on.
+     *
+     * @param file the file to read
+     * @return the saved keys, best first. Empty if the file doesn't exist.
+     * @throws IOException if the file can't be read
+     */
+    public List<String> load(final File file) throws IOException {
+        final List<String> keys = new ArrayList<String>();
+        if (!file.exists()) {
+            return keys;
+        }
+
+        final long now = System.currentTimeMillis();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final int tab = line.indexOf('\t');
+                if (tab <= 0) {
+                    continue;
+                }
+                final double score;
+                try {
+                    score = Double.parseDouble(line.substring(0, tab));
+                }
+                catch (final NumberFormatException ex) {
+                    continue;
+                }
+                final String key = line.substring(tab + 1);
+                keys.add(key);
+                synchronized (entries) {
+                    if (!entries.containsKey(key)) {
+                        entries.put(key, new Entry(score, now));
+                    }
+                }
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return keys;
+    }
+
+    /**
+     * Saves the hottest tiles periodically and when the JVM exits.
+     *
+     * @param file the file to write
+     * @param period time in milliseconds between saves
+     */
+    public synchronized void saveAutomatically(final File file, final long period) {
+        if (timer != null) {
+            timer.cancel();
+        }
+        else {
+            Runtime.getRuntime().addShutdownHook(new Thread("HotTileRecorder-save") {
+                @Override
+                public void run() {
+                    saveQuietly(file);
+                }
+            });
+        }
+        timer = new Timer("HotTileRecorder", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                saveQuietly(file);
+            }
+        }, period, period);
+    }
+
+    private void saveQuietly(final File file) {
+        try {
+            save(file);
+        }
+        catch (final IOException ex) {
+            LOG.log(Level.WARNING, "Failed to save the hot tiles to " + file, ex);
+        }
+    }
+
+    private double decay(final Entry entry, final long now) {
+        return entry.score * Math.pow(0.5, (double) (now - entry.time) / halfLife);
+    }
+
+    private List<String> rank(final long now) {
+        final Map<String, Double> scores = new HashMap<String, Double>(entries.size() * 2);
+        for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+            scores.put(entry.getKey(), decay(entry.getValue(), now));
+        }
+        final List<String> keys = new ArrayList<String>(scores.keySet());
+        Collections.sort(keys, new Comparator<String>() {
+            @Override
+            public int compare(final String o1, final String o2) {
+                return Double.compare(scores.get(o2), scores.get(o1));
+            }
+        });
+        return keys;
+    }
+
+    private void trim(final int size, final long now) {
+        final List<String> keys = rank(now);
+        for (int i = size; i < keys.size(); i++) {
+            entries.remove(keys.get(i));
+        }
+    }
+}
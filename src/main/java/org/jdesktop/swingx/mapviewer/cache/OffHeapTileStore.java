@@ -0,0 +1,172 @@
+package org.jdesktop.swingx.mapviewer.cache;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Keeps compressed tiles outside of the Java heap, in a direct buffer used
+ * as a ring: tiles are appended after the previous one and the oldest tiles
+ * are overwritten when the buffer is full. This tier sits between the heap
+ * caches and the disk, it doesn't add to the garbage collector work and is
+ * much faster than the disk.
+ * <p>
+ * The buffer is allocated on the first write, a capacity of zero disables the
+ * store. This class is thread safe.
+ * </p>
+ */
+public class OffHeapTileStore {
+
+    private static final class Entry {
+        private final String key;
+        private final int position;
+        private final int length;
+
+        private Entry(final String key, final int position, final int length) {
+            this.key = key;
+            this.position = position;
+            this.length = length;
+        }
+    }
+
+    private final int capacity;
+    private final Map<String, Entry> index = new HashMap<String, Entry>();
+    private final LinkedList<Entry> order = new LinkedList<Entry>();
+    private ByteBuffer buffer;
+    private int writePosition;
+    private long usage;
+
+    /**
+     * @param capacity size in bytes of the buffer
+     */
+    public OffHeapTileStore(final int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("The capacity can't be negative");
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns a copy of the data stored for the given key.
+     *
+     * @param key the tile key
+     * @return the data, or null if it isn't stored
+     */
+    public synchronized byte[] get(final String key) {
+        final Entry entry = index.get(key);
+        if (entry == null) {
+            return null;
+        }
+        final byte[] data = new byte[entry.length];
+        final ByteBuffer view = buffer.duplicate();
+        view.position(entry.position);
+        view.get(data);
+        return data;
+    }
+
+    /**
+     * Indicates if there is data stored for the given key.
+     *
+     * @param key the tile key
+     * @return true if the key is stored
+     */
+    public synchronized boolean contains(final String key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * Stores the data for the given key, overwriting the oldest tiles if
+     * there is no room left.
+     *
+     * @param key the tile key
+     * @param data the compressed tile data
+     * @return false if the data is bigger than the store
+     */
+    public synchronized boolean put(final String key, final byte[] data) {
+        if (data.length > capacity || data.length == 0) {
+            return false;
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(capacity);
+        }
+        remove(key);
+
+        // The entries after the write position are the oldest ones, in
+        // order, so freeing room only means dropping the head of the queue
+        final boolean wrap = writePosition + data.length > capacity;
+        final int position = wrap ? 0 : writePosition;
+        while (!order.isEmpty()) {
+            final Entry head = order.getFirst();
+            final boolean inTail = wrap && head.position >= writePosition;
+            final boolean overlaps = head.position < position + data.length
+                    && head.position + head.length > position;
+            if (!inTail && !overlaps) {
+                break;
+            }
+            order.removeFirst();
+            if (index.get(head.key) == head) {
+                index.remove(head.key);
+                usage -= head.length;
+            }
+        }
+
+        final ByteBuffer view = buffer.duplicate();
+        view.position(position);
+        view.put(data);
+
+        final Entry entry = new Entry(key, position, data.length);
+        index.put(key, entry);
+        order.addLast(entry);
+        writePosition = position + data.length;
+        usage += data.length;
+        return true;
+    }
+
+    /**
+     * Removes the data stored for the given key. The space is reclaimed when
+     * the ring comes back to it.
+     *
+     * @param key the tile key
+     * @return true if the key was stored
+     */
+    public synchronized boolean remove(final String key) {
+        final Entry entry = index.remove(key);
+        if (entry == null) {
+            return false;
+        }
+        usage -= entry.length;
+        return true;
+    }
+
+    /**
+     * Removes all the stored tiles. The buffer is kept.
+     */
+    public synchronized void clear() {
+        index.clear();
+        order.clear();
+        writePosition = 0;
+        usage = 0;
+    }
+
+    /**
+     * @return the number of bytes of live tile data
+     */
+    public synchronized long getSize() {
+        return usage;
+    }
+
+    /**
+     * @return the number of stored tiles
+     */
+    public synchronized int getCount() {
+        return index.size();
+    }
+
+    /**
+     * @return the size in bytes of the buffer
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,414 @@
+package org.jdesktop.swingx.mapviewer.cache;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jdesktop.swingx.mapviewer.util.ImageCache;
+import org.jdesktop.swingx.mapviewer.util.MemoryGovernor;
+
+/**
+ * The tile cache of a factory, made of four tiers from the fastest to the
+ * biggest:
+ * <ol>
+ * <li>decoded images in the heap and</li>
+ * <li>compressed tiles in the heap, both kept by an {@link ImageCache}</li>
+ * <li>compressed tiles out of the heap, in an {@link OffHeapTileStore}</li>
+ * <li>compressed tiles on disk, in a {@link DiskTileStore}</li>
+ * </ol>
+ * Lookups read through the tiers and promote what they find to the heap
+ * tiers. Tiles evicted from the compressed heap tier are demoted to the
+ * off-heap tier, and new tiles are written through to the disk. Every tier
+ * counts its hits and misses.
+ * <p>
+ * The caching information of the tiles in the heap tiers is kept with them,
+ * so their freshness is checked with {@link #getMetadata(URI)} without
+ * reading the disk.
+ * </p>
+ * <p>
+ * The lower tiers are slow, so {@link #acquire(URI, String)} is meant to be
+ * called from the loading threads of the factory. The painting code only
+ * uses {@link #peek(URI)}, which never leaves the decoded tier.
+ * </p>
+ * This class is thread safe.
+ */
+public class TieredTileCache {
+    private static final Logger LOG = Logger.getLogger(TieredTileCache.class.getName());
+
+    /**
+     * The tiers of the cache.
+     */
+    public enum Tier {
+        DECODED, COMPRESSED, OFF_HEAP, DISK
+    }
+
+    private final AtomicLongArray hits = new AtomicLongArray(Tier.values().length);
+    private final AtomicLongArray misses = new AtomicLongArray(Tier.values().length);
+    private final OffHeapTileStore offHeapStore;
+    private final Map<URI, TileMetadata> metadata = new ConcurrentHashMap<URI, TileMetadata>();
+    private volatile ImageCache imageCache;
+    private volatile DiskTileStore diskStore;
+
+    /**
+     * Creates a cache with the default budgets and without disk tier.
+     */
+    public TieredTileCache() {
+        this(new TileCacheConfig());
+    }
+
+    /**
+     * Creates a cache with the given budgets. The disk tier is only opened by
+     * {@link #open(TileCacheConfig)}, this constructor ignores it.
+     *
+     * @param config the budgets
+     */
+    public TieredTileCache(final TileCacheConfig config) {
+        final ImageCache cache = new ImageCache();
+        cache.setUncompressedCacheSize(config.getDecodedSize());
+        cache.setCompressedCacheSize(config.getCompressedSize());
+        cache.setStorageMode(config.getStorageMode());
+        offHeapStore = new OffHeapTileStore(config.getOffHeapSize());
+        setImageCache(cache);
+    }
+
+    /**
+     * Creates a cache with the given budgets, opening its disk tier if a
+     * directory is configured.
+     *
+     * @param config the budgets
+     * @return the new cache
+     * @throws IOException if the disk tier can't be opened
+     */
+    public static TieredTileCache open(final TileCacheConfig config) throws IOException {
+        final TieredTileCache cache = new TieredTileCache(config);
+        if (config.getDiskDirectory() != null) {
+            cache.setDiskStore(new DiskTileStore(config.getDiskDirectory(), config.getDiskSize()));
+        }
+        return cache;
+    }
+
+    /**
+     * Returns the image of a tile if it is in the decoded tier. This never
+     * blocks on I/O or decoding. The caller holds a reference to the image in
+     * the {@link org.jdesktop.swingx.mapviewer.util.ImagePool} and must
+     * release it when done.
+     *
+     * @param uri the full URI of the tile
+     * @return the image, or null
+     */
+    public BufferedImage peek(final URI uri) {
+        final BufferedImage img = imageCache.peek(uri);
+        count(Tier.DECODED, img != null);
+        return img;
+    }
+
+    /**
+     * Looks a tile up in every tier, promoting it to the heap tiers when
+     * found in a lower one. The caller holds a reference to the image in the
+     * {@link org.jdesktop.swingx.mapviewer.util.ImagePool} and must release
+     * it when done.
+     *
+     * @param uri the full URI of the tile
+     * @param key the key of the tile in the lower tiers, usually its url
+     * @return the image, or null if no tier has the tile
+     * @throws IOException if the tile can't be decoded
+     */
+    public BufferedImage acquire(final URI uri, final String key) throws IOException {
+        return acquire(uri, key, null);
+    }
+
+    /**
+     * Same as {@link #acquire(URI, String)}, counting the savings of the
+     * deduplication of the image cache in the given statistics too.
+     *
+     * @param uri the full URI of the tile
+     * @param key the key of the tile in the lower tiers, usually its url
+     * @param statistics the statistics of the caller, or null
+     * @return the image, or null if no tier has the tile
+     * @throws IOException if the tile can't be decoded
+     */
+    public BufferedImage acquire(final URI uri, final String key, final ImageCache.Statistics statistics)
+            throws IOException {
+        final ImageCache cache = imageCache;
+        BufferedImage img = peek(uri);
+        if (img != null) {
+            return img;
+        }
+
+        if (cache.contains(uri)) {
+            img = cache.acquire(uri);
+            count(Tier.COMPRESSED, img != null);
+            if (img != null) {
+                return img;
+            }
+        }
+        else {
+            count(Tier.COMPRESSED, false);
+        }
+
+        byte[] data = offHeapStore.get(key);
+        count(Tier.OFF_HEAP, data != null);
+        if (data == null) {
+            final DiskTileStore store = diskStore;
+            if (store != null) {
+                try {
+                    data = store.get(key);
+                }
+                catch (final IOException ex) {
+                    LOG.log(Level.WARNING, "Failed to read a tile from the disk tier: " + key, ex);
+                }
+                count(Tier.DISK, data != null);
+            }
+        }
+        if (data == null) {
+            return null;
+        }
+        loadMetadata(uri, key);
+        return cache.acquire(uri, data, statistics);
+    }
+
+    /**
+     * Returns the caching information of a tile in the heap tiers. This never
+     * blocks on I/O.
+     *
+     * @param uri the full URI of the tile
+     * @return the metadata, or null if the tile isn't in the heap tiers or
+     *         has no stored metadata
+     */
+    public TileMetadata getMetadata(final URI uri) {
+        return metadata.get(uri);
+    }
+
+    /**
+     * Refreshes the caching information of a tile, for example after a
+     * successful revalidation.
+     *
+     * @param uri the full URI of the tile
+     * @param key the key of the tile in the lower tiers, usually its url
+     * @param tileMetadata the new metadata
+     * @throws IOException if the disk tier can't be updated
+     */
+    public void updateMetadata(final URI uri, final String key, final TileMetadata tileMetadata)
+            throws IOException {
+        if (imageCache.contains(uri)) {
+            metadata.put(uri, tileMetadata);
+        }
+        final DiskTileStore store = diskStore;
+        if (store != null) {
+            store.updateMetadata(key, tileMetadata);
+        }
+    }
+
+    /**
+     * Adds a downloaded tile to the cache, writing it through to the disk tier
+     * if its metadata allows it. The caller holds a reference to the returned
+     * image in the {@link org.jdesktop.swingx.mapviewer.util.ImagePool} and
+     * must release it when done.
+     *
+     * @param uri the full URI of the tile
+     * @param key the key of the tile in the lower tiers, usually its url
+     * @param data the compressed tile
+     * @param metadata the caching information of the tile, or null if there
+     *            is none, which is the same as {@link TileMetadata#PERMANENT}
+     * @return the decoded image, or null if the data can't be decoded
+     * @throws IOException if the tile can't be decoded
+     */
+    public BufferedImage put(final URI uri, final String key, final byte[] data, final TileMetadata metadata)
+            throws IOException {
+        return put(uri, key, data, metadata, null);
+    }
+
+    /**
+     * Same as {@link #put(URI, String, byte[], TileMetadata)}, counting the
+     * savings of the deduplication of the image cache in the given statistics
+     * too.
+     *
+     * @param uri the full URI of the tile
+     * @param key the key of the tile in the lower tiers, usually its url
+     * @param data the compressed tile
+     * @param metadata the caching information of the tile, or null
+     * @param statistics the statistics of the caller, or null
+     * @return the decoded image, or null if the data can't be decoded
+     * @throws IOException if the tile can't be decoded
+     */
+    public BufferedImage put(final URI uri, final String key, final byte[] data, final TileMetadata metadata,
+            final ImageCache.Statistics statistics) throws IOException {
+        final TileMetadata tileMetadata = metadata != null ? metadata : TileMetadata.PERMANENT;
+        final DiskTileStore store = diskStore;
+        if (store != null) {
+            try {
+                if (tileMetadata.isStorable()) {
+                    store.put(key, data, tileMetadata);
+                }
+                else {
+                    store.remove(key);
+                }
+            }
+            catch (final IOException ex) {
+                LOG.log(Level.WARNING, "Failed to write a tile to the disk tier: " + key, ex);
+            }
+        }
+        offHeapStore.remove(key);
+        if (tileMetadata.isStorable()) {
+            this.metadata.put(uri, tileMetadata);
+        }
+        else {
+            this.metadata.remove(uri);
+        }
+        return imageCache.acquire(uri, data, statistics);
+    }
+
+    /**
+     * Removes a tile from the lower tiers, for example because its data is
+     * damaged.
+     *
+     * @param key the key of the tile in the lower tiers
+     */
+    public void remove(final String key) {
+        offHeapStore.remove(key);
+        final DiskTileStore store = diskStore;
+        if (store != null) {
+            try {
+                store.remove(key);
+            }
+            catch (final IOException ex) {
+                LOG.log(Level.WARNING, "Failed to remove a tile from the disk tier: " + key, ex);
+            }
+        }
+    }
+
+    /**
+     * @return the cache of the heap tiers
+     */
+    public ImageCache getImageCache() {
+        return imageCache;
+    }
+
+    /**
+     * Replaces the cache of the heap tiers.
+     *
+     * @param imageCache the new cache
+     */
+    public void setImageCache(final ImageCache imageCache) {
+        if (imageCache == null) {
+            throw new IllegalArgumentException("The image cache can't be null");
+        }
+        imageCache.setEvictionListener(new ImageCache.EvictionListener() {
+            @Override
+            public void evicted(final URI uri, final byte[] data) {
+                // Read from the disk tier again if it comes back
+                metadata.remove(uri);
+                offHeapStore.put(uri.toString(), data);
+            }
+        });
+        MemoryGovernor.getInstance().register(imageCache);
+        this.imageCache = imageCache;
+        metadata.clear();
+    }
+
+    /**
+     * @return the off-heap tier
+     */
+    public OffHeapTileStore getOffHeapStore() {
+        return offHeapStore;
+    }
+
+    /**
+     * @return the disk tier, or null if there is none
+     */
+    public DiskTileStore getDiskStore() {
+        return diskStore;
+    }
+
+    /**
+     * @param diskStore the disk tier, or null to disable it
+     */
+    public void setDiskStore(final DiskTileStore diskStore) {
+        this.diskStore = diskStore;
+    }
+
+    /**
+     * @param tier a tier
+     * @return the number of lookups found in that tier
+     */
+    public long getHits(final Tier tier) {
+        return hits.get(tier.ordinal());
+    }
+
+    /**
+     * @param tier a tier
+     * @return the number of lookups that reached that tier and missed
+     */
+    public long getMisses(final Tier tier) {
+        return misses.get(tier.ordinal());
+    }
+
+    /**
+     * @param tier a tier
+     * @return the number of bytes used by that tier
+     */
+    public long getSize(final Tier tier) {
+        switch (tier) {
+        case DECODED:
+            return imageCache.getUncompressedSize();
+        case COMPRESSED:
+            return imageCache.getCompressedSize();
+        case OFF_HEAP:
+            return offHeapStore.getSize();
+        default:
+            final DiskTileStore store = diskStore;
+            return store == null ? 0 : store.getSize();
+        }
+    }
+
+    /**
+     * Clears the hit and miss counters.
+     */
+    public void resetStatistics() {
+        for (int i = 0; i < hits.length(); i++) {
+            hits.set(i, 0);
+            misses.set(i, 0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder result = new StringBuilder("TieredTileCache[");
+        for (final Tier tier : Tier.values()) {
+            if (tier.ordinal() > 0) {
+                result.append(", ");
+            }
+            result.append(tier).append(": ").append(getHits(tier)).append('/')
+                    .append(getHits(tier) + getMisses(tier)).append(" hits");
+        }
+        return result.append(", ").append(imageCache).append(']').toString();
+    }
+
+    /**
+     * Reads the caching information of a tile promoted from a lower tier.
+     */
+    private void loadMetadata(final URI uri, final String key) {
+        final DiskTileStore store = diskStore;
+        if (store == null) {
+            return;
+        }
+        try {
+            final TileMetadata tileMetadata = store.getMetadata(key);
+            if (tileMetadata != null) {
+                metadata.put(uri, tileMetadata);
+            }
+        }
+        catch (final IOException ex) {
+            LOG.log(Level.WARNING, "Failed to read the metadata of a tile from the disk tier: " + key, ex);
+        }
+    }
+
+    private void count(final Tier tier, final boolean hit) {
+        (hit ? hits : misses).incrementAndGet(tier.ordinal());
+    }
+}
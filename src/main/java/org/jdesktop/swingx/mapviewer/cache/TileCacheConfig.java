@@ -0,0 +1,103 @@
+package org.jdesktop.swingx.mapviewer.cache;
+
+import java.io.File;
+
+import org.jdesktop.swingx.mapviewer.util.ImageCache;
+
+/**
+ * The budgets of every tier of a {@link TieredTileCache}, so a deployment
+ * tunes all the tile caching in one place.
+ */
+public class TileCacheConfig {
+    public static final int DEFAULT_DECODED_SIZE = 50 * 1000 * 1000;
+    public static final int DEFAULT_COMPRESSED_SIZE = 50 * 1000 * 1000;
+    public static final int DEFAULT_OFF_HEAP_SIZE = 32 * 1024 * 1024;
+    public static final long DEFAULT_TILE_IMAGE_SIZE = 64L * 1024 * 1024;
+
+    private int decodedSize = DEFAULT_DECODED_SIZE;
+    private int compressedSize = DEFAULT_COMPRESSED_SIZE;
+    private int offHeapSize = DEFAULT_OFF_HEAP_SIZE;
+    private long tileImageSize = DEFAULT_TILE_IMAGE_SIZE;
+    private File diskDirectory;
+    private long diskSize = DiskTileStore.DEFAULT_MAX_SIZE;
+    private ImageCache.StorageMode storageMode = ImageCache.StorageMode.COMPATIBLE;
+
+    /**
+     * @return bytes of decoded images kept in the heap
+     */
+    public int getDecodedSize() {
+        return decodedSize;
+    }
+
+    public void setDecodedSize(final int decodedSize) {
+        this.decodedSize = decodedSize;
+    }
+
+    /**
+     * @return bytes of compressed tiles kept in the heap
+     */
+    public int getCompressedSize() {
+        return compressedSize;
+    }
+
+    public void setCompressedSize(final int compressedSize) {
+        this.compressedSize = compressedSize;
+    }
+
+    /**
+     * @return bytes of compressed tiles kept out of the heap, 0 to disable
+     *         the tier
+     */
+    public int getOffHeapSize() {
+        return offHeapSize;
+    }
+
+    public void setOffHeapSize(final int offHeapSize) {
+        this.offHeapSize = offHeapSize;
+    }
+
+    /**
+     * @return bytes of images held by the tiles of each factory, see
+     *         {@link org.jdesktop.swingx.mapviewer.TileImageBudget}
+     */
+    public long getTileImageSize() {
+        return tileImageSize;
+    }
+
+    public void setTileImageSize(final long tileImageSize) {
+        this.tileImageSize = tileImageSize;
+    }
+
+    /**
+     * @return the directory of the persistent tier, or null to disable it
+     */
+    public File getDiskDirectory() {
+        return diskDirectory;
+    }
+
+    public void setDiskDirectory(final File diskDirectory) {
+        this.diskDirectory = diskDirectory;
+    }
+
+    /**
+     * @return bytes of tiles kept on disk
+     */
+    public long getDiskSize() {
+        return diskSize;
+    }
+
+    public void setDiskSize(final long diskSize) {
+        this.diskSize = diskSize;
+    }
+
+    /**
+     * @return how the decoded images are kept
+     */
+    public ImageCache.StorageMode getStorageMode() {
+        return storageMode;
+    }
+
+    public void setStorageMode(final ImageCache.StorageMode storageMode) {
+        this.storageMode = storageMode;
+    }
+}
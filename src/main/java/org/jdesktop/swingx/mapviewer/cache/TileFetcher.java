@@ -0,0 +1,121 @@
+package org.jdesktop.swingx.mapviewer.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * Downloads tile images, using conditional requests when the metadata of a
+ * cached copy is given.
+ */
+public class TileFetcher {
+
+    /**
+     * The result of a download.
+     */
+    public static final class Response {
+        private final byte[] data;
+        private final TileMetadata metadata;
+
+        private Response(final byte[] data, final TileMetadata metadata) {
+            this.data = data;
+            this.metadata = metadata;
+        }
+
+        /**
+         * @return the downloaded bytes, or null if the cached copy is still
+         *         valid
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * @return the caching information sent by the server
+         */
+        public TileMetadata getMetadata() {
+            return metadata;
+        }
+
+        /**
+         * @return true if the server answered that the cached copy is still
+         *         valid
+         */
+        public boolean isNotModified() {
+            return data == null;
+        }
+    }
+
+    /**
+     * Downloads a tile.
+     *
+     * @param url the url of the tile
+     * @param cached the metadata of the cached copy to revalidate, or null to
+     *            make an unconditional request
+     * @return the response
+     * @throws IOException if the download fails
+     */
+    public Response fetch(final URL url, final TileMetadata cached) throws IOException {
+        final URLConnection connection = openConnection(url);
+        if (connection instanceof HttpURLConnection) {
+            final HttpURLConnection http = (HttpURLConnection) connection;
+            // Caching is done by ourselves
+            http.setUseCaches(false);
+            if (cached != null) {
+                if (cached.getETag() != null) {
+                    http.setRequestProperty("If-None-Match", cached.getETag());
+                }
+                if (cached.getLastModified() > 0) {
+                    http.setIfModifiedSince(cached.getLastModified());
+                }
+            }
+
+            final int code = http.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                final TileMetadata metadata = TileMetadata.fromConnection(http, System.currentTimeMillis(), cached);
+                http.disconnect();
+                return new Response(null, metadata);
+            }
+            if (code >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                http.disconnect();
+                throw new IOException("Server returned HTTP response code " + code + " for URL: " + url);
+            }
+        }
+
+        final byte[] data = read(connection.getInputStream());
+        return new Response(data, TileMetadata.fromConnection(connection, System.currentTimeMillis(), null));
+    }
+
+    /**
+     * Opens the connection for the given url. Subclasses can override this
+     * method to add authentication or custom headers.
+     *
+     * @param url the url of the tile
+     * @return the connection
+     * @throws IOException if the connection can't be opened
+     */
+    protected URLConnection openConnection(final URL url) throws IOException {
+        return url.openConnection();
+    }
+
+    private static byte[] read(final InputStream ins) throws IOException {
+        try {
+            final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            final byte[] buf = new byte[4096];
+            while (true) {
+                final int n = ins.read(buf);
+                if (n == -1) {
+                    break;
+                }
+                bout.write(buf, 0, n);
+            }
+            return bout.toByteArray();
+        }
+        finally {
+            ins.close();
+        }
+    }
+}
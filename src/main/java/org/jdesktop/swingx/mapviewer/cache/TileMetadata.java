@@ -0,0 +1,172 @@
+package org.jdesktop.swingx.mapviewer.cache;
+
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+import java.util.Locale;
+
+/**
+ * HTTP caching information of a downloaded tile: when it expires and the
+ * validators needed to revalidate it with a conditional request.
+ * This class is immutable.
+ */
+public final class TileMetadata {
+    /**
+     * Metadata of a tile that never expires, used for tiles which don't come
+     * from an HTTP server.
+     */
+    public static final TileMetadata PERMANENT = new TileMetadata(Long.MAX_VALUE, 0, null, true);
+
+    /**
+     * Lifetime used when the server doesn't give any caching information.
+     */
+    public static final long DEFAULT_LIFETIME = 24L * 60 * 60 * 1000;
+
+    private final long expires;
+    private final long lastModified;
+    private final String etag;
+    private final boolean storable;
+
+    /**
+     * @param expires time in milliseconds when the tile stops being fresh
+     * @param lastModified value of the Last-Modified header, or 0 if unknown
+     * @param etag value of the ETag header, or null if unknown
+     * @param storable false if the server asked to not store the tile
+     */
+    public TileMetadata(final long expires, final long lastModified, final String etag, final boolean storable) {
+        this.expires = expires;
+        this.lastModified = lastModified;
+        this.etag = etag;
+        this.storable = storable;
+    }
+
+    /**
+     * Builds the metadata from the headers of a response.
+     *
+     * @param connection the connection holding the response
+     * @param now the time the response was received
+     * @param previous the metadata of the cached copy, used to keep the
+     *            validators a 304 response doesn't repeat. Can be null.
+     * @return the metadata of the response
+     */
+    public static TileMetadata fromConnection(final URLConnection connection, final long now,
+            final TileMetadata previous) {
+        if (!(connection instanceof HttpURLConnection)) {
+            return PERMANENT;
+        }
+
+        String etag = connection.getHeaderField("ETag");
+        long lastModified = connection.getLastModified();
+        if (previous != null) {
+            if (etag == null) {
+                etag = previous.getETag();
+            }
+            if (lastModified == 0) {
+                lastModified = previous.getLastModified();
+            }
+        }
+
+        boolean storable = true;
+        long maxAge = -1;
+        final String cacheControl = connection.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            for (final String token : cacheControl.split(",")) {
+                final String directive = token.trim().toLowerCase(Locale.ENGLISH);
+                if (directive.equals("no-store")) {
+                    storable = false;
+                    maxAge = 0;
+                }
+                else if (directive.equals("no-cache")) {
+                    maxAge = 0;
+                }
+                else if (directive.startsWith("max-age=") && maxAge != 0) {
+                    try {
+                        maxAge = Long.parseLong(directive.substring("max-age=".length()).replace("\"", "")) * 1000;
+                    }
+                    catch (final NumberFormatException ex) {
+                        maxAge = 0;
+                    }
+                }
+            }
+        }
+
+        final long date = connection.getDate() > 0 ? connection.getDate() : now;
+        final long expires;
+        if (maxAge >= 0) {
+            final long age = connection.getHeaderFieldInt("Age", 0) * 1000L;
+            expires = now + Math.max(0, maxAge - age);
+        }
+        else if (connection.getExpiration() > 0) {
+            // Relative to the server clock to avoid skew problems
+            expires = now + Math.max(0, connection.getExpiration() - date);
+        }
+        else if (lastModified > 0 && lastModified < date) {
+            // Heuristic freshness, a tenth of the age of the resource
+            expires = now + Math.min(DEFAULT_LIFETIME, (date - lastModified) / 10);
+        }
+        else {
+            expires = now + DEFAULT_LIFETIME;
+        }
+
+        return new TileMetadata(expires, lastModified, etag, storable);
+    }
+
+    /**
+     * @return the time in milliseconds when the tile stops being fresh
+     */
+    public long getExpires() {
+        return expires;
+    }
+
+    /**
+     * @return the value of the Last-Modified header, or 0 if unknown
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return the value of the ETag header, or null if unknown
+     */
+    public String getETag() {
+        return etag;
+    }
+
+    /**
+     * @return false if the server asked to not store the tile
+     */
+    public boolean isStorable() {
+        return storable;
+    }
+
+    /**
+     * Indicates if the tile can be used without asking the server.
+     *
+     * @param now the current time in milliseconds
+     * @return true if the tile is still fresh
+     */
+    public boolean isFresh(final long now) {
+        return now < expires;
+    }
+
+    /**
+     * @return true if a conditional request can be made for the tile
+     */
+    public boolean hasValidators() {
+        return etag != null || lastModified > 0;
+    }
+
+    /**
+     * Indicates if the validators of both metadata are the same.
+     *
+     * @param other the metadata to compare with
+     * @return true if the etag and last modified date are equal
+     */
+    public boolean hasSameValidators(final TileMetadata other) {
+        return lastModified == other.lastModified && (etag == null ? other.etag == null : etag.equals(other.etag));
+    }
+
+    @Override
+    public String toString() {
+        return "[expires=" + expires + ", lastModified=" + lastModified + ", etag=" + etag + "]";
+    }
+}
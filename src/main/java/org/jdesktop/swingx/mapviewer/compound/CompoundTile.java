@@ -2,16 +2,19 @@ package org.jdesktop.swingx.mapviewer.compound;
 
 import org.jdesktop.swingx.mapviewer.Tile;
 import org.jdesktop.swingx.mapviewer.TileFactory;
+import org.jdesktop.swingx.mapviewer.TileImageBudget;
+import org.jdesktop.swingx.mapviewer.util.ImagePool;
 
 import java.awt.*;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
-import java.lang.ref.SoftReference;
 import java.text.NumberFormat;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedList;
+import java.util.List;
 
 /**
  * @author fgotusso <fgotusso@swissms.ch>
@@ -26,7 +29,7 @@ public class CompoundTile extends Tile {
     private Image loadingImage;
     private boolean showLoadingPercent;
 
-    private  SoftReference<BufferedImage> buffer;
+    private BufferedImage buffer;
     private boolean dirtyFlag;
 
     public CompoundTile(int tileSize, final Tile baseTile) {
@@ -36,7 +39,6 @@ public class CompoundTile extends Tile {
         this.baseTile = baseTile;
 
         layers = new LinkedList<Tile>();
-        buffer = new SoftReference<BufferedImage>(null);
         dirtyFlag = true;
 
         final PropertyChangeListener loadedListener = new PropertyChangeListener() {
@@ -156,26 +158,92 @@ public class CompoundTile extends Tile {
      * @inheritDoc
      */
     @Override
-    public synchronized BufferedImage getImage() {
-        BufferedImage result = null;
+    public BufferedImage getImage() {
+        return getImage(false);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public BufferedImage acquireImage() {
+        return getImage(true);
+    }
 
-        // If we have a cached value return it
-        if (! isDirty()) {
-            result = buffer.get();
-            if (result != null) {
+    /**
+     * Returns the composite, painting it again if a layer changed. The images
+     * of the layers are acquired and the budget is updated outside of the
+     * lock of this tile: both can release the images of other tiles, whose
+     * locks may be held by threads waiting for this one.
+     */
+    private BufferedImage getImage(final boolean retain) {
+        final ImagePool pool = ImagePool.getDefault();
+        final TileImageBudget budget = getImageBudget();
+        final List<Tile> layerTiles;
+        synchronized (this) {
+            if (!isDirty() && buffer != null) {
+                final BufferedImage result = buffer;
+                if (retain) {
+                    pool.retain(result);
+                }
+                if (budget != null) {
+                    budget.touch(this);
+                }
                 return result;
             }
+            layerTiles = new ArrayList<Tile>(layers);
+            // Cleared before reading the layers, so a layer loaded meanwhile
+            // paints the tile again
+            setDirty(false);
         }
 
-        // We must use ARGB, not the base type. Base or layers
-        // could have indexed colors
-        result = new BufferedImage(tileSize, tileSize, BufferedImage.TYPE_INT_ARGB);
+        // Try to get the layers. The loading process will start if needed
+        final BufferedImage base = baseTile.acquireImage();
+        final List<BufferedImage> overlays = new ArrayList<BufferedImage>();
+        if (base != null) {
+            for (final Tile layer : layerTiles) {
+                overlays.add(layer.acquireImage());
+            }
+        }
+        final BufferedImage result;
+        try {
+            synchronized (this) {
+                result = paintImage(base, overlays, layerTiles.size());
+                if (retain) {
+                    pool.retain(result);
+                }
+            }
+        }
+        finally {
+            pool.release(base);
+            for (final BufferedImage overlay : overlays) {
+                pool.release(overlay);
+            }
+        }
+        if (budget != null) {
+            budget.update(this, result);
+        }
+        return result;
+    }
+
+    private BufferedImage paintImage(final BufferedImage base, final List<BufferedImage> overlays,
+            final int layerCount) {
+        // We must use an integer RGB type, not the base type. Base or layers
+        // could have indexed colors. The result is opaque unless the base
+        // has alpha, the missing base is painted gray. The previous buffer
+        // may still be drawn by its holders, a recycled image is used instead
+        // of redrawing it in place.
+        final ImagePool pool = ImagePool.getDefault();
+        final int type = base != null && base.getTransparency() != Transparency.OPAQUE
+                ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        pool.release(buffer);
+        buffer = null;
+        final BufferedImage result = pool.acquire(tileSize, tileSize, type, true);
         final Graphics2D g2 = result.createGraphics();
 
         int paintedLayers = 0;
-        int totalLayers = 1 + layers.size();
+        int totalLayers = 1 + layerCount;
 
-        final BufferedImage base = baseTile.getImage();
         if (base == null) {
             g2.setColor(Color.GRAY);
             g2.fillRect(0, 0, tileSize, tileSize);
@@ -185,9 +253,7 @@ public class CompoundTile extends Tile {
             paintedLayers++;
 
             // Paint all available layers
-            for (final Tile layer : layers) {
-                // Try to get the layer. The loading process will start if needed
-                final BufferedImage overlay = layer.getImage();
+            for (final BufferedImage overlay : overlays) {
                 if (overlay != null) {
                     g2.drawImage(overlay, 0, 0, null);
                     paintedLayers++;
@@ -237,12 +303,19 @@ public class CompoundTile extends Tile {
 
         g2.dispose();
 
-        buffer = new SoftReference<BufferedImage>(result);
-        setDirty(false);
-
+        buffer = result;
         return result;
     }
 
+    /**
+     * @inheritDoc
+     */
+    @Override
+    protected synchronized void releaseImage() {
+        ImagePool.getDefault().release(buffer);
+        buffer = null;
+    }
+
     /**
      * @inheritDoc
      */
@@ -1,6 +1,7 @@
 package org.jdesktop.swingx.mapviewer.compound;
 
 import java.awt.Image;
+import java.awt.image.BufferedImage;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -117,6 +118,7 @@ public class CompoundTileFactory extends AbstractTileFactory {
             CompoundTile compoundTile = new CompoundTile(info.getTileSize(zoom), base);
             compoundTile.setLoadingImage(loadingImage);
             compoundTile.setShowLoadingPercent(getShowLoadingPercent());
+            compoundTile.setImageBudget(getImageBudget());
 
             final ArrayList<Tile> layers = new ArrayList<Tile>(this.layers.size());
             for (final TileFactory factory : this.layers) {
@@ -137,6 +139,23 @@ public class CompoundTileFactory extends AbstractTileFactory {
         return tile;
     }
 
+    /**
+     * Only the base layer is prefetched, the layers are usually local.
+     */
+    @Override
+    public void prefetchTile(final int x, final int y, final int zoom) {
+        baseFactory.prefetchTile(x, y, zoom);
+    }
+
+    /**
+     * Only the base layer is available right away, the composite is built
+     * when painted.
+     */
+    @Override
+    public BufferedImage getCachedImage(final int x, final int y, final int zoom) {
+        return baseFactory.getCachedImage(x, y, zoom);
+    }
+
     /**
      * @inheritDoc
      */
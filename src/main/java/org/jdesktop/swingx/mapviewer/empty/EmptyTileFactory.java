@@ -72,6 +72,10 @@ public class EmptyTileFactory extends TileFactory {
                 return emptyTile;
             }
 
+            public BufferedImage acquireImage() {
+                return emptyTile;
+            }
+
         };
     }
 
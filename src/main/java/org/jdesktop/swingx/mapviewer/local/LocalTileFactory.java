@@ -4,7 +4,10 @@ import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.SwingUtilities;
 
@@ -13,6 +16,7 @@ import org.jdesktop.swingx.mapviewer.Tile;
 import org.jdesktop.swingx.mapviewer.TileFactoryInfo;
 
 import org.jdesktop.swingx.mapviewer.util.ImageCache;
+import org.jdesktop.swingx.mapviewer.util.ImagePool;
 
 /**
  * Tile factory to paint tile images instead of asking a server for it.
@@ -32,8 +36,12 @@ public abstract class LocalTileFactory extends DefaultTileFactory {
     public static final int MAXIMUM_ZOOM_LEVEL = 15;
     public static final int TOTAL_ZOOM_LEVEL = 17;
 
+    private static final Map<Integer, BufferedImage> ERROR_IMAGES = new HashMap<Integer, BufferedImage>();
+
     protected final BufferedImage EMPTY_IMAGE;
 
+    private final AtomicInteger emptyTiles = new AtomicInteger();
+
     protected static class ESBTileFactoryInfo extends TileFactoryInfo {
         private Object _state;
 
@@ -113,7 +121,13 @@ public abstract class LocalTileFactory extends DefaultTileFactory {
             while (!tile.isLoaded() && tries > 0) {
 
                 try {
-                    final BufferedImage image = getTileImage(x, y, zoom);
+                    BufferedImage image = getTileImage(x, y, zoom);
+                    if (image != null && image != EMPTY_IMAGE && ImagePool.isFullyTransparent(image)) {
+                        // Share one image for all the empty tiles
+                        ImagePool.getDefault().release(image);
+                        image = EMPTY_IMAGE;
+                        emptyTiles.incrementAndGet();
+                    }
 
                     if (image != null) {
                         final BufferedImage i = image;
@@ -124,6 +138,9 @@ public abstract class LocalTileFactory extends DefaultTileFactory {
                                 tile.setLoaded(true);
                             }
                         });
+                        // The tile holds its own reference if the image
+                        // comes from createTileImage
+                        ImagePool.getDefault().release(image);
                     }
                     else {
                         tries--;
@@ -166,8 +183,46 @@ public abstract class LocalTileFactory extends DefaultTileFactory {
 
     protected abstract BufferedImage getTileImage(final int x, final int y, final int zoom) throws IOException;
 
+    /**
+     * @return the number of painted tiles found fully transparent and
+     *         replaced by the shared empty image
+     */
+    public int getSharedEmptyTileCount() {
+        return emptyTiles.get();
+    }
+
+    /**
+     * Creates a transparent image for a tile, taken from the shared
+     * {@link ImagePool} when possible. Implementations of
+     * {@link #getTileImage(int, int, int)} should use it to paint their tiles,
+     * the image goes back to the pool when the tile drops it.
+     *
+     * @param zoom the zoom level of the tile
+     * @return a transparent ARGB image of the tile size
+     */
+    protected BufferedImage createTileImage(final int zoom) {
+        final int size = getTileSize(zoom);
+        return ImagePool.getDefault().acquire(size, size, BufferedImage.TYPE_INT_ARGB, true);
+    }
+
+    /**
+     * Returns the image shown for the tiles that failed to load. The default
+     * image is shared by all the tiles of the same size, so it must not be
+     * modified.
+     */
     protected BufferedImage getErrorImage(final int x, final int y, final int zoom) {
         final int size = getTileSize(zoom);
+        synchronized (ERROR_IMAGES) {
+            BufferedImage image = ERROR_IMAGES.get(size);
+            if (image == null) {
+                image = createErrorImage(size);
+                ERROR_IMAGES.put(size, image);
+            }
+            return image;
+        }
+    }
+
+    private static BufferedImage createErrorImage(final int size) {
         final BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
         final Graphics2D g = image.createGraphics();
         g.setColor(Color.RED);
@@ -0,0 +1,532 @@
+package org.jdesktop.swingx.mapviewer.server;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+
+import org.jdesktop.swingx.JXMapViewer;
+import org.jdesktop.swingx.mapviewer.DefaultWaypoint;
+import org.jdesktop.swingx.mapviewer.GeoPosition;
+import org.jdesktop.swingx.mapviewer.MapRenderer;
+import org.jdesktop.swingx.mapviewer.TileFactory;
+import org.jdesktop.swingx.mapviewer.TileFactoryInfo;
+import org.jdesktop.swingx.mapviewer.Waypoint;
+import org.jdesktop.swingx.mapviewer.WaypointPainter;
+import org.jdesktop.swingx.painter.Painter;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An embeddable HTTP server rendering static map images with a
+ * {@link MapRenderer}, on the HTTP server of the JDK. Give it the tile factory
+ * of the desktop client and both share the same tile caches.
+ * <p>
+ * It serves <code>/staticmap?center=lat,lon&amp;zoom=z&amp;size=WxH&amp;markers=lat,lon|lat,lon</code>
+ * as PNG images. The zoom level is the one of the tile factory, and the
+ * markers are optional. The maps are rendered on a bounded pool, and the
+ * images of the last requests are kept in a LRU cache to answer the identical
+ * ones. Identical requests arriving while their map is rendered wait for that
+ * rendering instead of starting their own.
+ * </p>
+ * <p>
+ * When all the threads are busy and the queue of the pool is full, the new
+ * requests are answered at once with a <code>503 Service Unavailable</code>
+ * so the server never stops accepting connections.
+ * </p>
+ */
+public class StaticMapServer {
+    private static final Logger LOG = Logger.getLogger(StaticMapServer.class.getName());
+
+    public static final String PATH = "/staticmap";
+    public static final int DEFAULT_CACHE_SIZE = 64;
+    public static final int DEFAULT_QUEUE_SIZE = 64;
+    public static final int DEFAULT_MAX_SIZE = 2048;
+
+    private final MapRenderer renderer;
+    private final int threads;
+    private final Map<String, byte[]> images = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private final ConcurrentMap<String, FutureTask<byte[]>> rendering =
+            new ConcurrentHashMap<String, FutureTask<byte[]>>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private int cacheSize = DEFAULT_CACHE_SIZE;
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+    private volatile int maxSize = DEFAULT_MAX_SIZE;
+    private HttpServer server;
+    private ThreadPoolExecutor executor;
+
+    /**
+     * Creates a server rendering on one thread per processor.
+     *
+     * @param factory the factory of the tiles
+     */
+    public StaticMapServer(final TileFactory factory) {
+        this(new MapRenderer(factory), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param renderer the renderer of the maps
+     * @param threads the number of maps rendered at once
+     */
+    public StaticMapServer(final MapRenderer renderer, final int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is needed");
+        }
+        this.renderer = renderer;
+        this.threads = threads;
+    }
+
+    /**
+     * Starts the server.
+     *
+     * @param address the address to listen to, with a port of 0 for any free
+     *            port
+     * @throws IOException if the server can't listen to the address
+     */
+    public synchronized void start(final InetSocketAddress address) throws IOException {
+        if (server != null) {
+            throw new IllegalStateException("The server is already started");
+        }
+        // The handler only hands the exchanges over to the pool, so it runs on
+        // the dispatcher thread of the server, which must never block
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadPoolExecutor.AbortPolicy());
+        server = HttpServer.create(address, 0);
+        server.createContext(PATH, new StaticMapHandler(executor));
+        server.start();
+        LOG.info("Static map server listening on " + server.getAddress());
+    }
+
+    /**
+     * Stops the server, waiting up to a second for the running requests.
+     */
+    public synchronized void stop() {
+        if (server == null) {
+            return;
+        }
+        server.stop(1);
+        executor.shutdown();
+        server = null;
+        executor = null;
+    }
+
+    /**
+     * @return the port listened to, or -1 if the server isn't started
+     */
+    public synchronized int getPort() {
+        return server == null ? -1 : server.getAddress().getPort();
+    }
+
+    /**
+     * @return the renderer of the maps
+     */
+    public MapRenderer getRenderer() {
+        return renderer;
+    }
+
+    /**
+     * @return the maximum number of images kept
+     */
+    public synchronized int getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * @param cacheSize the maximum number of images kept
+     */
+    public synchronized void setCacheSize(final int cacheSize) {
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException("The cache size can't be negative");
+        }
+        this.cacheSize = cacheSize;
+        trimCache();
+    }
+
+    /**
+     * @return the maximum number of requests waiting for a thread
+     */
+    public synchronized int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * Sets the maximum number of requests waiting for a thread, the next ones
+     * are rejected. Takes effect on the next start.
+     *
+     * @param queueSize the maximum number of requests waiting for a thread
+     */
+    public synchronized void setQueueSize(final int queueSize) {
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("The queue size must be positive");
+        }
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * @return the maximum width and height of the images
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @param maxSize the maximum width and height of the images
+     */
+    public void setMaxSize(final int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("The maximum size must be positive");
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return the number of maps requested
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of maps answered from the cache
+     */
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    /**
+     * @return the number of requests rejected because the server was busy
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Takes the map of a request from the cache, waits for the same map being
+     * rendered for another request, or renders it.
+     *
+     * @param request the parsed request
+     * @return the PNG image
+     * @throws IOException if the map can't be rendered
+     * @throws InterruptedException if interrupted while waiting for the tiles
+     */
+    protected byte[] getImage(final MapRequest request) throws IOException, InterruptedException {
+        requests.incrementAndGet();
+        final String key = request.getKey();
+        synchronized (this) {
+            final byte[] cached = images.get(key);
+            if (cached != null) {
+                cacheHits.incrementAndGet();
+                return cached;
+            }
+        }
+
+        final FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                final byte[] data = render(request);
+                synchronized (StaticMapServer.this) {
+                    if (cacheSize > 0) {
+                        images.put(key, data);
+                        trimCache();
+                    }
+                }
+                return data;
+            }
+        });
+        final FutureTask<byte[]> running = rendering.putIfAbsent(key, task);
+        if (running == null) {
+            try {
+                task.run();
+            }
+            finally {
+                rendering.remove(key, task);
+            }
+        }
+        try {
+            return (running == null ? task : running).get();
+        }
+        catch (final ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Renders the map of a request.
+     *
+     * @param request the parsed request
+     * @return the PNG image
+     * @throws IOException if the map can't be rendered
+     * @throws InterruptedException if interrupted while waiting for the tiles
+     */
+    protected byte[] render(final MapRequest request) throws IOException, InterruptedException {
+        final List<Painter<JXMapViewer>> painters = new ArrayList<Painter<JXMapViewer>>();
+        if (!request.markers.isEmpty()) {
+            final WaypointPainter<JXMapViewer> painter = new WaypointPainter<JXMapViewer>();
+            painter.setWaypoints(request.markers);
+            painters.add(painter);
+        }
+        final BufferedImage img = renderer.render(request.center, request.zoom, request.size, painters);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(img, "png", out);
+        return out.toByteArray();
+    }
+
+    private void trimCache() {
+        for (final Iterator<byte[]> it = images.values().iterator(); it.hasNext() && images.size() > cacheSize;) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Parses the query of a request.
+     *
+     * @param query the raw query, can be null
+     * @return the request
+     * @throws IllegalArgumentException if a parameter is missing or invalid
+     */
+    protected MapRequest parse(final String query) {
+        final Map<String, String> params = parseQuery(query);
+        final TileFactoryInfo info = renderer.getTileFactory().getInfo();
+
+        final GeoPosition center = parsePosition(required(params, "center"));
+
+        final int zoom;
+        try {
+            zoom = Integer.parseInt(required(params, "zoom"));
+        }
+        catch (final NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid zoom: " + params.get("zoom"));
+        }
+        if (zoom < info.getMinimumZoomLevel() || zoom > info.getMaximumZoomLevel()) {
+            throw new IllegalArgumentException("Zoom out of range: " + zoom);
+        }
+
+        final String size = required(params, "size");
+        final int x = size.indexOf('x');
+        final Dimension dim;
+        try {
+            dim = new Dimension(Integer.parseInt(size.substring(0, x)), Integer.parseInt(size.substring(x + 1)));
+        }
+        catch (final RuntimeException ex) {
+            throw new IllegalArgumentException("Invalid size: " + size);
+        }
+        if (dim.width < 1 || dim.height < 1 || dim.width > maxSize || dim.height > maxSize) {
+            throw new IllegalArgumentException("Size out of range: " + size);
+        }
+
+        final Set<Waypoint> markers = new HashSet<Waypoint>();
+        final String markerParam = params.get("markers");
+        if (markerParam != null && markerParam.length() > 0) {
+            for (final String marker : markerParam.split("\\|")) {
+                markers.add(new DefaultWaypoint(parsePosition(marker)));
+            }
+        }
+        return new MapRequest(center, zoom, dim, markers);
+    }
+
+    private static Map<String, String> parseQuery(final String query) {
+        final Map<String, String> params = new HashMap<String, String>();
+        if (query == null) {
+            return params;
+        }
+        try {
+            for (final String param : query.split("&")) {
+                final int eq = param.indexOf('=');
+                if (eq > 0) {
+                    params.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"),
+                            URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+                }
+            }
+        }
+        catch (final UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return params;
+    }
+
+    private static String required(final Map<String, String> params, final String name) {
+        final String value = params.get(name);
+        if (value == null || value.length() == 0) {
+            throw new IllegalArgumentException("Missing parameter: " + name);
+        }
+        return value;
+    }
+
+    private static GeoPosition parsePosition(final String value) {
+        final int comma = value.indexOf(',');
+        try {
+            final double lat = Double.parseDouble(value.substring(0, comma).trim());
+            final double lon = Double.parseDouble(value.substring(comma + 1).trim());
+            if (Math.abs(lat) > 90 || Math.abs(lon) > 180) {
+                throw new IllegalArgumentException("Position out of range: " + value);
+            }
+            return new GeoPosition(lat, lon);
+        }
+        catch (final NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid position: " + value);
+        }
+        catch (final IndexOutOfBoundsException ex) {
+            throw new IllegalArgumentException("Invalid position: " + value);
+        }
+    }
+
+    /**
+     * The parameters of a static map request.
+     */
+    protected static class MapRequest {
+        private final GeoPosition center;
+        private final int zoom;
+        private final Dimension size;
+        private final Set<Waypoint> markers;
+
+        protected MapRequest(final GeoPosition center, final int zoom, final Dimension size,
+                final Set<Waypoint> markers) {
+            this.center = center;
+            this.zoom = zoom;
+            this.size = size;
+            this.markers = Collections.unmodifiableSet(markers);
+        }
+
+        /**
+         * @return the key of the request in the image cache, the same for
+         *         the requests of the same map
+         */
+        protected String getKey() {
+            final List<String> positions = new ArrayList<String>();
+            for (final Waypoint marker : markers) {
+                positions.add(marker.getPosition().getLatitude() + "," + marker.getPosition().getLongitude());
+            }
+            Collections.sort(positions);
+            return center.getLatitude() + "," + center.getLongitude() + "/" + zoom + "/" + size.width + "x"
+                    + size.height + "/" + positions;
+        }
+    }
+
+    private class StaticMapHandler implements HttpHandler {
+        private final ThreadPoolExecutor executor;
+
+        StaticMapHandler(final ThreadPoolExecutor executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            serve(exchange);
+                        }
+                        catch (final IOException ex) {
+                            LOG.log(Level.FINE, "Failed to answer " + exchange.getRequestURI(), ex);
+                        }
+                    }
+                });
+            }
+            catch (final RejectedExecutionException ex) {
+                rejected.incrementAndGet();
+                try {
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                    send(exchange, 503, "text/plain", "Server busy".getBytes("UTF-8"));
+                }
+                finally {
+                    exchange.close();
+                }
+            }
+        }
+
+        private void serve(final HttpExchange exchange) throws IOException {
+            try {
+                if (!"GET".equals(exchange.getRequestMethod())) {
+                    send(exchange, 405, "text/plain", "Only GET is supported".getBytes("UTF-8"));
+                    return;
+                }
+                final MapRequest request;
+                try {
+                    request = parse(exchange.getRequestURI().getRawQuery());
+                }
+                catch (final IllegalArgumentException ex) {
+                    send(exchange, 400, "text/plain", ex.getMessage().getBytes("UTF-8"));
+                    return;
+                }
+                try {
+                    send(exchange, 200, "image/png", getImage(request));
+                }
+                catch (final IOException ex) {
+                    LOG.log(Level.FINE, "Failed to render " + exchange.getRequestURI(), ex);
+                    send(exchange, 503, "text/plain", String.valueOf(ex.getMessage()).getBytes("UTF-8"));
+                }
+                catch (final InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    send(exchange, 503, "text/plain", "Interrupted".getBytes("UTF-8"));
+                }
+            }
+            catch (final RuntimeException ex) {
+                LOG.log(Level.WARNING, "Failed to render " + exchange.getRequestURI(), ex);
+                send(exchange, 500, "text/plain", "Internal error".getBytes("UTF-8"));
+            }
+            finally {
+                exchange.close();
+            }
+        }
+
+        private void send(final HttpExchange exchange, final int status, final String type, final byte[] body)
+                throws IOException {
+            exchange.getResponseHeaders().set("Content-Type", type);
+            exchange.sendResponseHeaders(status, body.length);
+            final OutputStream out = exchange.getResponseBody();
+            try {
+                out.write(body);
+            }
+            finally {
+                out.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,515 @@
+package org.jdesktop.swingx.mapviewer.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jdesktop.swingx.mapviewer.AbstractTileFactory;
+import org.jdesktop.swingx.mapviewer.TileFactoryInfo;
+import org.jdesktop.swingx.mapviewer.cache.DiskTileStore;
+import org.jdesktop.swingx.mapviewer.cache.TileFetcher;
+import org.jdesktop.swingx.mapviewer.cache.TileMetadata;
+import org.jdesktop.swingx.mapviewer.util.GeoUtil;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A caching HTTP proxy of the tiles of a tile factory, so the desktops of a
+ * site download each tile from the upstream server once. It serves
+ * <code>/{z}/{x}/{y}</code>, with the zoom levels of the factory, and the
+ * scaled variants of the tiles as <code>/{z}/{x}/{y}@2x</code>. The desktops
+ * use it through {@link #createProxyInfo(TileFactoryInfo, String)}.
+ * <p>
+ * The tiles are kept as downloaded, in a small memory cache and in the
+ * persistent tile store of the factory when it has one, and are revalidated
+ * with conditional requests when they expire. The concurrent requests of the
+ * same missing tile share one download, and the downloads can be limited to a
+ * number of requests per second to honor the limits of the upstream server.
+ * Expired tiles are still served when the upstream server fails.
+ * </p>
+ */
+public class TileProxyServer {
+    private static final Logger LOG = Logger.getLogger(TileProxyServer.class.getName());
+
+    public static final int DEFAULT_THREADS = 16;
+    public static final int DEFAULT_QUEUE_SIZE = 256;
+    public static final int DEFAULT_MEMORY_CACHE_SIZE = 1024;
+
+    /**
+     * A tile as downloaded.
+     */
+    private static final class Entry {
+        private final byte[] data;
+        private final TileMetadata metadata;
+        private final String contentType;
+
+        private Entry(final byte[] data, final TileMetadata metadata) {
+            this.data = data;
+            this.metadata = metadata;
+            // The tile store keeps no headers, the type is read from the
+            // image itself
+            String type = null;
+            try {
+                type = URLConnection.guessContentTypeFromStream(new ByteArrayInputStream(data));
+            }
+            catch (final IOException ex) {
+                // Can't happen reading an array
+            }
+            contentType = type != null ? type : "application/octet-stream";
+        }
+    }
+
+    private final AbstractTileFactory factory;
+    private final int threads;
+    private final Map<String, Entry> memory = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final ConcurrentMap<String, FutureTask<Entry>> downloads =
+            new ConcurrentHashMap<String, FutureTask<Entry>>();
+    private final RateLimiter rateLimiter = new RateLimiter();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong upstreamRequests = new AtomicLong();
+    private final AtomicLong sharedDownloads = new AtomicLong();
+    private int memoryCacheSize = DEFAULT_MEMORY_CACHE_SIZE;
+    private HttpServer server;
+    private ThreadPoolExecutor executor;
+
+    /**
+     * @param factory the factory whose tiles, tile store and fetcher are
+     *            used
+     */
+    public TileProxyServer(final AbstractTileFactory factory) {
+        this(factory, DEFAULT_THREADS);
+    }
+
+    /**
+     * @param factory the factory whose tiles, tile store and fetcher are
+     *            used
+     * @param threads the number of requests handled at once
+     */
+    public TileProxyServer(final AbstractTileFactory factory, final int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is needed");
+        }
+        this.factory = factory;
+        this.threads = threads;
+    }
+
+    /**
+     * Creates the information of a tile source reading the tiles of an
+     * upstream source through a proxy, for the factories of the desktops.
+     *
+     * @param upstream the information of the source proxied
+     * @param proxyUrl the url of the proxy, like
+     *            <code>http://tiles.example.com:8080</code>
+     * @return the information of the proxied source
+     */
+    public static TileFactoryInfo createProxyInfo(final TileFactoryInfo upstream, final String proxyUrl) {
+        final String base = proxyUrl.endsWith("/") ? proxyUrl.substring(0, proxyUrl.length() - 1) : proxyUrl;
+        final TileFactoryInfo info = new TileFactoryInfo(upstream.getName() + " (proxy)",
+                upstream.getMinimumZoomLevel(), upstream.getMaximumZoomLevel(), upstream.getTotalMapZoom(),
+                upstream.getTileSize(0), upstream.isXr2l(), upstream.isYt2b(), base, "x", "y", "z") {
+            @Override
+            public String getTileUrl(final int x, final int y, final int zoom) {
+                return baseURL + "/" + zoom + "/" + x + "/" + y;
+            }
+
+            @Override
+            public String getTileUrl(final int x, final int y, final int zoom, final int scale) {
+                return getTileUrl(x, y, zoom) + "@" + scale + "x";
+            }
+
+            @Override
+            public int getMaximumTileScale() {
+                return upstream.getMaximumTileScale();
+            }
+        };
+        info.setDefaultZoomLevel(upstream.getDefaultZoomLevel());
+        return info;
+    }
+
+    /**
+     * Starts the server.
+     *
+     * @param address the address to listen to, with a port of 0 for any free
+     *            port
+     * @throws IOException if the server can't listen to the address
+     */
+    public synchronized void start(final InetSocketAddress address) throws IOException {
+        if (server != null) {
+            throw new IllegalStateException("The server is already started");
+        }
+        // Waiting requests are handled by the accepting thread when the queue
+        // is full, which stops accepting new ones until then
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(DEFAULT_QUEUE_SIZE), new ThreadPoolExecutor.CallerRunsPolicy());
+        server = HttpServer.create(address, 0);
+        server.createContext("/", new TileHandler());
+        server.setExecutor(executor);
+        server.start();
+        LOG.info("Tile proxy listening on " + server.getAddress());
+    }
+
+    /**
+     * Stops the server, waiting up to a second for the running requests.
+     */
+    public synchronized void stop() {
+        if (server == null) {
+            return;
+        }
+        server.stop(1);
+        executor.shutdown();
+        server = null;
+        executor = null;
+    }
+
+    /**
+     * @return the port listened to, or -1 if the server isn't started
+     */
+    public synchronized int getPort() {
+        return server == null ? -1 : server.getAddress().getPort();
+    }
+
+    /**
+     * @return the maximum number of downloads per second, 0 if unlimited
+     */
+    public double getMaxUpstreamRate() {
+        return rateLimiter.getRate();
+    }
+
+    /**
+     * Limits the downloads from the upstream server. Requests over the limit
+     * wait for their turn.
+     *
+     * @param maxUpstreamRate the maximum number of downloads per second, 0 for
+     *            no limit
+     */
+    public void setMaxUpstreamRate(final double maxUpstreamRate) {
+        if (maxUpstreamRate < 0) {
+            throw new IllegalArgumentException("The rate can't be negative");
+        }
+        rateLimiter.setRate(maxUpstreamRate);
+    }
+
+    /**
+     * @return the maximum number of tiles kept in memory
+     */
+    public synchronized int getMemoryCacheSize() {
+        return memoryCacheSize;
+    }
+
+    /**
+     * @param memoryCacheSize the maximum number of tiles kept in memory
+     */
+    public synchronized void setMemoryCacheSize(final int memoryCacheSize) {
+        if (memoryCacheSize < 0) {
+            throw new IllegalArgumentException("The cache size can't be negative");
+        }
+        this.memoryCacheSize = memoryCacheSize;
+        trimMemory();
+    }
+
+    /**
+     * @return the number of tiles requested
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of requests sent to the upstream server
+     */
+    public long getUpstreamRequestCount() {
+        return upstreamRequests.get();
+    }
+
+    /**
+     * @return the number of requests answered by the download of another one
+     */
+    public long getSharedDownloadCount() {
+        return sharedDownloads.get();
+    }
+
+    /**
+     * Returns a tile, from the caches or from the upstream server.
+     */
+    private Entry getTile(final String url) throws IOException, InterruptedException {
+        requests.incrementAndGet();
+        final long now = System.currentTimeMillis();
+        Entry entry;
+        synchronized (this) {
+            entry = memory.get(url);
+        }
+        if (entry == null) {
+            entry = readStore(url);
+        }
+        if (entry != null && entry.metadata.isFresh(now)) {
+            return entry;
+        }
+
+        final Entry stale = entry;
+        FutureTask<Entry> download = downloads.get(url);
+        boolean owner = false;
+        if (download == null) {
+            final FutureTask<Entry> task = new FutureTask<Entry>(new Callable<Entry>() {
+                @Override
+                public Entry call() throws Exception {
+                    return download(url, stale);
+                }
+            });
+            download = downloads.putIfAbsent(url, task);
+            if (download == null) {
+                download = task;
+                owner = true;
+            }
+        }
+        if (owner) {
+            try {
+                download.run();
+            }
+            finally {
+                downloads.remove(url, download);
+            }
+        }
+        else {
+            sharedDownloads.incrementAndGet();
+        }
+
+        try {
+            return download.get();
+        }
+        catch (final ExecutionException ex) {
+            if (stale != null) {
+                LOG.log(Level.FINE, "Serving an expired copy of " + url, ex.getCause());
+                return stale;
+            }
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    private Entry readStore(final String url) {
+        final DiskTileStore store = factory.getTileStore();
+        if (store == null) {
+            return null;
+        }
+        try {
+            final TileMetadata metadata = store.getMetadata(url);
+            if (metadata == null) {
+                return null;
+            }
+            final byte[] data = store.get(url);
+            return data == null ? null : remember(url, new Entry(data, metadata));
+        }
+        catch (final IOException ex) {
+            LOG.log(Level.FINE, "Failed to read " + url + " from the tile store", ex);
+            return null;
+        }
+    }
+
+    private Entry download(final String url, final Entry stale) throws IOException, InterruptedException {
+        rateLimiter.acquire();
+        upstreamRequests.incrementAndGet();
+        final TileFetcher fetcher = factory.getTileFetcher();
+        final TileFetcher.Response response = fetcher.fetch(new URL(url), stale == null ? null : stale.metadata);
+        final DiskTileStore store = factory.getTileStore();
+        if (response.isNotModified()) {
+            if (store != null) {
+                store.updateMetadata(url, response.getMetadata());
+            }
+            return remember(url, new Entry(stale.data, response.getMetadata()));
+        }
+        if (store != null && response.getMetadata().isStorable()) {
+            store.put(url, response.getData(), response.getMetadata());
+        }
+        return remember(url, new Entry(response.getData(), response.getMetadata()));
+    }
+
+    private synchronized Entry remember(final String url, final Entry entry) {
+        if (memoryCacheSize > 0 && entry.metadata.isStorable()) {
+            memory.put(url, entry);
+            trimMemory();
+        }
+        return entry;
+    }
+
+    private void trimMemory() {
+        for (final Iterator<Entry> it = memory.values().iterator(); it.hasNext() && memory.size() > memoryCacheSize;) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Maps a request path to the url of the tile.
+     *
+     * @return the url, or null if the path isn't the one of a tile
+     */
+    private String getTileUrl(final String path) {
+        final String[] parts = path.split("/");
+        if (parts.length != 4 || parts[0].length() != 0) {
+            return null;
+        }
+        String last = parts[3];
+        final int dot = last.indexOf('.');
+        if (dot >= 0) {
+            last = last.substring(0, dot);
+        }
+        final int at = last.indexOf('@');
+        String scalePart = null;
+        if (at >= 0) {
+            scalePart = last.substring(at + 1);
+            last = last.substring(0, at);
+            if (!scalePart.endsWith("x")) {
+                return null;
+            }
+            scalePart = scalePart.substring(0, scalePart.length() - 1);
+        }
+        final int zoom;
+        final int x;
+        final int y;
+        final int scale;
+        try {
+            zoom = Integer.parseInt(parts[1]);
+            x = Integer.parseInt(parts[2]);
+            y = Integer.parseInt(last);
+            scale = scalePart == null ? 1 : Integer.parseInt(scalePart);
+        }
+        catch (final NumberFormatException ex) {
+            return null;
+        }
+        final TileFactoryInfo info = factory.getInfo();
+        if (zoom < info.getMinimumZoomLevel() || zoom > info.getMaximumZoomLevel()
+                || !GeoUtil.isValidTile(x, y, zoom, info)) {
+            return null;
+        }
+        if (scale < 1 || scale > info.getMaximumTileScale()) {
+            return null;
+        }
+        return scale == 1 ? info.getTileUrl(x, y, zoom) : info.getTileUrl(x, y, zoom, scale);
+    }
+
+    private class TileHandler implements HttpHandler {
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            try {
+                if (!"GET".equals(exchange.getRequestMethod())) {
+                    send(exchange, 405, null);
+                    return;
+                }
+                final String url = getTileUrl(exchange.getRequestURI().getPath());
+                if (url == null) {
+                    send(exchange, 404, null);
+                    return;
+                }
+                final Entry entry;
+                try {
+                    entry = getTile(url);
+                }
+                catch (final IOException ex) {
+                    LOG.log(Level.FINE, "Failed to download " + url, ex);
+                    send(exchange, 502, null);
+                    return;
+                }
+                catch (final InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    send(exchange, 503, null);
+                    return;
+                }
+
+                final String etag = entry.metadata.getETag();
+                if (etag != null) {
+                    exchange.getResponseHeaders().set("ETag", etag);
+                    if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                        send(exchange, 304, null);
+                        return;
+                    }
+                }
+                final long maxAge = Math.max(0, (entry.metadata.getExpires() - System.currentTimeMillis()) / 1000);
+                exchange.getResponseHeaders().set("Cache-Control",
+                        "max-age=" + Math.min(maxAge, Integer.MAX_VALUE));
+                exchange.getResponseHeaders().set("Content-Type", entry.contentType);
+                send(exchange, 200, entry.data);
+            }
+            catch (final RuntimeException ex) {
+                LOG.log(Level.WARNING, "Failed to serve " + exchange.getRequestURI(), ex);
+                send(exchange, 500, null);
+            }
+            finally {
+                exchange.close();
+            }
+        }
+
+        private void send(final HttpExchange exchange, final int status, final byte[] body) throws IOException {
+            if (body == null) {
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            // The tile is written as downloaded, without decoding
+            exchange.sendResponseHeaders(status, body.length);
+            final OutputStream out = exchange.getResponseBody();
+            try {
+                out.write(body);
+            }
+            finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * A token bucket limiting the downloads, with a burst of one second of
+     * requests. The requests over the limit wait for their turn.
+     */
+    private static final class RateLimiter {
+        private double rate;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        private synchronized double getRate() {
+            return rate;
+        }
+
+        private synchronized void setRate(final double rate) {
+            this.rate = rate;
+            tokens = Math.max(1, rate);
+        }
+
+        private void acquire() throws InterruptedException {
+            final long wait;
+            synchronized (this) {
+                if (rate <= 0) {
+                    return;
+                }
+                final long now = System.nanoTime();
+                tokens = Math.min(Math.max(1, rate), tokens + (now - lastRefill) * rate / 1e9);
+                lastRefill = now;
+                // The token is taken now, the debt is paid by waiting
+                tokens--;
+                wait = tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+            }
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+    }
+}
@@ -10,37 +10,151 @@
 package org.jdesktop.swingx.mapviewer.util;
 
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
-import javax.imageio.ImageIO;
-
 /**
  * An implementation only class for now. For internal use only.
+ * <p>
+ * Tiles are deduplicated by content: every URI points to a shared entry
+ * holding the compressed bytes and, when decoded, the image, so identical
+ * tiles (sea, desert, empty overlays...) are stored and decoded once. An
+ * entry lives as long as a URI of the compressed tier references it.
+ * </p>
+ * <p>
+ * A cache can be shared by several tile factories. The savings of each one
+ * are counted by the {@link Statistics} given with its tiles.
+ * </p>
  *
  * @author joshua.marinacci@sun.com
  */
-public class ImageCache {
-    private final Map<URI, BufferedImage> imgmap = new HashMap<URI, BufferedImage>();
-    private final LinkedList<URI> imgmapAccessQueue = new LinkedList<URI>();
-    private int imagesize = 0;
-    private final Map<URI, byte[]> bytemap = new HashMap<URI, byte[]>();
-    private final LinkedList<URI> bytemapAccessQueue = new LinkedList<URI>();
-    private int bytesize = 0;
+public class ImageCache implements MemoryConsumer {
+
+    /**
+     * How the decoded images are kept.
+     */
+    public enum StorageMode {
+        /**
+         * 32 bit images compatible with the screen, the fastest to draw
+         */
+        COMPATIBLE,
+        /**
+         * The smallest representation of each image, see
+         * {@link ImagePool#decode(byte[], boolean)}
+         */
+        COMPACT
+    }
+
+    /**
+     * Notified when compressed images leave the cache, so they can be moved
+     * to a lower tier.
+     */
+    public interface EvictionListener {
+        /**
+         * Called with the cache lock held, implementations must be quick and
+         * must not call the cache back.
+         *
+         * @param uri the evicted URI
+         * @param data the compressed image
+         */
+        void evicted(URI uri, byte[] data);
+    }
+
+    /**
+     * The savings of the deduplication for the tiles of one user of the
+     * cache, usually a tile factory. This class is thread safe.
+     */
+    public static final class Statistics {
+        private long sharedBytes;
+        private long decodesAvoided;
+
+        /**
+         * @return the number of compressed bytes of these tiles not stored
+         *         thanks to the deduplication
+         */
+        public synchronized long getSharedBytes() {
+            return sharedBytes;
+        }
+
+        /**
+         * @return the number of decodings of these tiles avoided because an
+         *         identical tile was already decoded
+         */
+        public synchronized long getDecodesAvoided() {
+            return decodesAvoided;
+        }
+
+        private synchronized void addSharedBytes(final long bytes) {
+            sharedBytes += bytes;
+        }
+
+        private synchronized void decodeAvoided() {
+            decodesAvoided++;
+        }
+    }
+
+    /**
+     * Compressed bytes shared by all the URIs with the same content.
+     */
+    private static final class Content {
+        private final byte[] data;
+        private final int hash;
+        private int references;
+        private BufferedImage image;
+        // The statistics of the URIs sharing the bytes of the first one, null
+        // for the URIs put without statistics
+        private final List<Statistics> sharers = new ArrayList<Statistics>(0);
+
+        private Content(final byte[] data) {
+            this.data = data;
+            hash = Arrays.hashCode(data);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            return obj instanceof Content && Arrays.equals(data, ((Content) obj).data);
+        }
+    }
+
+    private final Map<Content, Content> contents = new HashMap<Content, Content>();
+    // The decoded contents and the URIs in access order, the least recently
+    // used first. The lookups by the same Content instance never compare
+    // the bytes.
+    private final LinkedHashMap<Content, Content> imgmap = new LinkedHashMap<Content, Content>(16, 0.75f, true);
+    private long imagesize = 0;
+    private final LinkedHashMap<URI, Content> bytemap = new LinkedHashMap<URI, Content>(16, 0.75f, true);
+    private long bytesize = 0;
+    private final Map<URI, Statistics> owners = new HashMap<URI, Statistics>();
 
     private int compressedCacheSize = 50 * 1000 * 1000;
     private int uncompressedCacheSize = 50 * 1000 * 1000;
 
+    private volatile StorageMode storageMode = StorageMode.COMPATIBLE;
+    private EvictionListener evictionListener;
+
+    private long sharedBytes;
+    private long decodes;
+    private long decodesAvoided;
+
     public ImageCache() {
     }
 
     /**
      * Put a tile image into the cache. This puts both a buffered image and
-     * array of bytes that make up the compressed image.
+     * array of bytes that make up the compressed image. If the same bytes are
+     * already cached under another URI, both URIs share the existing entry
+     * and the given image isn't kept.
      *
      * @param uri
      *            URI of image that is being stored in the cache
@@ -50,20 +164,11 @@ public class ImageCache {
      * @param img
      *            image to store in the cache
      */
-    public void put(final URI uri, final byte[] bimg, final BufferedImage img) {
-        synchronized (bytemap) {
-            while (bytesize > compressedCacheSize) {
-                final URI olduri = bytemapAccessQueue.removeFirst();
-                final byte[] oldbimg = bytemap.remove(olduri);
-                bytesize -= oldbimg.length;
-                p("removed 1 img from byte cache");
-            }
-
-            bytemap.put(uri, bimg);
-            bytesize += bimg.length;
-            bytemapAccessQueue.addLast(uri);
+    public synchronized void put(final URI uri, final byte[] bimg, final BufferedImage img) {
+        final Content content = putBytes(uri, bimg, null);
+        if (content.image == null && img != null) {
+            addToImageCache(content, img);
         }
-        addToImageCache(uri, img);
     }
 
     /**
@@ -72,68 +177,394 @@ public class ImageCache {
      * unavailable but it's compressed version *is* available, then the
      * compressed version will be expanded and returned.
      *
+     * The returned image is never recycled by the {@link ImagePool}, the
+     * caller keeps it until it is garbage collected. Use {@link #acquire(URI)}
+     * to give it back to the pool.
+     *
      * @param uri
      *            URI of the image previously put in the cache
      * @return the image matching the requested URI, or null if not available
      * @throws java.io.IOException
      */
     public BufferedImage get(final URI uri) throws IOException {
-        synchronized (imgmap) {
-            if (imgmap.containsKey(uri)) {
-                imgmapAccessQueue.remove(uri);
-                imgmapAccessQueue.addLast(uri);
-                return imgmap.get(uri);
+        // The reference is never released, the image escapes the pool
+        return acquire(uri);
+    }
+
+    /**
+     * Same as {@link #get(URI)}, but the caller holds a reference to the
+     * returned image in the {@link ImagePool} and must release it when done.
+     * This way the image can't be recycled while the caller uses it.
+     *
+     * @param uri URI of the image previously put in the cache
+     * @return the image matching the requested URI, or null if not available
+     * @throws IOException if the compressed version can't be expanded
+     */
+    public BufferedImage acquire(final URI uri) throws IOException {
+        final Content content;
+        synchronized (this) {
+            content = bytemap.get(uri);
+            if (content == null) {
+                return null;
+            }
+            if (content.image != null) {
+                return retainImage(content);
             }
         }
-        synchronized (bytemap) {
-            if (bytemap.containsKey(uri)) {
-                p("retrieving from bytes");
-                bytemapAccessQueue.remove(uri);
-                bytemapAccessQueue.addLast(uri);
-                final BufferedImage img = ImageIO.read(new ByteArrayInputStream(bytemap.get(uri)));
-                addToImageCache(uri, img);
-                return img;
+        p("retrieving from bytes");
+        return decode(content);
+    }
+
+    /**
+     * Returns the decoded image of the given URI only if it is already
+     * decoded, never expanding the compressed version. The caller holds a
+     * reference to the returned image in the {@link ImagePool} and must
+     * release it when done.
+     *
+     * @param uri URI of the image
+     * @return the decoded image, or null
+     */
+    public synchronized BufferedImage peek(final URI uri) {
+        final Content content = bytemap.get(uri);
+        if (content == null || content.image == null) {
+            return null;
+        }
+        return retainImage(content);
+    }
+
+    /**
+     * @param uri URI of the image
+     * @return true if the compressed version of the image is in the cache
+     */
+    public synchronized boolean contains(final URI uri) {
+        return bytemap.containsKey(uri);
+    }
+
+    /**
+     * Puts the compressed version of an image in the cache and returns the
+     * expanded image, decoding it only if no URI with the same content has
+     * been decoded before. The caller holds a reference to the returned image
+     * in the {@link ImagePool} and must release it when done.
+     *
+     * @param uri URI of the image
+     * @param bimg bytes of the compressed image
+     * @return the expanded image, or null if the format isn't supported
+     * @throws IOException if the image can't be expanded
+     */
+    public BufferedImage acquire(final URI uri, final byte[] bimg) throws IOException {
+        return acquire(uri, bimg, null);
+    }
+
+    /**
+     * Same as {@link #acquire(URI, byte[])}, counting the savings of the
+     * deduplication in the given statistics too.
+     *
+     * @param uri URI of the image
+     * @param bimg bytes of the compressed image
+     * @param statistics the statistics of the caller, or null
+     * @return the expanded image, or null if the format isn't supported
+     * @throws IOException if the image can't be expanded
+     */
+    public BufferedImage acquire(final URI uri, final byte[] bimg, final Statistics statistics)
+            throws IOException {
+        final Content content;
+        synchronized (this) {
+            content = putBytes(uri, bimg, statistics);
+            if (content.image != null) {
+                decodesAvoided++;
+                if (statistics != null) {
+                    statistics.decodeAvoided();
+                }
+                return retainImage(content);
             }
         }
-        return null;
+        return decode(content);
     }
 
     /**
      * Request that the cache free up some memory. How this happens or how much
      * memory is freed is up to the ImageCache implementation. Subclasses can
-     * implement their own strategy. The default strategy is to clear out all
-     * buffered images but retain the compressed versions.
+     * implement their own strategy. The default strategy is to release the
+     * least recently used half of the buffered images but retain the
+     * compressed versions.
+     */
+    public synchronized void needMoreMemory() {
+        releaseImages(imagesize / 2);
+        p("need more memory: freeing up memory");
+    }
+
+    /**
+     * Returns the compressed tiles and the decoded images only held by this
+     * cache. The images also held by tiles are counted by their
+     * {@link org.jdesktop.swingx.mapviewer.TileImageBudget}, and are only
+     * freed once both let them go.
      */
-    public void needMoreMemory() {
-        synchronized (imgmap) {
-            imagesize = 0;
-            imgmap.clear();
-            imgmapAccessQueue.clear();
+    @Override
+    public synchronized long getMemoryUsage() {
+        long usage = bytesize;
+        for (final Content content : imgmap.keySet()) {
+            if (!isShared(content.image)) {
+                usage += weight(content.image);
+            }
         }
-        p("HACK! need more memory: freeing up memory");
+        return usage;
     }
 
-    private void addToImageCache(final URI uri, final BufferedImage img) {
-        synchronized (imgmap) {
-            while (imagesize > uncompressedCacheSize) {
-                final URI olduri = imgmapAccessQueue.removeFirst();
-                final BufferedImage oldimg = imgmap.remove(olduri);
-                imagesize -= oldimg.getWidth() * oldimg.getHeight() * 4;
-                p("removed 1 img from image cache");
+    /**
+     * Releases the least recently used buffered images first, since they can
+     * be expanded again from the compressed versions, and then the compressed
+     * versions. Only the images held by this cache alone are counted as
+     * released, see {@link #getMemoryUsage()}.
+     */
+    @Override
+    public synchronized long releaseMemory(final long bytes) {
+        long released = 0;
+        while (released < bytes && !imgmap.isEmpty()) {
+            final Content content = imgmap.remove(eldest(imgmap));
+            if (!isShared(content.image)) {
+                released += weight(content.image);
             }
+            removeImage(content);
+        }
+        while (released < bytes && !bytemap.isEmpty()) {
+            final long before = imagesize + bytesize;
+            evict(eldest(bytemap));
+            released += before - imagesize - bytesize;
+        }
+        return released;
+    }
+
+    /**
+     * @return the number of bytes of decoded images in the cache
+     */
+    public synchronized long getUncompressedSize() {
+        return imagesize;
+    }
 
-            imgmap.put(uri, img);
-            imagesize += img.getWidth() * img.getHeight() * 4;
-            imgmapAccessQueue.addLast(uri);
+    /**
+     * @return the number of bytes of compressed tiles in the cache
+     */
+    public synchronized long getCompressedSize() {
+        return bytesize;
+    }
+
+    /**
+     * @return the number of URIs in the cache
+     */
+    public synchronized int getEntryCount() {
+        return bytemap.size();
+    }
+
+    /**
+     * @return the number of distinct contents in the cache
+     */
+    public synchronized int getContentCount() {
+        return contents.size();
+    }
+
+    /**
+     * @return the number of compressed bytes not stored thanks to the
+     *         deduplication, for all the users of the cache
+     */
+    public synchronized long getSharedBytes() {
+        return sharedBytes;
+    }
+
+    /**
+     * @return the number of images decoded by the cache
+     */
+    public synchronized long getDecodeCount() {
+        return decodes;
+    }
+
+    /**
+     * @return the number of decodings avoided because an identical tile was
+     *         already decoded, for all the users of the cache
+     */
+    public synchronized long getDecodesAvoided() {
+        return decodesAvoided;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ImageCache[uris=" + bytemap.size() + ", contents=" + contents.size() + ", compressed="
+                + bytesize / 1000 + "k, shared=" + sharedBytes / 1000 + "k, uncompressed=" + imagesize / 1000
+                + "k, decodes=" + decodes + ", decodesAvoided=" + decodesAvoided + "]";
+    }
+
+    private BufferedImage decode(final Content content) throws IOException {
+        final BufferedImage img = ImagePool.getDefault().decode(content.data, storageMode == StorageMode.COMPACT);
+        if (img == null) {
+            return null;
+        }
+        synchronized (this) {
+            decodes++;
+            if (content.image == null && contents.get(content) == content) {
+                addToImageCache(content, img);
+            }
+            else if (content.image != null) {
+                // Decoded by another thread in the meantime, share its image
+                ImagePool.getDefault().release(img);
+                return retainImage(content);
+            }
+        }
+        return img;
+    }
+
+    private BufferedImage retainImage(final Content content) {
+        // Moves it to the end
+        imgmap.get(content);
+        ImagePool.getDefault().retain(content.image);
+        return content.image;
+    }
+
+    private Content putBytes(final URI uri, final byte[] bimg, final Statistics statistics) {
+        final Content previous = bytemap.get(uri);
+        if (previous != null) {
+            if (Arrays.equals(previous.data, bimg)) {
+                return previous;
+            }
+            removeBytes(uri);
+        }
+
+        while (bytesize > compressedCacheSize && !bytemap.isEmpty()) {
+            evict(eldest(bytemap));
+            p("removed 1 img from byte cache");
+        }
+
+        final Content key = new Content(bimg);
+        Content content = contents.get(key);
+        if (content == null) {
+            content = key;
+            contents.put(content, content);
+            bytesize += bimg.length;
+        }
+        else {
+            sharedBytes += bimg.length;
+            content.sharers.add(statistics);
+            if (statistics != null) {
+                statistics.addSharedBytes(bimg.length);
+            }
         }
-        p("added to cache: " + " uncompressed = " + imgmap.keySet().size() + " / " + imagesize / 1000 + "k"
+        content.references++;
+        bytemap.put(uri, content);
+        if (statistics != null) {
+            owners.put(uri, statistics);
+        }
+        return content;
+    }
+
+    private void evict(final URI uri) {
+        final Content content = bytemap.get(uri);
+        if (content != null && evictionListener != null) {
+            evictionListener.evicted(uri, content.data);
+        }
+        removeBytes(uri);
+    }
+
+    private void removeBytes(final URI uri) {
+        final Content content = bytemap.remove(uri);
+        final Statistics owner = owners.remove(uri);
+        if (content == null) {
+            return;
+        }
+        if (--content.references > 0) {
+            sharedBytes -= content.data.length;
+            // When the first URI goes, another one holds the bytes from now on
+            final Statistics sharer = content.sharers.remove(owner) ? owner
+                    : content.sharers.remove(content.sharers.size() - 1);
+            if (sharer != null) {
+                sharer.addSharedBytes(-content.data.length);
+            }
+            return;
+        }
+        contents.remove(content);
+        bytesize -= content.data.length;
+        if (content.image != null) {
+            imgmap.remove(content);
+            removeImage(content);
+        }
+    }
+
+    private void addToImageCache(final Content content, final BufferedImage img) {
+        while (imagesize > uncompressedCacheSize && !imgmap.isEmpty()) {
+            removeImage(imgmap.remove(eldest(imgmap)));
+            p("removed 1 img from image cache");
+        }
+
+        ImagePool.getDefault().retain(img);
+        content.image = img;
+        imagesize += weight(img);
+        imgmap.put(content, content);
+        p("added to cache: " + " uncompressed = " + imgmap.size() + " / " + imagesize / 1000 + "k"
                 + " compressed = " + bytemap.keySet().size() + " / " + bytesize / 1000 + "k");
     }
 
+    private void removeImage(final Content content) {
+        imagesize -= weight(content.image);
+        ImagePool.getDefault().release(content.image);
+        content.image = null;
+    }
+
+    private long releaseImages(final long bytes) {
+        long released = 0;
+        while (released < bytes && !imgmap.isEmpty()) {
+            final Content content = imgmap.remove(eldest(imgmap));
+            released += weight(content.image);
+            removeImage(content);
+        }
+        return released;
+    }
+
+    private static <K> K eldest(final LinkedHashMap<K, ?> map) {
+        return map.keySet().iterator().next();
+    }
+
+    /**
+     * @return true if someone else than this cache holds the image
+     */
+    private static boolean isShared(final BufferedImage img) {
+        return ImagePool.getDefault().getReferenceCount(img) > 1;
+    }
+
+    private static long weight(final BufferedImage img) {
+        return ImagePool.sizeOf(img);
+    }
+
     private void p(final String string) {
         // System.out.println(string);
     }
 
+    /**
+     * Sets the object notified when compressed images are evicted.
+     *
+     * @param evictionListener the listener, or null
+     */
+    public synchronized void setEvictionListener(final EvictionListener evictionListener) {
+        this.evictionListener = evictionListener;
+    }
+
+    /**
+     * @return how the decoded images are kept
+     */
+    public StorageMode getStorageMode() {
+        return storageMode;
+    }
+
+    /**
+     * Sets how the decoded images are kept. The compact mode fits about twice
+     * as many tiles in the same uncompressedCacheSize. Images already decoded
+     * are not converted.
+     *
+     * @param storageMode the new mode
+     */
+    public void setStorageMode(final StorageMode storageMode) {
+        if (storageMode == null) {
+            throw new IllegalArgumentException("The storage mode can't be null");
+        }
+        this.storageMode = storageMode;
+    }
+
     /**
      * @return the compressedCacheSize
      */
@@ -0,0 +1,431 @@
+package org.jdesktop.swingx.mapviewer.util;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+import org.jdesktop.swingx.graphics.GraphicsUtilities;
+
+/**
+ * Recycles the tile images to reduce the allocation rate, keyed by size and
+ * type.
+ * <p>
+ * Images given by {@link #acquire(int, int, int, boolean)} or
+ * {@link #decode(byte[])} are reference counted: every holder calls
+ * {@link #retain(BufferedImage)} when it keeps the image and
+ * {@link #release(BufferedImage)} when it drops it, and the image returns to
+ * the pool when the count reaches zero. Images not created by the pool are
+ * ignored by these methods, so holders don't need to know where an image
+ * comes from. An image whose holders forget to release it is simply
+ * garbage collected.
+ * </p>
+ * This class is thread safe.
+ */
+public class ImagePool implements MemoryConsumer {
+    public static final long DEFAULT_LIMIT = 16L * 1024 * 1024;
+
+    private static ImagePool defaultPool;
+
+    private static final Map<Long, BufferedImage> TRANSPARENT_IMAGES = new HashMap<Long, BufferedImage>();
+
+    private static final class Key {
+        private final int width;
+        private final int height;
+        private final int type;
+
+        private Key(final int width, final int height, final int type) {
+            this.width = width;
+            this.height = height;
+            this.type = type;
+        }
+
+        @Override
+        public int hashCode() {
+            return (width * 31 + height) * 31 + type;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return width == other.width && height == other.height && type == other.type;
+        }
+    }
+
+    private final Map<Key, LinkedList<BufferedImage>> free = new HashMap<Key, LinkedList<BufferedImage>>();
+    private final LinkedList<BufferedImage> freeOrder = new LinkedList<BufferedImage>();
+    private final Map<BufferedImage, int[]> references = new WeakHashMap<BufferedImage, int[]>();
+    private long freeBytes;
+    private long limit;
+    private long allocations;
+    private long reuses;
+
+    public ImagePool() {
+        this(DEFAULT_LIMIT);
+    }
+
+    /**
+     * @param limit maximum number of bytes of free images to keep
+     */
+    public ImagePool(final long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * @return the pool shared by the tile factories
+     */
+    public static synchronized ImagePool getDefault() {
+        if (defaultPool == null) {
+            defaultPool = new ImagePool();
+            MemoryGovernor.getInstance().register(defaultPool);
+        }
+        return defaultPool;
+    }
+
+    /**
+     * Gets an image from the pool, or creates it if there is none of that
+     * size and type. The caller holds one reference to the image.
+     *
+     * @param width the image width
+     * @param height the image height
+     * @param type the image type, one of the BufferedImage TYPE_ constants
+     * @param clear true to make the image fully transparent (or black)
+     * @return the image
+     */
+    public BufferedImage acquire(final int width, final int height, final int type, final boolean clear) {
+        BufferedImage image = null;
+        synchronized (this) {
+            final LinkedList<BufferedImage> images = free.get(new Key(width, height, type));
+            if (images != null && !images.isEmpty()) {
+                image = images.removeFirst();
+                freeOrder.remove(image);
+                freeBytes -= weight(image);
+                reuses++;
+            }
+            else {
+                allocations++;
+            }
+        }
+
+        if (image == null) {
+            image = new BufferedImage(width, height, type);
+        }
+        else if (clear) {
+            final Graphics2D g = image.createGraphics();
+            g.setComposite(AlphaComposite.Clear);
+            g.fillRect(0, 0, width, height);
+            g.dispose();
+        }
+
+        synchronized (this) {
+            references.put(image, new int[] { 1 });
+        }
+        return image;
+    }
+
+    /**
+     * Adds a reference to an image of the pool.
+     *
+     * @param image the image, can be null or an image not created by the pool
+     */
+    public synchronized void retain(final BufferedImage image) {
+        final int[] count = image == null ? null : references.get(image);
+        if (count != null) {
+            count[0]++;
+        }
+    }
+
+    /**
+     * @param image the image, can be null or an image not created by the pool
+     * @return the number of references to an image of the pool, 0 for the
+     *         other images
+     */
+    public synchronized int getReferenceCount(final BufferedImage image) {
+        final int[] count = image == null ? null : references.get(image);
+        return count == null ? 0 : count[0];
+    }
+
+    /**
+     * Removes a reference to an image of the pool. The image is recycled when
+     * nobody holds it anymore.
+     *
+     * @param image the image, can be null or an image not created by the pool
+     */
+    public synchronized void release(final BufferedImage image) {
+        final int[] count = image == null ? null : references.get(image);
+        if (count == null || --count[0] > 0) {
+            return;
+        }
+        references.remove(image);
+
+        final Key key = new Key(image.getWidth(), image.getHeight(), image.getType());
+        LinkedList<BufferedImage> images = free.get(key);
+        if (images == null) {
+            images = new LinkedList<BufferedImage>();
+            free.put(key, images);
+        }
+        images.addFirst(image);
+        freeOrder.addLast(image);
+        freeBytes += weight(image);
+        trim(limit);
+    }
+
+    /**
+     * Decodes a compressed image into a pooled image when the format allows
+     * it, or else into a new image compatible with the screen. The caller
+     * holds one reference to the result.
+     *
+     * @param data the compressed image
+     * @return the image, or null if the format isn't supported
+     * @throws IOException if the data can't be decoded
+     */
+    public BufferedImage decode(final byte[] data) throws IOException {
+        return decode(data, false);
+    }
+
+    /**
+     * Decodes a compressed image. In compact mode the image keeps the
+     * smallest representation the format allows instead of a 32 bit one:
+     * palette images stay byte indexed, opaque images are stored as 3 byte
+     * RGB and fully transparent images are replaced by a shared image, see
+     * {@link #getTransparentImage(int, int)}. Java2D still caches an
+     * accelerated copy of those images for drawing. The caller holds one
+     * reference to the result.
+     *
+     * @param data the compressed image
+     * @param compact true to use the compact representation
+     * @return the image, or null if the format isn't supported
+     * @throws IOException if the data can't be decoded
+     */
+    public BufferedImage decode(final byte[] data, final boolean compact) throws IOException {
+        final ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(data));
+        if (input == null) {
+            return null;
+        }
+        try {
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                final BufferedImage destination = acquireDestination(reader, compact);
+                if (destination == null) {
+                    final BufferedImage image = reader.read(0);
+                    if (!compact) {
+                        return GraphicsUtilities.toCompatibleImage(image);
+                    }
+                    return isFullyTransparent(image) ? getTransparentImage(image.getWidth(), image.getHeight())
+                            : image;
+                }
+
+                final ImageReadParam param = reader.getDefaultReadParam();
+                param.setDestination(destination);
+                boolean decoded = false;
+                try {
+                    reader.read(0, param);
+                    decoded = true;
+                }
+                finally {
+                    if (!decoded) {
+                        release(destination);
+                    }
+                }
+                if (compact && isFullyTransparent(destination)) {
+                    release(destination);
+                    return getTransparentImage(destination.getWidth(), destination.getHeight());
+                }
+                return destination;
+            }
+            finally {
+                reader.dispose();
+            }
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Returns a fully transparent image shared by everybody. It must not be
+     * modified.
+     *
+     * @param width the image width
+     * @param height the image height
+     * @return the shared transparent image of that size
+     */
+    public static BufferedImage getTransparentImage(final int width, final int height) {
+        final Long key = (long) width << 32 | height;
+        synchronized (TRANSPARENT_IMAGES) {
+            BufferedImage image = TRANSPARENT_IMAGES.get(key);
+            if (image == null) {
+                image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+                TRANSPARENT_IMAGES.put(key, image);
+            }
+            return image;
+        }
+    }
+
+    /**
+     * Gives the memory used by the pixels of an image, from the size of its
+     * raster. The shared transparent images cost nothing.
+     *
+     * @param image the image
+     * @return the size in bytes
+     */
+    public static long sizeOf(final BufferedImage image) {
+        synchronized (TRANSPARENT_IMAGES) {
+            if (TRANSPARENT_IMAGES.get((long) image.getWidth() << 32 | image.getHeight()) == image) {
+                return 0;
+            }
+        }
+        final DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+    /**
+     * Indicates if all the pixels of an image are fully transparent. The
+     * samples are read from the raster, which keeps the image accelerated.
+     *
+     * @param image the image
+     * @return true if the image has alpha and every pixel has zero alpha
+     */
+    public static boolean isFullyTransparent(final BufferedImage image) {
+        if (image.getColorModel() instanceof IndexColorModel) {
+            // The alpha raster of an indexed image is the index raster
+            final IndexColorModel colors = (IndexColorModel) image.getColorModel();
+            if (colors.getTransparency() == Transparency.OPAQUE) {
+                return false;
+            }
+            final Raster raster = image.getRaster();
+            final int[] row = new int[raster.getWidth()];
+            for (int y = 0; y < raster.getHeight(); y++) {
+                raster.getSamples(0, y, row.length, 1, 0, row);
+                for (final int index : row) {
+                    if (colors.getAlpha(index) != 0) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        final WritableRaster alpha = image.getAlphaRaster();
+        if (alpha == null) {
+            return false;
+        }
+        final int[] row = new int[alpha.getWidth()];
+        for (int y = 0; y < alpha.getHeight(); y++) {
+            alpha.getSamples(0, y, row.length, 1, 0, row);
+            for (final int sample : row) {
+                if (sample != 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of images created because the pool had none
+     */
+    public synchronized long getAllocations() {
+        return allocations;
+    }
+
+    /**
+     * @return the number of images reused from the pool
+     */
+    public synchronized long getReuses() {
+        return reuses;
+    }
+
+    public synchronized long getLimit() {
+        return limit;
+    }
+
+    /**
+     * Sets the maximum number of bytes of free images to keep.
+     *
+     * @param limit the new limit
+     */
+    public synchronized void setLimit(final long limit) {
+        this.limit = limit;
+        trim(limit);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public synchronized long getMemoryUsage() {
+        return freeBytes;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public synchronized long releaseMemory(final long bytes) {
+        final long before = freeBytes;
+        trim(Math.max(0, freeBytes - bytes));
+        return before - freeBytes;
+    }
+
+    private BufferedImage acquireDestination(final ImageReader reader, final boolean compact) throws IOException {
+        // Only the integer types, compatible with the usual screen
+        // configurations, and the 3 byte type of the compact mode are pooled.
+        // Compact palette images are not, each one has its own palette.
+        final Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        while (types.hasNext()) {
+            final ImageTypeSpecifier spec = types.next();
+            final int type = spec.getBufferedImageType();
+            if (compact && (type == BufferedImage.TYPE_BYTE_INDEXED || type == BufferedImage.TYPE_BYTE_BINARY)) {
+                return null;
+            }
+            if (type == BufferedImage.TYPE_INT_ARGB || type == BufferedImage.TYPE_INT_RGB && !compact
+                    || type == BufferedImage.TYPE_3BYTE_BGR && compact) {
+                return acquire(reader.getWidth(0), reader.getHeight(0), type, false);
+            }
+        }
+        return null;
+    }
+
+    private void trim(final long target) {
+        while (freeBytes > target && !freeOrder.isEmpty()) {
+            final BufferedImage image = freeOrder.removeFirst();
+            final Key key = new Key(image.getWidth(), image.getHeight(), image.getType());
+            final LinkedList<BufferedImage> images = free.get(key);
+            images.remove(image);
+            if (images.isEmpty()) {
+                free.remove(key);
+            }
+            freeBytes -= weight(image);
+        }
+    }
+
+    private static long weight(final BufferedImage image) {
+        return sizeOf(image);
+    }
+}
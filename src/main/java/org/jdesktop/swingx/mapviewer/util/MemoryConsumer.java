@@ -0,0 +1,22 @@
+package org.jdesktop.swingx.mapviewer.util;
+
+/**
+ * An object holding memory that can be given back on request, like a cache.
+ * Consumers are registered in the {@link MemoryGovernor}, which asks them to
+ * shrink when the heap is running low.
+ */
+public interface MemoryConsumer {
+
+    /**
+     * @return the estimated number of bytes currently held
+     */
+    public long getMemoryUsage();
+
+    /**
+     * Releases about the given number of bytes, least valuable entries first.
+     *
+     * @param bytes the number of bytes to release
+     * @return the number of bytes actually released
+     */
+    public long releaseMemory(final long bytes);
+}
@@ -0,0 +1,209 @@
+package org.jdesktop.swingx.mapviewer.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+/**
+ * Keeps the caches inside the heap before the JVM gets in trouble.
+ * <p>
+ * The governor sets collection usage thresholds on the heap memory pools
+ * that support them (usually the old generation) and listens to the
+ * notifications sent when they are still crossed after a garbage collection.
+ * The usage before a collection includes the garbage, so it isn't
+ * monitored. Then the governor asks the registered {@link MemoryConsumer}s
+ * to release enough memory to go back under the low watermark, each one in
+ * proportion to the memory it holds, so caches shrink gradually instead of
+ * being dropped at once.
+ * </p>
+ * Consumers are weakly referenced, so registering one doesn't keep it alive.
+ */
+public final class MemoryGovernor {
+    private static final Logger LOG = Logger.getLogger(MemoryGovernor.class.getName());
+
+    public static final float DEFAULT_HIGH_WATERMARK = 0.75f;
+    public static final float DEFAULT_LOW_WATERMARK = 0.6f;
+
+    private static MemoryGovernor instance;
+
+    private final List<WeakReference<MemoryConsumer>> consumers = new ArrayList<WeakReference<MemoryConsumer>>();
+    private final List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+    private float highWatermark = DEFAULT_HIGH_WATERMARK;
+    private float lowWatermark = DEFAULT_LOW_WATERMARK;
+
+    private MemoryGovernor() {
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()
+                    && pool.getUsage().getMax() > 0) {
+                pools.add(pool);
+            }
+        }
+        updateThresholds();
+
+        final NotificationEmitter emitter = (NotificationEmitter) ManagementFactory.getMemoryMXBean();
+        emitter.addNotificationListener(new NotificationListener() {
+            @Override
+            public void handleNotification(final Notification notification, final Object handback) {
+                if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+                    relieve();
+                }
+            }
+        }, null, null);
+    }
+
+    /**
+     * @return the shared governor, created on first use
+     */
+    public static synchronized MemoryGovernor getInstance() {
+        if (instance == null) {
+            instance = new MemoryGovernor();
+        }
+        return instance;
+    }
+
+    /**
+     * Registers a consumer to shrink when memory runs low.
+     *
+     * @param consumer the consumer
+     */
+    public synchronized void register(final MemoryConsumer consumer) {
+        for (final WeakReference<MemoryConsumer> ref : consumers) {
+            if (ref.get() == consumer) {
+                return;
+            }
+        }
+        consumers.add(new WeakReference<MemoryConsumer>(consumer));
+    }
+
+    /**
+     * Unregisters a consumer.
+     *
+     * @param consumer the consumer
+     */
+    public synchronized void unregister(final MemoryConsumer consumer) {
+        for (final Iterator<WeakReference<MemoryConsumer>> it = consumers.iterator(); it.hasNext();) {
+            final MemoryConsumer registered = it.next().get();
+            if (registered == null || registered == consumer) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Sets the heap usage ratios that start and stop the shrinking.
+     *
+     * @param high ratio of the maximum heap that triggers the shrinking
+     * @param low ratio of the maximum heap to go back to
+     */
+    public synchronized void setWatermarks(final float high, final float low) {
+        if (low <= 0 || low >= high || high >= 1) {
+            throw new IllegalArgumentException("Watermarks must verify 0 < low < high < 1");
+        }
+        highWatermark = high;
+        lowWatermark = low;
+        updateThresholds();
+    }
+
+    public synchronized float getHighWatermark() {
+        return highWatermark;
+    }
+
+    public synchronized float getLowWatermark() {
+        return lowWatermark;
+    }
+
+    /**
+     * Shrinks the consumers until the monitored pools are back under the low
+     * watermark, measured after the last garbage collection. Called
+     * automatically when a threshold is crossed, but can also be called as a
+     * last resort after an allocation failure.
+     *
+     * @return the number of bytes released
+     */
+    public long relieve() {
+        long excess = 0;
+        synchronized (this) {
+            for (final MemoryPoolMXBean pool : pools) {
+                MemoryUsage usage = pool.getCollectionUsage();
+                if (usage == null) {
+                    usage = pool.getUsage();
+                }
+                excess = Math.max(excess, usage.getUsed() - (long) (usage.getMax() * lowWatermark));
+            }
+            if (pools.isEmpty()) {
+                final Runtime runtime = Runtime.getRuntime();
+                final long used = runtime.totalMemory() - runtime.freeMemory();
+                excess = used - (long) (runtime.maxMemory() * lowWatermark);
+            }
+        }
+        return excess > 0 ? release(excess) : 0;
+    }
+
+    /**
+     * Asks the consumers to release the given number of bytes, each one in
+     * proportion to its memory usage.
+     *
+     * @param bytes the number of bytes to release
+     * @return the number of bytes released
+     */
+    public long release(final long bytes) {
+        final List<MemoryConsumer> live = new ArrayList<MemoryConsumer>();
+        synchronized (this) {
+            for (final Iterator<WeakReference<MemoryConsumer>> it = consumers.iterator(); it.hasNext();) {
+                final MemoryConsumer consumer = it.next().get();
+                if (consumer == null) {
+                    it.remove();
+                }
+                else {
+                    live.add(consumer);
+                }
+            }
+        }
+
+        // The consumers are called without holding the governor lock, they
+        // have their own locks
+        long total = 0;
+        final long[] usage = new long[live.size()];
+        for (int i = 0; i < usage.length; i++) {
+            usage[i] = live.get(i).getMemoryUsage();
+            total += usage[i];
+        }
+        if (total <= 0) {
+            return 0;
+        }
+
+        long released = 0;
+        for (int i = 0; i < usage.length; i++) {
+            final long share = (long) ((double) Math.min(bytes, total) * usage[i] / total);
+            if (share > 0) {
+                released += live.get(i).releaseMemory(share);
+            }
+        }
+        LOG.log(Level.FINE, "Released " + released / 1024 + "k from " + live.size() + " caches");
+        return released;
+    }
+
+    private void updateThresholds() {
+        for (final MemoryPoolMXBean pool : pools) {
+            final long threshold = (long) (pool.getUsage().getMax() * highWatermark);
+            try {
+                pool.setCollectionUsageThreshold(threshold);
+            }
+            catch (final RuntimeException ex) {
+                LOG.log(Level.WARNING, "Can't monitor the memory pool " + pool.getName(), ex);
+            }
+        }
+    }
+}
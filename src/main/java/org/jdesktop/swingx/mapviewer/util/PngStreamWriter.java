@@ -0,0 +1,180 @@
+package org.jdesktop.swingx.mapviewer.util;
+
+import java.awt.image.BufferedImage;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a PNG image row by row, for images too large to be held in memory.
+ * The rows are given in bands of any height, from the top, and are compressed
+ * as they come: only one row and the compression buffers are kept.
+ * <p>
+ * The image is written as 8 bit RGB or RGBA, with the "up" filter on every
+ * row. The output stream isn't closed.
+ * </p>
+ */
+public class PngStreamWriter {
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int FILTER_UP = 2;
+
+    private final DataOutputStream out;
+    private final int width;
+    private final int height;
+    private final boolean alpha;
+    private final int bytesPerPixel;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final DeflaterOutputStream idat;
+    private final int[] pixels;
+    private byte[] row;
+    private byte[] previousRow;
+    private int rowsWritten;
+
+    /**
+     * Writes the header of the image.
+     *
+     * @param out the stream to write to
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param alpha true to keep the alpha channel
+     * @throws IOException if the header can't be written
+     */
+    public PngStreamWriter(final OutputStream out, final int width, final int height, final boolean alpha)
+            throws IOException {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("Invalid size: " + width + "x" + height);
+        }
+        this.out = new DataOutputStream(out);
+        this.width = width;
+        this.height = height;
+        this.alpha = alpha;
+        bytesPerPixel = alpha ? 4 : 3;
+        pixels = new int[width];
+        row = new byte[width * bytesPerPixel + 1];
+        previousRow = new byte[row.length];
+
+        this.out.write(SIGNATURE);
+        final byte[] header = new byte[13];
+        writeInt(header, 0, width);
+        writeInt(header, 4, height);
+        header[8] = 8;
+        header[9] = (byte) (alpha ? 6 : 2);
+        writeChunk("IHDR", header, header.length);
+        idat = new DeflaterOutputStream(new ChunkOutputStream(), deflater, CHUNK_SIZE);
+    }
+
+    /**
+     * Writes the next rows of the image.
+     *
+     * @param band the rows, as wide as the image
+     * @throws IOException if the rows can't be written
+     */
+    public void write(final BufferedImage band) throws IOException {
+        if (band.getWidth() != width) {
+            throw new IllegalArgumentException("The band must be " + width + " pixels wide");
+        }
+        if (rowsWritten + band.getHeight() > height) {
+            throw new IllegalArgumentException("Too many rows");
+        }
+        for (int y = 0; y < band.getHeight(); y++) {
+            band.getRGB(0, y, width, 1, pixels, 0, width);
+            row[0] = FILTER_UP;
+            int i = 1;
+            for (int x = 0; x < width; x++) {
+                final int argb = pixels[x];
+                row[i] = (byte) ((argb >> 16) - previousRow[i]);
+                row[i + 1] = (byte) ((argb >> 8) - previousRow[i + 1]);
+                row[i + 2] = (byte) (argb - previousRow[i + 2]);
+                if (alpha) {
+                    row[i + 3] = (byte) ((argb >>> 24) - previousRow[i + 3]);
+                }
+                i += bytesPerPixel;
+            }
+            idat.write(row);
+            // Keep the raw values for the filter of the next row
+            i = 1;
+            for (int x = 0; x < width; x++) {
+                final int argb = pixels[x];
+                previousRow[i] = (byte) (argb >> 16);
+                previousRow[i + 1] = (byte) (argb >> 8);
+                previousRow[i + 2] = (byte) argb;
+                if (alpha) {
+                    previousRow[i + 3] = (byte) (argb >>> 24);
+                }
+                i += bytesPerPixel;
+            }
+            rowsWritten++;
+        }
+    }
+
+    /**
+     * @return the number of rows written
+     */
+    public int getRowsWritten() {
+        return rowsWritten;
+    }
+
+    /**
+     * Ends the image. All the rows must have been written.
+     *
+     * @throws IOException if the end of the image can't be written
+     */
+    public void finish() throws IOException {
+        if (rowsWritten != height) {
+            throw new IllegalStateException(rowsWritten + " rows written out of " + height);
+        }
+        idat.finish();
+        deflater.end();
+        writeChunk("IEND", new byte[0], 0);
+        out.flush();
+        row = null;
+        previousRow = null;
+    }
+
+    private void writeChunk(final String type, final byte[] data, final int length) throws IOException {
+        final CRC32 crc = new CRC32();
+        final byte[] typeBytes = type.getBytes("US-ASCII");
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static void writeInt(final byte[] buf, final int offset, final int value) {
+        buf[offset] = (byte) (value >>> 24);
+        buf[offset + 1] = (byte) (value >>> 16);
+        buf[offset + 2] = (byte) (value >>> 8);
+        buf[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Cuts the compressed data into IDAT chunks.
+     */
+    private final class ChunkOutputStream extends OutputStream {
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            if (off == 0) {
+                writeChunk("IDAT", b, len);
+            }
+            else {
+                final byte[] copy = new byte[len];
+                System.arraycopy(b, off, copy, 0, len);
+                writeChunk("IDAT", copy, len);
+            }
+        }
+    }
+}
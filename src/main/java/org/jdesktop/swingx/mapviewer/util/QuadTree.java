@@ -0,0 +1,267 @@
+package org.jdesktop.swingx.mapviewer.util;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Point quadtree answering the rectangle queries in O(log n + k) for spread
+ * points and queries covering a small part of the bounds, k being the number
+ * of items found. The items are points within fixed bounds, a leaf is split
+ * when it holds more than {@link #LEAF_CAPACITY} items and merged back when
+ * its parent holds fewer.
+ * The points out of the bounds are kept in the border leaves, so they're still
+ * found by the queries that reach them. Note that this class is not thread
+ * safe.
+ *
+ * @param <T> the type of the items, identified by <code>equals</code>
+ */
+public class QuadTree<T> {
+    public static final int LEAF_CAPACITY = 16;
+    /** Beyond this depth the leaves grow, for the points at the same place */
+    private static final int MAX_DEPTH = 24;
+
+    /**
+     * Receives the items found by a query.
+     */
+    public interface Visitor<T> {
+        /**
+         * @param item the item
+         * @param x the x coordinate of the item
+         * @param y the y coordinate of the item
+         */
+        void visit(T item, double x, double y);
+    }
+
+    private final Rectangle2D bounds;
+    private final Map<T, Entry<T>> entries = new HashMap<T, Entry<T>>();
+    private Node<T> root;
+
+    /**
+     * @param bounds the bounds of the indexed points
+     */
+    public QuadTree(final Rectangle2D bounds) {
+        if (bounds.isEmpty()) {
+            throw new IllegalArgumentException("The bounds can't be empty");
+        }
+        this.bounds = (Rectangle2D) bounds.clone();
+        clear();
+    }
+
+    /**
+     * @return the bounds of the indexed points
+     */
+    public Rectangle2D getBounds() {
+        return (Rectangle2D) bounds.clone();
+    }
+
+    /**
+     * @return the number of items
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @param item the item
+     * @return true if the item is indexed
+     */
+    public boolean contains(final T item) {
+        return entries.containsKey(item);
+    }
+
+    /**
+     * Adds an item, or moves it if it's already indexed.
+     *
+     * @param item the item
+     * @param x the x coordinate of the item
+     * @param y the y coordinate of the item
+     */
+    public void put(final T item, final double x, final double y) {
+        if (Double.isNaN(x) || Double.isNaN(y)) {
+            throw new IllegalArgumentException("Invalid point " + x + "," + y);
+        }
+        Entry<T> entry = entries.get(item);
+        if (entry != null) {
+            if (entry.x == x && entry.y == y) {
+                return;
+            }
+            root.remove(entry);
+        }
+        else {
+            entry = new Entry<T>(item);
+            entries.put(item, entry);
+        }
+        entry.x = x;
+        entry.y = y;
+        entry.nodeX = Math.max(bounds.getMinX(), Math.min(bounds.getMaxX(), x));
+        entry.nodeY = Math.max(bounds.getMinY(), Math.min(bounds.getMaxY(), y));
+        root.insert(entry);
+    }
+
+    /**
+     * @param item the item
+     * @return true if the item was indexed
+     */
+    public boolean remove(final T item) {
+        final Entry<T> entry = entries.remove(item);
+        if (entry == null) {
+            return false;
+        }
+        root.remove(entry);
+        return true;
+    }
+
+    /**
+     * Removes all the items.
+     */
+    public void clear() {
+        entries.clear();
+        root = new Node<T>(bounds.getMinX(), bounds.getMinY(), bounds.getMaxX(), bounds.getMaxY(), 0);
+    }
+
+    /**
+     * Finds the items within a rectangle, borders included.
+     *
+     * @param area the rectangle
+     * @param visitor receives the items found, in no particular order
+     */
+    public void query(final Rectangle2D area, final Visitor<? super T> visitor) {
+        visit(area, visitor);
+    }
+
+    /**
+     * Finds the items within a rectangle.
+     *
+     * @return the number of nodes visited
+     * @see #query(Rectangle2D, Visitor)
+     */
+    int visit(final Rectangle2D area, final Visitor<? super T> visitor) {
+        if (entries.isEmpty() || area.getWidth() < 0 || area.getHeight() < 0) {
+            return 0;
+        }
+        // The nodes hold the clamped points, the entries are checked with the
+        // real ones
+        final double minX = Math.max(bounds.getMinX(), Math.min(bounds.getMaxX(), area.getMinX()));
+        final double minY = Math.max(bounds.getMinY(), Math.min(bounds.getMaxY(), area.getMinY()));
+        final double maxX = Math.max(bounds.getMinX(), Math.min(bounds.getMaxX(), area.getMaxX()));
+        final double maxY = Math.max(bounds.getMinY(), Math.min(bounds.getMaxY(), area.getMaxY()));
+        return root.query(minX, minY, maxX, maxY, area, visitor);
+    }
+
+    private static final class Entry<T> {
+        private final T item;
+        private double x;
+        private double y;
+        private double nodeX;
+        private double nodeY;
+
+        private Entry(final T item) {
+            this.item = item;
+        }
+    }
+
+    private static final class Node<T> {
+        private final double minX;
+        private final double minY;
+        private final double maxX;
+        private final double maxY;
+        private final double midX;
+        private final double midY;
+        private final int depth;
+        private int size;
+        private List<Entry<T>> items = new ArrayList<Entry<T>>();
+        private Node<T>[] children;
+
+        private Node(final double minX, final double minY, final double maxX, final double maxY, final int depth) {
+            this.minX = minX;
+            this.minY = minY;
+            this.maxX = maxX;
+            this.maxY = maxY;
+            midX = (minX + maxX) / 2;
+            midY = (minY + maxY) / 2;
+            this.depth = depth;
+        }
+
+        private Node<T> child(final Entry<T> entry) {
+            return children[(entry.nodeX < midX ? 0 : 1) + (entry.nodeY < midY ? 0 : 2)];
+        }
+
+        private void insert(final Entry<T> entry) {
+            size++;
+            if (children != null) {
+                child(entry).insert(entry);
+                return;
+            }
+            items.add(entry);
+            if (items.size() > LEAF_CAPACITY && depth < MAX_DEPTH) {
+                split();
+            }
+        }
+
+        private void split() {
+            @SuppressWarnings("unchecked")
+            final Node<T>[] split = (Node<T>[]) new Node<?>[4];
+            split[0] = new Node<T>(minX, minY, midX, midY, depth + 1);
+            split[1] = new Node<T>(midX, minY, maxX, midY, depth + 1);
+            split[2] = new Node<T>(minX, midY, midX, maxY, depth + 1);
+            split[3] = new Node<T>(midX, midY, maxX, maxY, depth + 1);
+            children = split;
+            for (final Entry<T> entry : items) {
+                child(entry).insert(entry);
+            }
+            items = null;
+        }
+
+        private void remove(final Entry<T> entry) {
+            size--;
+            if (children == null) {
+                items.remove(entry);
+                return;
+            }
+            child(entry).remove(entry);
+            if (size <= LEAF_CAPACITY) {
+                final List<Entry<T>> merged = new ArrayList<Entry<T>>(LEAF_CAPACITY + 1);
+                collect(merged);
+                children = null;
+                items = merged;
+            }
+        }
+
+        private void collect(final List<Entry<T>> result) {
+            if (children == null) {
+                result.addAll(items);
+                return;
+            }
+            for (final Node<T> child : children) {
+                child.collect(result);
+            }
+        }
+
+        /**
+         * @return the number of nodes visited
+         */
+        private int query(final double qMinX, final double qMinY, final double qMaxX, final double qMaxY,
+                final Rectangle2D area, final Visitor<? super T> visitor) {
+            if (size == 0 || qMaxX < minX || qMinX > maxX || qMaxY < minY || qMinY > maxY) {
+                return 1;
+            }
+            if (children != null) {
+                int visited = 1;
+                for (final Node<T> child : children) {
+                    visited += child.query(qMinX, qMinY, qMaxX, qMaxY, area, visitor);
+                }
+                return visited;
+            }
+            for (final Entry<T> entry : items) {
+                if (entry.x >= area.getMinX() && entry.x <= area.getMaxX() && entry.y >= area.getMinY()
+                        && entry.y <= area.getMaxY()) {
+                    visitor.visit(entry.item, entry.x, entry.y);
+                }
+            }
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package org.jdesktop.swingx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.event.InputEvent;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseListener;
+import java.awt.event.MouseMotionListener;
+import java.awt.geom.Point2D;
+
+import javax.swing.SwingUtilities;
+
+import org.jdesktop.swingx.mapviewer.GeoPosition;
+import org.junit.Test;
+
+/**
+ * Drives the mouse panning of a {@link JXMapViewer}.
+ */
+public class JXMapViewerTest {
+    private JXMapViewer map;
+
+    /**
+     * A click without a drag used to read the drag samples at index -1.
+     */
+    @Test
+    public void testClickWithoutDragKineticPanning() throws Exception {
+        SwingUtilities.invokeAndWait(new Runnable() {
+            @Override
+            public void run() {
+                createMap();
+                final Point2D center = map.getCenter();
+                press(100, 100);
+                release(100, 100);
+                assertEquals(center, map.getCenter());
+            }
+        });
+    }
+
+    /**
+     * A drag moves the map, and a click after it doesn't.
+     */
+    @Test
+    public void testDragThenClickKineticPanning() throws Exception {
+        SwingUtilities.invokeAndWait(new Runnable() {
+            @Override
+            public void run() {
+                createMap();
+                final Point2D center = map.getCenter();
+                press(100, 100);
+                drag(120, 100);
+                drag(140, 100);
+                release(140, 100);
+                assertTrue(map.getCenter().getX() < center.getX());
+
+                final Point2D moved = map.getCenter();
+                press(50, 50);
+                release(50, 50);
+                assertEquals(moved, map.getCenter());
+            }
+        });
+    }
+
+    private void createMap() {
+        map = new JXMapViewer();
+        map.setSize(400, 300);
+        map.setZoom(1);
+        map.setCenterPosition(new GeoPosition(0, 0));
+        map.setKineticPanning(true);
+    }
+
+    private void press(final int x, final int y) {
+        final MouseEvent evt = event(MouseEvent.MOUSE_PRESSED, x, y);
+        for (final MouseListener listener : map.getMouseListeners()) {
+            listener.mousePressed(evt);
+        }
+    }
+
+    private void drag(final int x, final int y) {
+        final MouseEvent evt = event(MouseEvent.MOUSE_DRAGGED, x, y);
+        for (final MouseMotionListener listener : map.getMouseMotionListeners()) {
+            listener.mouseDragged(evt);
+        }
+    }
+
+    private void release(final int x, final int y) {
+        final MouseEvent evt = event(MouseEvent.MOUSE_RELEASED, x, y);
+        for (final MouseListener listener : map.getMouseListeners()) {
+            listener.mouseReleased(evt);
+        }
+    }
+
+    private MouseEvent event(final int id, final int x, final int y) {
+        return new MouseEvent(map, id, System.currentTimeMillis(), InputEvent.BUTTON1_DOWN_MASK, x, y, 1, false,
+                MouseEvent.BUTTON1);
+    }
+}
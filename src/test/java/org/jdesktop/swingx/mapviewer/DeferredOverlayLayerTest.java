@@ -0,0 +1,145 @@
+package org.jdesktop.swingx.mapviewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Graphics2D;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.swing.SwingUtilities;
+
+import org.jdesktop.swingx.JXMapViewer;
+import org.jdesktop.swingx.painter.Painter;
+import org.junit.Test;
+
+/**
+ * Switches a slow overlay to its deferred layer, and measures the cost of the
+ * frames drawing it.
+ */
+public class DeferredOverlayLayerTest {
+    private static final Logger LOG = Logger.getLogger(DeferredOverlayLayerTest.class.getName());
+
+    private JXMapViewer map;
+    private DeferredOverlayLayer layer;
+    private final AtomicInteger paints = new AtomicInteger();
+
+    /**
+     * The frame going over the budget paints the overlay once, the layer is
+     * rendered when the map is idle.
+     */
+    @Test(timeout = 60000)
+    public void testOverBudgetFramePaintsOnce() throws Exception {
+        final Painter<JXMapViewer> overlay = new Painter<JXMapViewer>() {
+            @Override
+            public void paint(final Graphics2D g, final JXMapViewer object, final int width, final int height) {
+                paints.incrementAndGet();
+                try {
+                    Thread.sleep(20);
+                }
+                catch (final InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        SwingUtilities.invokeAndWait(new Runnable() {
+            @Override
+            public void run() {
+                map = new JXMapViewer();
+                map.setSize(300, 200);
+                map.setOverlayPainter(overlay);
+                layer = new DeferredOverlayLayer(map);
+                layer.setTimeBudget(5);
+                layer.setIdleDelay(10);
+                paint(overlay);
+                assertTrue(layer.isDeferred());
+                assertEquals(1, paints.get());
+            }
+        });
+        while (paints.get() < 2) {
+            Thread.sleep(10);
+        }
+        SwingUtilities.invokeAndWait(new Runnable() {
+            @Override
+            public void run() {
+                // Drawn from the layer
+                paint(overlay);
+                assertEquals(2, paints.get());
+            }
+        });
+    }
+
+    /**
+     * The frames of a pan draw the layer of a heavy overlay instead of
+     * painting it.
+     */
+    @Test(timeout = 60000)
+    public void testPanFrameCost() throws Exception {
+        final Painter<JXMapViewer> overlay = new Painter<JXMapViewer>() {
+            @Override
+            public void paint(final Graphics2D g, final JXMapViewer object, final int width, final int height) {
+                paints.incrementAndGet();
+                for (int i = 0; i < 20000; i++) {
+                    g.fillOval(i * 7 % width, i * 13 % height, 6, 6);
+                }
+            }
+        };
+        final long[] painted = new long[1];
+        SwingUtilities.invokeAndWait(new Runnable() {
+            @Override
+            public void run() {
+                map = new JXMapViewer();
+                map.setSize(300, 200);
+                map.setOverlayPainter(overlay);
+                layer = new DeferredOverlayLayer(map);
+                painted[0] = measurePan(overlay);
+                layer.setTimeBudget(1);
+                layer.setIdleDelay(10);
+                paint(overlay);
+                assertTrue(layer.isDeferred());
+            }
+        });
+        final int before = paints.get();
+        while (paints.get() == before) {
+            Thread.sleep(10);
+        }
+        SwingUtilities.invokeAndWait(new Runnable() {
+            @Override
+            public void run() {
+                final int paintsBefore = paints.get();
+                final long deferred = measurePan(overlay);
+                LOG.info(String.format("pan frame: %.2f ms painting the overlay, %.2f ms drawing its layer",
+                        painted[0] / 1e6, deferred / 1e6));
+                assertEquals(paintsBefore, paints.get());
+                assertTrue(deferred < painted[0]);
+            }
+        });
+    }
+
+    /**
+     * @return the average nanoseconds of a frame while the map pans
+     */
+    private long measurePan(final Painter<JXMapViewer> overlay) {
+        final Point2D center = map.getCenter();
+        final int frames = 50;
+        final long start = System.nanoTime();
+        for (int frame = 0; frame < frames; frame++) {
+            map.setCenter(new Point2D.Double(center.getX() + frame * 2, center.getY()));
+            paint(overlay);
+        }
+        return (System.nanoTime() - start) / frames;
+    }
+
+    private void paint(final Painter<JXMapViewer> overlay) {
+        final BufferedImage image = new BufferedImage(300, 200, BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D g = image.createGraphics();
+        try {
+            layer.paint(g, overlay);
+        }
+        finally {
+            g.dispose();
+        }
+    }
+}
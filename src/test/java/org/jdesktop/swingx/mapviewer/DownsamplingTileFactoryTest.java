@@ -0,0 +1,132 @@
+package org.jdesktop.swingx.mapviewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+
+import javax.imageio.ImageIO;
+
+import org.jdesktop.swingx.mapviewer.cache.TieredTileCache;
+import org.jdesktop.swingx.mapviewer.util.ImageCache;
+import org.jdesktop.swingx.mapviewer.util.ImagePool;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Builds overview tiles from the decoded tiles of a detailed map, four zoom
+ * levels below like the minimap of {@link org.jdesktop.swingx.JXMapKit}.
+ */
+public class DownsamplingTileFactoryTest {
+    private static final int ZOOM = 8;
+    private static final int DETAILED_ZOOM = ZOOM - DownsamplingTileFactory.DEFAULT_LEVELS;
+    private static final int X = 3;
+    private static final int Y = 5;
+
+    private TileFactoryInfo info;
+    private DownsamplingTileFactory factory;
+    private ImageCache imageCache;
+
+    @Before
+    public void setUp() {
+        info = new TileFactoryInfo(1, 15, 17, 256, true, true, "http://tile.invalid/?", "x", "y", "z");
+        factory = new DownsamplingTileFactory(new DefaultTileFactory(info));
+        imageCache = factory.getTileCache().getImageCache();
+    }
+
+    /**
+     * The detailed tiles of the whole area are found four levels below.
+     */
+    @Test
+    public void testBuildsFromDetailedLevel() throws IOException {
+        decodeDetailed(0, 16, Color.RED);
+        final BufferedImage img = factory.downsample(X, Y, ZOOM);
+        assertNotNull(img);
+        assertEquals(Color.RED.getRGB(), img.getRGB(0, 0));
+        assertEquals(Color.RED.getRGB(), img.getRGB(255, 255));
+        ImagePool.getDefault().release(img);
+    }
+
+    /**
+     * The parts the detailed tiles don't cover come from a less detailed
+     * tile.
+     */
+    @Test
+    public void testFillsGapsFromAncestor() throws IOException {
+        decodeDetailed(0, 8, Color.RED);
+        decode(X >> 1, Y >> 1, ZOOM + 1, Color.BLUE);
+        final BufferedImage img = factory.downsample(X, Y, ZOOM);
+        assertNotNull(img);
+        assertEquals(Color.RED.getRGB(), img.getRGB(10, 10));
+        assertEquals(Color.BLUE.getRGB(), img.getRGB(200, 10));
+        ImagePool.getDefault().release(img);
+    }
+
+    /**
+     * A tile with holes is downloaded instead.
+     */
+    @Test
+    public void testPartialWithoutAncestor() throws IOException {
+        decodeDetailed(0, 8, Color.RED);
+        assertNull(factory.downsample(X, Y, ZOOM));
+    }
+
+    /**
+     * Building a tile neither decodes nor promotes the tiles of the lower
+     * tiers, nor counts in the statistics of the shared cache.
+     */
+    @Test
+    public void testOnlyPeeksDecodedTier() throws IOException {
+        for (int i = 0; i < 16; i++) {
+            for (int j = 0; j < 16; j++) {
+                imageCache.put(uri(X * 16 + i, Y * 16 + j, DETAILED_ZOOM), png(Color.RED), null);
+            }
+        }
+        final long decodes = imageCache.getDecodeCount();
+        assertNull(factory.downsample(X, Y, ZOOM));
+        assertEquals(decodes, imageCache.getDecodeCount());
+        assertEquals(0, imageCache.getUncompressedSize());
+        assertEquals(0, factory.getTileCache().getHits(TieredTileCache.Tier.DECODED));
+        assertEquals(0, factory.getTileCache().getMisses(TieredTileCache.Tier.DECODED));
+    }
+
+    /**
+     * Decodes the detailed tiles of the columns from first to last, excluded.
+     */
+    private void decodeDetailed(final int first, final int last, final Color color) throws IOException {
+        for (int i = first; i < last; i++) {
+            for (int j = 0; j < 16; j++) {
+                decode(X * 16 + i, Y * 16 + j, DETAILED_ZOOM, color);
+            }
+        }
+    }
+
+    private void decode(final int x, final int y, final int zoom, final Color color) throws IOException {
+        imageCache.put(uri(x, y, zoom), png(color), image(color));
+    }
+
+    private URI uri(final int x, final int y, final int zoom) {
+        return URI.create(info.getTileUrl(x, y, zoom));
+    }
+
+    private static BufferedImage image(final Color color) {
+        final BufferedImage img = new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D g2 = img.createGraphics();
+        g2.setColor(color);
+        g2.fillRect(0, 0, 256, 256);
+        g2.dispose();
+        return img;
+    }
+
+    private static byte[] png(final Color color) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image(color), "png", out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,125 @@
+package org.jdesktop.swingx.mapviewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+
+import org.jdesktop.swingx.JXMapViewer;
+import org.jdesktop.swingx.painter.Painter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Measures the maps per second rendered by a {@link MapRenderer} from the
+ * tiles of a stub tile server.
+ */
+public class MapRendererThroughputTest {
+    private static final Logger LOG = Logger.getLogger(MapRendererThroughputTest.class.getName());
+
+    private static final int ZOOM = 5;
+    private static final int MAPS = 40;
+
+    private HttpServer tileServer;
+    private final AtomicInteger tileRequests = new AtomicInteger();
+    private MapRenderer renderer;
+    private ExecutorService clients;
+
+    @Before
+    public void setUp() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB), "png", out);
+        final byte[] png = out.toByteArray();
+
+        tileServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        tileServer.createContext("/tiles", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                tileRequests.incrementAndGet();
+                exchange.getResponseHeaders().set("Content-Type", "image/png");
+                exchange.sendResponseHeaders(200, png.length);
+                final OutputStream body = exchange.getResponseBody();
+                body.write(png);
+                body.close();
+            }
+        });
+        tileServer.setExecutor(Executors.newFixedThreadPool(8));
+        tileServer.start();
+
+        renderer = new MapRenderer(new DefaultTileFactory(new TileFactoryInfo(1, 15, 17, 256, true, true,
+                "http://127.0.0.1:" + tileServer.getAddress().getPort() + "/tiles?", "x", "y", "z")));
+        renderer.setUnloadedTiles(MapRenderer.UnloadedTiles.FAIL);
+        clients = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        clients.shutdownNow();
+        tileServer.stop(0);
+    }
+
+    /**
+     * Renders the same maps with the tiles downloaded, then cached.
+     */
+    @Test(timeout = 120000)
+    public void testMapsPerSecond() throws Exception {
+        final double cold = renderMaps();
+        final int downloaded = tileRequests.get();
+        final double warm = renderMaps();
+        LOG.info(String.format("%.1f maps/s downloading the tiles, %.1f maps/s from the cache", cold, warm));
+        assertTrue(downloaded > 0);
+        assertEquals(downloaded, tileRequests.get());
+    }
+
+    /**
+     * @return the maps rendered per second
+     */
+    private double renderMaps() throws Exception {
+        final Painter<JXMapViewer> marker = new Painter<JXMapViewer>() {
+            @Override
+            public void paint(final Graphics2D g, final JXMapViewer map, final int width, final int height) {
+                g.fillOval(width / 2 - 4, height / 2 - 4, 8, 8);
+            }
+        };
+        final List<Painter<JXMapViewer>> painters = new ArrayList<Painter<JXMapViewer>>();
+        painters.add(marker);
+
+        final long start = System.nanoTime();
+        final List<Future<BufferedImage>> maps = new ArrayList<Future<BufferedImage>>();
+        for (int i = 0; i < MAPS; i++) {
+            final GeoPosition center = new GeoPosition(40 + i % 8 * 0.5, -3 + i / 8 * 0.5);
+            maps.add(clients.submit(new Callable<BufferedImage>() {
+                @Override
+                public BufferedImage call() throws Exception {
+                    return renderer.render(center, ZOOM, new Dimension(600, 400), painters);
+                }
+            }));
+        }
+        for (final Future<BufferedImage> map : maps) {
+            assertEquals(600, map.get().getWidth());
+            assertEquals(400, map.get().getHeight());
+        }
+        return MAPS / ((System.nanoTime() - start) / 1e9);
+    }
+}
@@ -0,0 +1,221 @@
+package org.jdesktop.swingx.mapviewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsDevice;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DirectColorModel;
+import java.util.Random;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks which copies a {@link TileImageAccelerator} keeps, drawing to an
+ * image posing as the screen, and how fast they are drawn.
+ */
+public class TileImageAcceleratorTest {
+    private static final Logger LOG = Logger.getLogger(TileImageAcceleratorTest.class.getName());
+
+    private static final int ZOOM = 10;
+
+    private TileFactory factory;
+    private TileImageAccelerator accelerator;
+    private BufferedImage screen;
+    private Graphics2D g;
+    private final Tile[][] tiles = new Tile[2][2];
+    private final BufferedImage[][] images = new BufferedImage[2][2];
+
+    @Before
+    public void setUp() {
+        factory = new DefaultTileFactory(new TileFactoryInfo(1, 15, 17, 256, true, true, "http://tile.invalid/?",
+                "x", "y", "z"));
+        accelerator = new TileImageAccelerator() {
+            @Override
+            protected GraphicsConfiguration getScreenConfiguration(final Graphics graphics) {
+                return new ScreenConfiguration();
+            }
+        };
+        screen = new BufferedImage(512, 512, BufferedImage.TYPE_INT_RGB);
+        g = screen.createGraphics();
+        for (int x = 0; x < 2; x++) {
+            for (int y = 0; y < 2; y++) {
+                tiles[x][y] = new Tile(x, y, ZOOM);
+                images[x][y] = new BufferedImage(256, 256, BufferedImage.TYPE_BYTE_GRAY);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        g.dispose();
+    }
+
+    /**
+     * The repaints of a single tile, like the ones of the tiles loading, keep
+     * the copies of the other tiles of the viewport.
+     */
+    @Test
+    public void testClippedRepaintsKeepViewport() {
+        final TileRange viewport = new TileRange(factory, ZOOM, new Rectangle(0, 0, 512, 512));
+        drawAll();
+        accelerator.endFrame(viewport);
+        assertEquals(4, accelerator.getCount());
+        for (int frame = 0; frame < 10; frame++) {
+            draw(0, 0);
+            accelerator.endFrame(viewport);
+        }
+        assertEquals(4, accelerator.getCount());
+        drawAll();
+        accelerator.endFrame(viewport);
+        assertEquals(4, accelerator.getConversions());
+    }
+
+    /**
+     * The copies of the tiles leaving the viewport are dropped.
+     */
+    @Test
+    public void testDropsTilesOutOfViewport() {
+        drawAll();
+        accelerator.endFrame(new TileRange(factory, ZOOM, new Rectangle(0, 0, 512, 512)));
+        accelerator.endFrame(new TileRange(factory, ZOOM, new Rectangle(256, 0, 512, 256)));
+        assertEquals(1, accelerator.getCount());
+        accelerator.endFrame(new TileRange(factory, ZOOM, new Rectangle(0, 0, 512, 512)));
+        assertEquals(1, accelerator.getCount());
+        accelerator.endFrame(new TileRange(factory, ZOOM - 1, new Rectangle(0, 0, 512, 512)));
+        assertEquals(0, accelerator.getCount());
+    }
+
+    /**
+     * The columns wrapped around the map are in the range.
+     */
+    @Test
+    public void testRangeWrapsColumns() {
+        final int mapWidth = factory.getMapSize(ZOOM).width;
+        final TileRange range = new TileRange(factory, ZOOM, new Rectangle(-256, 0, 512, 256));
+        assertTrue(range.contains(new Tile(mapWidth - 1, 0, ZOOM)));
+        assertTrue(range.contains(new Tile(0, 0, ZOOM)));
+        assertFalse(range.contains(new Tile(1, 0, ZOOM)));
+        assertFalse(range.contains(new Tile(0, 1, ZOOM)));
+    }
+
+    /**
+     * The copies are given back to the memory governor, the least recently
+     * drawn first.
+     */
+    @Test
+    public void testReleaseMemory() {
+        final TileRange viewport = new TileRange(factory, ZOOM, new Rectangle(0, 0, 512, 512));
+        drawAll();
+        accelerator.endFrame(viewport);
+        draw(1, 1);
+        accelerator.endFrame(viewport);
+        final long copy = 4L * 256 * 256;
+        assertEquals(4 * copy, accelerator.getMemoryUsage());
+        assertEquals(3 * copy, accelerator.releaseMemory(3 * copy - 1));
+        assertEquals(copy, accelerator.getMemoryUsage());
+
+        // The last drawn tile is kept
+        draw(1, 1);
+        assertEquals(4, accelerator.getConversions());
+    }
+
+    /**
+     * Draws palette tiles, like the ones decoded in compact mode, directly
+     * and through their copies compatible with the screen. Headless, the
+     * difference is the conversion of the pixels on every draw.
+     */
+    @Test
+    public void testDrawThroughput() {
+        final Random random = new Random(0);
+        for (int x = 0; x < 2; x++) {
+            for (int y = 0; y < 2; y++) {
+                images[x][y] = new BufferedImage(256, 256, BufferedImage.TYPE_BYTE_INDEXED);
+                final byte[] pixels = new byte[256 * 256];
+                random.nextBytes(pixels);
+                images[x][y].getRaster().setDataElements(0, 0, 256, 256, pixels);
+            }
+        }
+        accelerator.setMode(TileImageAccelerator.Mode.DISABLED);
+        final double unmanaged = measureDraws();
+        accelerator.setMode(TileImageAccelerator.Mode.MANAGED);
+        final double managed = measureDraws();
+        LOG.info(String.format("drawImage: %.0f tiles/s unmanaged, %.0f tiles/s managed", unmanaged, managed));
+        assertEquals(4, accelerator.getConversions());
+        assertTrue(managed > unmanaged);
+    }
+
+    /**
+     * @return the tiles drawn per second
+     */
+    private double measureDraws() {
+        final TileRange viewport = new TileRange(factory, ZOOM, new Rectangle(0, 0, 512, 512));
+        for (int frame = 0; frame < 50; frame++) {
+            drawAll();
+            accelerator.endFrame(viewport);
+        }
+        final int frames = 500;
+        final long start = System.nanoTime();
+        for (int frame = 0; frame < frames; frame++) {
+            drawAll();
+            accelerator.endFrame(viewport);
+        }
+        return frames * 4 / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private void drawAll() {
+        for (int x = 0; x < 2; x++) {
+            for (int y = 0; y < 2; y++) {
+                draw(x, y);
+            }
+        }
+    }
+
+    private void draw(final int x, final int y) {
+        accelerator.drawTile(g, tiles[x][y], images[x][y], x * 256, y * 256);
+    }
+
+    private static class ScreenConfiguration extends GraphicsConfiguration {
+        @Override
+        public GraphicsDevice getDevice() {
+            return null;
+        }
+
+        @Override
+        public ColorModel getColorModel() {
+            return ColorModel.getRGBdefault();
+        }
+
+        @Override
+        public ColorModel getColorModel(final int transparency) {
+            return transparency == Transparency.OPAQUE ? new DirectColorModel(24, 0xff0000, 0xff00, 0xff)
+                    : ColorModel.getRGBdefault();
+        }
+
+        @Override
+        public AffineTransform getDefaultTransform() {
+            return new AffineTransform();
+        }
+
+        @Override
+        public AffineTransform getNormalizingTransform() {
+            return new AffineTransform();
+        }
+
+        @Override
+        public Rectangle getBounds() {
+            return new Rectangle(0, 0, 512, 512);
+        }
+    }
+}
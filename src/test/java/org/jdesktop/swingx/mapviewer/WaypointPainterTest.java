@@ -0,0 +1,150 @@
+package org.jdesktop.swingx.mapviewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Graphics2D;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.swing.SwingUtilities;
+
+import org.jdesktop.swingx.JXMapViewer;
+import org.junit.Test;
+
+/**
+ * Measures the cost of painting many waypoints while the map pans, with and
+ * without the cached layer and the spatial index.
+ */
+public class WaypointPainterTest {
+    private static final Logger LOG = Logger.getLogger(WaypointPainterTest.class.getName());
+
+    private static final int WIDTH = 800;
+    private static final int HEIGHT = 600;
+    private static final int FRAMES = 100;
+
+    private JXMapViewer map;
+    private Point2D start;
+    private final Set<Waypoint> waypoints = new HashSet<Waypoint>();
+
+    /**
+     * After a pan the cached layer shows the same waypoints, but for the
+     * rounding of the blending. Near the left, right and bottom edges the
+     * layer also shows the icons of the waypoints just out of the viewport,
+     * which the plain paint skips.
+     */
+    @Test(timeout = 120000)
+    public void testLayerMatchesPlainPaint() throws Exception {
+        createWaypoints(300);
+        SwingUtilities.invokeAndWait(new Runnable() {
+            @Override
+            public void run() {
+                createMap();
+                final BufferedImage plainFrame = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+                measurePan(createPainter(false, false), plainFrame);
+                final BufferedImage cachedFrame = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+                measurePan(createPainter(true, false), cachedFrame);
+                assertEquals(0, countDifferences(plainFrame, cachedFrame));
+            }
+        });
+    }
+
+    /**
+     * Panning over many waypoints costs a fraction with the cached layer.
+     */
+    @Test(timeout = 120000)
+    public void testPanPaintCost() throws Exception {
+        createWaypoints(20000);
+        SwingUtilities.invokeAndWait(new Runnable() {
+            @Override
+            public void run() {
+                createMap();
+                final long plain = measurePan(createPainter(false, false), null);
+                final long indexed = measurePan(createPainter(false, true), null);
+                final long cached = measurePan(createPainter(true, false), null);
+                final long both = measurePan(createPainter(true, true), null);
+                LOG.info(String.format("pan frame: %.2f ms plain, %.2f ms indexed, %.2f ms layer cached, "
+                        + "%.2f ms both", plain / 1e6, indexed / 1e6, cached / 1e6, both / 1e6));
+                assertTrue(cached < plain);
+                assertTrue(both < plain);
+            }
+        });
+    }
+
+    private void createWaypoints(final int count) {
+        final Random random = new Random(0);
+        for (int i = 0; i < count; i++) {
+            waypoints.add(new Waypoint(39 + random.nextDouble() * 2, -4 + random.nextDouble() * 2));
+        }
+    }
+
+    private void createMap() {
+        map = new JXMapViewer();
+        map.setTileFactory(new DefaultTileFactory(new TileFactoryInfo(1, 15, 17, 256, true, true,
+                "http://tile.invalid/?", "x", "y", "z")));
+        map.setSize(WIDTH, HEIGHT);
+        map.setZoom(8);
+        map.setCenterPosition(new GeoPosition(40, -3));
+        start = map.getCenter();
+    }
+
+    private WaypointPainter<JXMapViewer> createPainter(final boolean layerCached, final boolean indexed) {
+        final WaypointPainter<JXMapViewer> painter = new WaypointPainter<JXMapViewer>();
+        painter.setWaypoints(waypoints);
+        painter.setLayerCached(layerCached);
+        painter.setSpatiallyIndexed(indexed);
+        return painter;
+    }
+
+    /**
+     * @param last the image receiving the last frame, or null
+     * @return the average nanoseconds of a frame while the map pans
+     */
+    private long measurePan(final WaypointPainter<JXMapViewer> painter, final BufferedImage last) {
+        map.setCenter(start);
+        paint(painter, new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB));
+        final long begin = System.nanoTime();
+        for (int frame = 1; frame <= FRAMES; frame++) {
+            map.setCenter(new Point2D.Double(start.getX() + frame * 4, start.getY() + frame));
+            paint(painter, frame == FRAMES && last != null ? last
+                    : new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB));
+        }
+        return (System.nanoTime() - begin) / FRAMES;
+    }
+
+    private void paint(final WaypointPainter<JXMapViewer> painter, final BufferedImage frame) {
+        final Graphics2D g = frame.createGraphics();
+        try {
+            painter.paint(g, map, WIDTH, HEIGHT);
+        }
+        finally {
+            g.dispose();
+        }
+    }
+
+    /**
+     * @return the number of pixels away from the edges with a component
+     *         differing by more than 2
+     */
+    private static int countDifferences(final BufferedImage expected, final BufferedImage actual) {
+        final int margin = WaypointPainter.DEFAULT_ICON_MARGIN;
+        final int width = WIDTH - 2 * margin;
+        final int height = HEIGHT - margin;
+        final int[] a = expected.getRGB(margin, 0, width, height, null, 0, width);
+        final int[] b = actual.getRGB(margin, 0, width, height, null, 0, width);
+        int differences = 0;
+        for (int i = 0; i < a.length; i++) {
+            for (int shift = 0; shift < 32; shift += 8) {
+                if (Math.abs((a[i] >>> shift & 0xff) - (b[i] >>> shift & 0xff)) > 2) {
+                    differences++;
+                    break;
+                }
+            }
+        }
+        return differences;
+    }
+}
@@ -0,0 +1,249 @@
+package org.jdesktop.swingx.mapviewer.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Shares a {@link DiskTileStore} directory between several JVMs. The forked
+ * processes run {@link #main(String[])}.
+ */
+public class DiskTileStoreProcessTest {
+    private static final int PROCESSES = 4;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("tiles", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * Several processes write and read the same keys, with a small store so
+     * they also evict, compact and rehash. No process may read the value of
+     * another key, or a damaged one.
+     */
+    @Test(timeout = 300000)
+    public void testConcurrentProcesses() throws Exception {
+        final List<Process> processes = new ArrayList<Process>();
+        for (int i = 0; i < PROCESSES; i++) {
+            processes.add(fork("mixed", directory.getPath(), String.valueOf(i), "6000"));
+        }
+        for (final Process process : processes) {
+            assertEquals("bad=0", waitFor(process));
+        }
+
+        final DiskTileStore store = new DiskTileStore(directory, 2L * 1024 * 1024);
+        try {
+            assertTrue(store.getCount() > 0);
+            for (int i = 0; i < 6000; i++) {
+                final byte[] data = store.get(key(i));
+                if (data != null) {
+                    assertArrayEquals(value(key(i)), data);
+                }
+            }
+        }
+        finally {
+            store.close();
+        }
+    }
+
+    /**
+     * A store that stays open must find the tiles another process wrote
+     * after growing the index, which is published through the lock file.
+     */
+    @Test(timeout = 300000)
+    public void testRehashPublishedToOpenStore() throws Exception {
+        final DiskTileStore store = new DiskTileStore(directory);
+        try {
+            for (int i = 0; i < 10; i++) {
+                store.put(key(i), value(key(i)));
+            }
+            final String[] before = indexFiles();
+
+            // Far more than the load factor of the initial index allows
+            assertEquals("count=10000", waitFor(fork("fill", directory.getPath(), "0", "10000")));
+            assertFalse(Arrays.equals(before, indexFiles()));
+
+            assertEquals(10000, store.getCount());
+            for (int i = 0; i < 10000; i++) {
+                assertArrayEquals(value(key(i)), store.get(key(i)));
+            }
+            store.put("after", value("after"));
+        }
+        finally {
+            store.close();
+        }
+        assertEquals("count=10001", waitFor(fork("count", directory.getPath())));
+    }
+
+    /**
+     * Data files without an index are unreachable, the next process to open
+     * the store deletes them.
+     */
+    @Test(timeout = 300000)
+    public void testMissingIndexDeletesData() throws Exception {
+        assertEquals("count=500", waitFor(fork("fill", directory.getPath(), "0", "500")));
+        assertTrue(dataFiles().length > 0);
+        for (final String name : indexFiles()) {
+            assertTrue(new File(directory, name).delete());
+        }
+
+        assertEquals("count=0", waitFor(fork("count", directory.getPath())));
+        assertEquals(0, dataFiles().length);
+
+        final DiskTileStore store = new DiskTileStore(directory);
+        try {
+            assertEquals(0, store.getCount());
+            store.put(key(1), value(key(1)));
+            assertArrayEquals(value(key(1)), store.get(key(1)));
+        }
+        finally {
+            store.close();
+        }
+    }
+
+    /**
+     * Entry point of the forked processes. Prints its result on the last line
+     * of the standard output.
+     *
+     * @param args the command, the store directory and the command arguments
+     * @throws IOException if the store fails
+     */
+    public static void main(final String[] args) throws IOException {
+        final String command = args[0];
+        final File dir = new File(args[1]);
+        if (command.equals("mixed")) {
+            final DiskTileStore store = new DiskTileStore(dir, 2L * 1024 * 1024);
+            final Random random = new Random(Integer.parseInt(args[2]));
+            final int keys = Integer.parseInt(args[3]);
+            int bad = 0;
+            for (int i = 0; i < 20000; i++) {
+                final String key = key(random.nextInt(keys));
+                if (random.nextInt(3) == 0) {
+                    store.put(key, value(key));
+                }
+                else {
+                    final byte[] data = store.get(key);
+                    if (data != null && !Arrays.equals(value(key), data)) {
+                        bad++;
+                    }
+                }
+                if (i % 5000 == 0) {
+                    store.compact();
+                }
+            }
+            store.close();
+            System.out.println("bad=" + bad);
+        }
+        else if (command.equals("fill")) {
+            final DiskTileStore store = new DiskTileStore(dir);
+            for (int i = Integer.parseInt(args[2]); i < Integer.parseInt(args[3]); i++) {
+                store.put(key(i), value(key(i)));
+            }
+            System.out.println("count=" + store.getCount());
+            store.close();
+        }
+        else if (command.equals("count")) {
+            final DiskTileStore store = new DiskTileStore(dir);
+            System.out.println("count=" + store.getCount());
+            store.close();
+        }
+        else {
+            throw new IllegalArgumentException("Unknown command " + command);
+        }
+    }
+
+    private static String key(final int i) {
+        return "http://tile.example.com/" + i % 16 + "/" + i + ".png";
+    }
+
+    /**
+     * @return a value only valid for that key, of varying length
+     */
+    private static byte[] value(final String key) {
+        final byte[] value = new byte[100 + (key.hashCode() & 0x3ff)];
+        Arrays.fill(value, (byte) key.hashCode());
+        return value;
+    }
+
+    private String[] indexFiles() {
+        final List<String> names = new ArrayList<String>();
+        for (final String name : directory.list()) {
+            if (name.endsWith(".idx")) {
+                names.add(name);
+            }
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    private File[] dataFiles() {
+        final List<File> files = new ArrayList<File>();
+        for (final File file : directory.listFiles()) {
+            if (file.getName().endsWith(".dat")) {
+                files.add(file);
+            }
+        }
+        return files.toArray(new File[files.size()]);
+    }
+
+    private static Process fork(final String... args) throws IOException {
+        final List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(DiskTileStoreProcessTest.class.getName());
+        command.addAll(Arrays.asList(args));
+        return new ProcessBuilder(command).redirectErrorStream(true).start();
+    }
+
+    /**
+     * @return the last line printed by the process
+     */
+    private static String waitFor(final Process process) throws Exception {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        final StringBuilder output = new StringBuilder();
+        String last = null;
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                output.append(line).append('\n');
+                last = line;
+            }
+        }
+        finally {
+            reader.close();
+        }
+        assertEquals(output.toString(), 0, process.waitFor());
+        assertNotNull(last);
+        return last;
+    }
+}
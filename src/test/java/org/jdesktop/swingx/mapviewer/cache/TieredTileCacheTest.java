@@ -0,0 +1,71 @@
+package org.jdesktop.swingx.mapviewer.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+
+import javax.imageio.ImageIO;
+
+import org.jdesktop.swingx.mapviewer.util.ImagePool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Puts tiles in a {@link TieredTileCache} writing through to a disk tier.
+ */
+public class TieredTileCacheTest {
+    private File directory;
+    private DiskTileStore store;
+    private TieredTileCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("tiles", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        store = new DiskTileStore(directory);
+        cache = new TieredTileCache();
+        cache.setDiskStore(store);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        store.close();
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * A tile without metadata is kept like a permanent one, in every tier.
+     */
+    @Test
+    public void testPutWithoutMetadata() throws IOException {
+        final String key = "http://tile.example.com/1/2/3.png";
+        final byte[] data = png();
+        final BufferedImage img = cache.put(URI.create(key), key, data, null);
+        assertNotNull(img);
+        ImagePool.getDefault().release(img);
+
+        assertArrayEquals(data, store.get(key));
+        assertSame(TileMetadata.PERMANENT, cache.getMetadata(URI.create(key)));
+    }
+
+    private static byte[] png() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB), "png", out);
+        return out.toByteArray();
+    }
+}
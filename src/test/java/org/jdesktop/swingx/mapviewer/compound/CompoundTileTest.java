@@ -0,0 +1,79 @@
+package org.jdesktop.swingx.mapviewer.compound;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jdesktop.swingx.mapviewer.Tile;
+import org.jdesktop.swingx.mapviewer.TileImageBudget;
+import org.jdesktop.swingx.mapviewer.util.ImagePool;
+import org.junit.Test;
+
+/**
+ * Paints {@link CompoundTile}s from several threads.
+ */
+public class CompoundTileTest {
+    private static final int SIZE = 64;
+
+    /**
+     * With a budget of a single composite, each paint releases the composite
+     * of the other tile, which used to lock both tiles in opposite orders.
+     * The budget is never updated while the lock of a tile is held.
+     */
+    @Test(timeout = 60000)
+    public void testTilesEvictingEachOther() throws Exception {
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final TileImageBudget budget = new TileImageBudget(ImagePool.sizeOf(new BufferedImage(SIZE, SIZE,
+                BufferedImage.TYPE_INT_RGB))) {
+            @Override
+            public void update(final Tile tile, final BufferedImage image) {
+                if (Thread.holdsLock(tile)) {
+                    error.compareAndSet(null, new AssertionError("Budget updated holding the lock of " + tile));
+                }
+                super.update(tile, image);
+            }
+        };
+        final CompoundTile first = createTile(0, budget);
+        final CompoundTile second = createTile(1, budget);
+
+        final Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final boolean reverse = i % 2 == 1;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 5000; j++) {
+                            paint(reverse ? second : first);
+                            paint(reverse ? first : second);
+                        }
+                    }
+                    catch (final Throwable ex) {
+                        error.compareAndSet(null, ex);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(error.get());
+    }
+
+    private static void paint(final CompoundTile tile) {
+        final BufferedImage img = tile.acquireImage();
+        assertNotNull(img);
+        ImagePool.getDefault().release(img);
+    }
+
+    private static CompoundTile createTile(final int x, final TileImageBudget budget) {
+        final Tile base = new Tile(x, 0, 1);
+        base.setImage(new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_RGB));
+        final CompoundTile tile = new CompoundTile(SIZE, base);
+        tile.setImageBudget(budget);
+        return tile;
+    }
+}
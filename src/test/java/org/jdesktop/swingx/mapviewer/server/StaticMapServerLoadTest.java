@@ -0,0 +1,264 @@
+package org.jdesktop.swingx.mapviewer.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import org.jdesktop.swingx.mapviewer.DefaultTileFactory;
+import org.jdesktop.swingx.mapviewer.MapRenderer;
+import org.jdesktop.swingx.mapviewer.TileFactoryInfo;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Loads a {@link StaticMapServer} rendering the tiles of a stub tile server.
+ */
+public class StaticMapServerLoadTest {
+    private static final int TILE_DELAY = 5;
+
+    private HttpServer tileServer;
+    private final AtomicInteger tileRequests = new AtomicInteger();
+    private DefaultTileFactory factory;
+    private StaticMapServer server;
+    private ExecutorService clients;
+
+    @Before
+    public void setUp() throws IOException {
+        final BufferedImage tile = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(tile, "png", out);
+        final byte[] png = out.toByteArray();
+
+        tileServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        tileServer.createContext("/tiles", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                tileRequests.incrementAndGet();
+                try {
+                    Thread.sleep(TILE_DELAY);
+                }
+                catch (final InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                exchange.getResponseHeaders().set("Content-Type", "image/png");
+                exchange.sendResponseHeaders(200, png.length);
+                final OutputStream body = exchange.getResponseBody();
+                body.write(png);
+                body.close();
+            }
+        });
+        tileServer.setExecutor(Executors.newFixedThreadPool(8));
+        tileServer.start();
+
+        factory = new DefaultTileFactory(new TileFactoryInfo(1, 15, 17, 256, true, true, "http://127.0.0.1:"
+                + tileServer.getAddress().getPort() + "/tiles?", "x", "y", "z"));
+        clients = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.stop();
+        }
+        clients.shutdownNow();
+        tileServer.stop(0);
+    }
+
+    /**
+     * Many clients asking for a mix of maps all get their image.
+     */
+    @Test(timeout = 120000)
+    public void testConcurrentClients() throws Exception {
+        server = new StaticMapServer(new MapRenderer(factory), 4);
+        server.setQueueSize(256);
+        server.start(new InetSocketAddress("127.0.0.1", 0));
+
+        final List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int c = 0; c < 32; c++) {
+            final Random random = new Random(c);
+            results.add(clients.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    int ok = 0;
+                    for (int i = 0; i < 20; i++) {
+                        final int map = random.nextInt(40);
+                        final Response response = get(query(map % 10, map / 10, "300x200", map % 3 == 0));
+                        assertEquals(200, response.status);
+                        final BufferedImage img = ImageIO.read(new ByteArrayInputStream(response.body));
+                        assertNotNull(img);
+                        assertEquals(300, img.getWidth());
+                        assertEquals(200, img.getHeight());
+                        ok++;
+                    }
+                    return ok;
+                }
+            }));
+        }
+        for (final Future<Integer> result : results) {
+            assertEquals(20, result.get().intValue());
+        }
+        assertEquals(640, server.getRequestCount());
+        assertEquals(0, server.getRejectedCount());
+        assertTrue(server.getCacheHits() > 0);
+        assertTrue(tileRequests.get() > 0);
+    }
+
+    /**
+     * The requests exceeding the threads and the queue are answered at once
+     * with a 503, the others once the threads are free.
+     */
+    @Test(timeout = 60000)
+    public void testRejectsWhenBusy() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        server = new StaticMapServer(new MapRenderer(factory), 1) {
+            @Override
+            protected byte[] render(final MapRequest request) throws IOException, InterruptedException {
+                started.countDown();
+                release.await();
+                return super.render(request);
+            }
+        };
+        server.setQueueSize(1);
+        server.start(new InetSocketAddress("127.0.0.1", 0));
+
+        final Future<Response> running = async(query(0, 0, "64x64", false));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        // One waits in the queue, the other ones are rejected
+        final List<Future<Response>> waiting = new ArrayList<Future<Response>>();
+        for (int i = 1; i <= 4; i++) {
+            waiting.add(async(query(i, 0, "64x64", false)));
+        }
+        int rejected = 0;
+        while (rejected < 3) {
+            for (final Future<Response> response : new ArrayList<Future<Response>>(waiting)) {
+                if (response.isDone()) {
+                    assertEquals(503, response.get().status);
+                    waiting.remove(response);
+                    rejected++;
+                }
+            }
+            Thread.sleep(10);
+        }
+        assertEquals(3, server.getRejectedCount());
+
+        release.countDown();
+        assertEquals(200, running.get().status);
+        assertEquals(1, waiting.size());
+        assertEquals(200, waiting.get(0).get().status);
+    }
+
+    /**
+     * Identical requests arriving together are rendered once.
+     */
+    @Test(timeout = 60000)
+    public void testIdenticalRequestsRenderedOnce() throws Exception {
+        final int count = 8;
+        final AtomicInteger renders = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        server = new StaticMapServer(new MapRenderer(factory), count) {
+            @Override
+            protected byte[] render(final MapRequest request) throws IOException, InterruptedException {
+                renders.incrementAndGet();
+                release.await();
+                return super.render(request);
+            }
+        };
+        server.setCacheSize(0);
+        server.start(new InetSocketAddress("127.0.0.1", 0));
+
+        final List<Future<Response>> responses = new ArrayList<Future<Response>>();
+        for (int i = 0; i < count; i++) {
+            responses.add(async(query(3, 3, "128x128", true)));
+        }
+        while (server.getRequestCount() < count) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+
+        final byte[] first = responses.get(0).get().body;
+        for (final Future<Response> response : responses) {
+            assertEquals(200, response.get().status);
+            assertArrayEquals(first, response.get().body);
+        }
+        assertEquals(1, renders.get());
+        assertEquals(0, server.getCacheHits());
+    }
+
+    private static String query(final int lat, final int lon, final String size, final boolean markers) {
+        final String center = (40 + lat * 0.01) + "," + (-3 + lon * 0.01);
+        return "center=" + center + "&zoom=5&size=" + size + (markers ? "&markers=" + center : "");
+    }
+
+    private Future<Response> async(final String query) {
+        return clients.submit(new Callable<Response>() {
+            @Override
+            public Response call() throws Exception {
+                return get(query);
+            }
+        });
+    }
+
+    private Response get(final String query) throws IOException {
+        final URL url = new URL("http://127.0.0.1:" + server.getPort() + StaticMapServer.PATH + "?" + query);
+        final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        try {
+            final int status = conn.getResponseCode();
+            final InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream();
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try {
+                final byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    body.write(buffer, 0, read);
+                }
+            }
+            finally {
+                in.close();
+            }
+            return new Response(status, body.toByteArray());
+        }
+        finally {
+            conn.disconnect();
+        }
+    }
+
+    private static class Response {
+        private final int status;
+        private final byte[] body;
+
+        Response(final int status, final byte[] body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+}
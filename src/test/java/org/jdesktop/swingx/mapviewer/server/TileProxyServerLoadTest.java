@@ -0,0 +1,220 @@
+package org.jdesktop.swingx.mapviewer.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+
+import org.jdesktop.swingx.mapviewer.DefaultTileFactory;
+import org.jdesktop.swingx.mapviewer.TileFactoryInfo;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Loads a {@link TileProxyServer} in front of a stub upstream tile server.
+ */
+public class TileProxyServerLoadTest {
+    private static final Logger LOG = Logger.getLogger(TileProxyServerLoadTest.class.getName());
+
+    private static final String ETAG = "\"v1\"";
+
+    private HttpServer upstream;
+    private final AtomicInteger upstreamRequests = new AtomicInteger();
+    private final AtomicInteger notModified = new AtomicInteger();
+    private volatile CountDownLatch release = new CountDownLatch(0);
+    private byte[] png;
+    private TileProxyServer proxy;
+    private ExecutorService clients;
+
+    @Before
+    public void setUp() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB), "png", out);
+        png = out.toByteArray();
+
+        upstream = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        upstream.createContext("/tiles", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                upstreamRequests.incrementAndGet();
+                try {
+                    release.await();
+                }
+                catch (final InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                // Always stale, every request of the proxy revalidates
+                exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+                exchange.getResponseHeaders().set("ETag", ETAG);
+                if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    notModified.incrementAndGet();
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Type", "image/png");
+                exchange.sendResponseHeaders(200, png.length);
+                final OutputStream body = exchange.getResponseBody();
+                body.write(png);
+                body.close();
+            }
+        });
+        upstream.setExecutor(Executors.newFixedThreadPool(16));
+        upstream.start();
+
+        proxy = new TileProxyServer(new DefaultTileFactory(new TileFactoryInfo(1, 15, 17, 256, true, true,
+                "http://127.0.0.1:" + upstream.getAddress().getPort() + "/tiles?", "x", "y", "z")));
+        proxy.start(new InetSocketAddress("127.0.0.1", 0));
+        clients = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        proxy.stop();
+        clients.shutdownNow();
+        upstream.stop(0);
+    }
+
+    /**
+     * Concurrent requests of the same missing tile send a single request
+     * upstream.
+     */
+    @Test(timeout = 60000)
+    public void testSingleFlight() throws Exception {
+        final int count = 16;
+        release = new CountDownLatch(1);
+        final List<Future<Response>> responses = new ArrayList<Future<Response>>();
+        for (int i = 0; i < count; i++) {
+            responses.add(async("/5/3/3", null));
+        }
+        while (proxy.getRequestCount() < count) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+
+        for (final Future<Response> response : responses) {
+            assertEquals(200, response.get().status);
+            assertArrayEquals(png, response.get().body);
+        }
+        assertEquals(1, upstreamRequests.get());
+        assertEquals(count - 1, proxy.getSharedDownloadCount());
+    }
+
+    /**
+     * Stale tiles are revalidated upstream with a conditional request, and
+     * the clients holding the current version get a 304.
+     */
+    @Test(timeout = 60000)
+    public void testNotModified() throws Exception {
+        final Response first = get("/5/3/3", null);
+        assertEquals(200, first.status);
+        assertEquals(0, notModified.get());
+
+        final Response revalidated = get("/5/3/3", null);
+        assertEquals(200, revalidated.status);
+        assertArrayEquals(png, revalidated.body);
+        assertEquals(2, upstreamRequests.get());
+        assertEquals(1, notModified.get());
+
+        final Response conditional = get("/5/3/3", ETAG);
+        assertEquals(304, conditional.status);
+        assertEquals(0, conditional.body.length);
+    }
+
+    /**
+     * The requests over the upstream rate wait for their turn.
+     */
+    @Test(timeout = 60000)
+    public void testRateLimit() throws Exception {
+        final int rate = 20;
+        final int count = 50;
+        proxy.setMaxUpstreamRate(rate);
+        final long start = System.nanoTime();
+        final List<Future<Response>> responses = new ArrayList<Future<Response>>();
+        for (int i = 0; i < count; i++) {
+            responses.add(async("/5/" + i % 10 + "/" + i / 10, null));
+        }
+        for (final Future<Response> response : responses) {
+            assertEquals(200, response.get().status);
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        LOG.info(String.format("%d upstream requests in %.2f s, %.1f requests/s with a limit of %d", count,
+                seconds, count / seconds, rate));
+        assertEquals(count, upstreamRequests.get());
+        // One second of burst, the rest at the rate
+        assertTrue(seconds >= (count - rate) / (double) rate * 0.9);
+    }
+
+    private Future<Response> async(final String path, final String etag) {
+        return clients.submit(new Callable<Response>() {
+            @Override
+            public Response call() throws Exception {
+                return get(path, etag);
+            }
+        });
+    }
+
+    private Response get(final String path, final String etag) throws IOException {
+        final URL url = new URL("http://127.0.0.1:" + proxy.getPort() + path);
+        final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        if (etag != null) {
+            conn.setRequestProperty("If-None-Match", etag);
+        }
+        try {
+            final int status = conn.getResponseCode();
+            final InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream();
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            if (in != null) {
+                try {
+                    final byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        body.write(buffer, 0, read);
+                    }
+                }
+                finally {
+                    in.close();
+                }
+            }
+            return new Response(status, body.toByteArray());
+        }
+        finally {
+            conn.disconnect();
+        }
+    }
+
+    private static class Response {
+        private final int status;
+        private final byte[] body;
+
+        Response(final int status, final byte[] body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.jdesktop.swingx.mapviewer.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.Executors;
+
+import javax.imageio.ImageIO;
+
+import org.jdesktop.swingx.mapviewer.DefaultTileFactory;
+import org.jdesktop.swingx.mapviewer.TileFactoryInfo;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Proxies the tiles of a stub tile server through a {@link TileProxyServer}.
+ */
+public class TileProxyServerTest {
+    private HttpServer tileServer;
+    private TileFactoryInfo info;
+    private TileProxyServer proxy;
+
+    @Before
+    public void setUp() throws IOException {
+        final byte[] standard = png(256);
+        final byte[] scaled = png(512);
+        tileServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        tileServer.createContext("/tiles", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                final String query = exchange.getRequestURI().getQuery();
+                final byte[] body = query.contains("scale=2") ? scaled : standard;
+                // Served without type, like some misconfigured servers
+                exchange.sendResponseHeaders(200, body.length);
+                final OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        tileServer.setExecutor(Executors.newFixedThreadPool(4));
+        tileServer.start();
+
+        info = new TileFactoryInfo(1, 15, 17, 256, true, true, "http://127.0.0.1:"
+                + tileServer.getAddress().getPort() + "/tiles?", "x", "y", "z") {
+            @Override
+            public String getTileUrl(final int x, final int y, final int zoom, final int scale) {
+                return getTileUrl(x, y, zoom) + "&scale=" + scale;
+            }
+
+            @Override
+            public int getMaximumTileScale() {
+                return 2;
+            }
+        };
+        proxy = new TileProxyServer(new DefaultTileFactory(info), 4);
+        proxy.start(new InetSocketAddress("127.0.0.1", 0));
+    }
+
+    @After
+    public void tearDown() {
+        proxy.stop();
+        tileServer.stop(0);
+    }
+
+    /**
+     * The type of the tiles is given, from the downloaded and the cached
+     * copies.
+     */
+    @Test(timeout = 60000)
+    public void testContentType() throws IOException {
+        for (int i = 0; i < 2; i++) {
+            final HttpURLConnection conn = open("/5/1/1");
+            assertEquals(200, conn.getResponseCode());
+            assertEquals("image/png", conn.getContentType());
+            read(conn);
+        }
+        assertEquals(1, proxy.getUpstreamRequestCount());
+    }
+
+    /**
+     * The scaled variants are proxied up to the maximum scale of the source.
+     */
+    @Test(timeout = 60000)
+    public void testScaledTiles() throws IOException {
+        final TileFactoryInfo proxyInfo = TileProxyServer.createProxyInfo(info, "http://127.0.0.1:"
+                + proxy.getPort());
+        assertEquals(2, proxyInfo.getMaximumTileScale());
+        final String url = proxyInfo.getTileUrl(1, 1, 5, 2);
+        assertTrue(url, url.endsWith("/5/1/1@2x"));
+
+        final HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        assertEquals(200, conn.getResponseCode());
+        assertEquals(512, ImageIO.read(new ByteArrayInputStream(read(conn))).getWidth());
+
+        final HttpURLConnection standard = open("/5/1/1.png");
+        assertEquals(200, standard.getResponseCode());
+        assertEquals(256, ImageIO.read(new ByteArrayInputStream(read(standard))).getWidth());
+
+        assertEquals(404, open("/5/1/1@3x").getResponseCode());
+        assertEquals(404, open("/5/1/1@2").getResponseCode());
+    }
+
+    private HttpURLConnection open(final String path) throws IOException {
+        return (HttpURLConnection) new URL("http://127.0.0.1:" + proxy.getPort() + path).openConnection();
+    }
+
+    private static byte[] read(final HttpURLConnection conn) throws IOException {
+        final InputStream in = conn.getInputStream();
+        try {
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                body.write(buffer, 0, read);
+            }
+            return body.toByteArray();
+        }
+        finally {
+            in.close();
+            conn.disconnect();
+        }
+    }
+
+    private static byte[] png(final int size) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB), "png", out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,75 @@
+package org.jdesktop.swingx.mapviewer.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+/**
+ * Checks the memory an {@link ImageCache} reports to the
+ * {@link MemoryGovernor}, and the savings of its users.
+ */
+public class ImageCacheTest {
+
+    /**
+     * The images also held by tiles are counted by their budget, not twice.
+     */
+    @Test
+    public void testSharedImagesNotCounted() throws IOException {
+        final ImageCache cache = new ImageCache();
+        final byte[] data = png();
+        final BufferedImage img = cache.acquire(URI.create("http://tile.example.com/1.png"), data);
+        assertNotNull(img);
+        assertEquals(data.length, cache.getMemoryUsage());
+
+        ImagePool.getDefault().release(img);
+        final long usage = data.length + ImagePool.sizeOf(img);
+        assertEquals(usage, cache.getMemoryUsage());
+        assertEquals(usage, cache.releaseMemory(Long.MAX_VALUE));
+        assertEquals(0, cache.getMemoryUsage());
+    }
+
+    /**
+     * The savings of the deduplication are counted for the user sharing the
+     * tile, and given to the remaining one when the first tile goes.
+     */
+    @Test
+    public void testStatisticsPerUser() throws IOException {
+        final ImageCache cache = new ImageCache();
+        final ImageCache.Statistics first = new ImageCache.Statistics();
+        final ImageCache.Statistics second = new ImageCache.Statistics();
+        final byte[] data = png(64);
+        final URI firstUri = URI.create("http://first.example.com/1.png");
+        ImagePool.getDefault().release(cache.acquire(firstUri, data, first));
+        ImagePool.getDefault().release(cache.acquire(URI.create("http://second.example.com/1.png"), data, second));
+        ImagePool.getDefault().release(cache.acquire(URI.create("http://second.example.com/2.png"), data, second));
+        assertEquals(0, first.getSharedBytes());
+        assertEquals(0, first.getDecodesAvoided());
+        assertEquals(2L * data.length, second.getSharedBytes());
+        assertEquals(2, second.getDecodesAvoided());
+        assertEquals(2L * data.length, cache.getSharedBytes());
+
+        // Replacing the first tile leaves a single copy to the second user
+        ImagePool.getDefault().release(cache.acquire(firstUri, png(32), first));
+        assertEquals(0, first.getSharedBytes());
+        assertEquals(data.length, second.getSharedBytes());
+        assertEquals(data.length, cache.getSharedBytes());
+    }
+
+    private static byte[] png() throws IOException {
+        return png(64);
+    }
+
+    private static byte[] png(final int size) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB), "png", out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,136 @@
+package org.jdesktop.swingx.mapviewer.util;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+
+import org.jdesktop.swingx.graphics.GraphicsUtilities;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Measures the bytes allocated by the decoding and the compositing of tiles
+ * with and without an {@link ImagePool}.
+ */
+public class ImagePoolAllocationTest {
+    private static final Logger LOG = Logger.getLogger(ImagePoolAllocationTest.class.getName());
+
+    private static final int SIZE = 256;
+    private static final int WARMUP = 50;
+    private static final int ITERATIONS = 200;
+
+    private com.sun.management.ThreadMXBean threads;
+    private ImagePool pool;
+    private byte[] png;
+
+    @Before
+    public void setUp() throws IOException {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        pool = new ImagePool();
+        final BufferedImage tile = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D g2 = tile.createGraphics();
+        g2.setColor(new Color(40, 120, 200, 128));
+        g2.fillOval(16, 16, SIZE - 32, SIZE - 32);
+        g2.dispose();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(tile, "png", out);
+        png = out.toByteArray();
+    }
+
+    /**
+     * Decoding into recycled rasters allocates less than a new image per
+     * tile.
+     */
+    @Test
+    public void testDecodeAllocation() throws IOException {
+        final long unpooled = measure(new Operation() {
+            @Override
+            public void run() throws IOException {
+                final BufferedImage img = GraphicsUtilities.toCompatibleImage(ImageIO.read(
+                        new ByteArrayInputStream(png)));
+                assertNotNull(img);
+            }
+        });
+        final long pooled = measure(new Operation() {
+            @Override
+            public void run() throws IOException {
+                final BufferedImage img = pool.decode(png);
+                assertNotNull(img);
+                pool.release(img);
+            }
+        });
+        report("decode", unpooled, pooled);
+        assertTrue(pooled < unpooled);
+    }
+
+    /**
+     * Compositing into recycled images, like the rebuilds of the compound
+     * tiles, allocates almost nothing.
+     */
+    @Test
+    public void testCompositeAllocation() throws IOException {
+        final long unpooled = measure(new Operation() {
+            @Override
+            public void run() {
+                composite(new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB));
+            }
+        });
+        final long pooled = measure(new Operation() {
+            @Override
+            public void run() {
+                final BufferedImage img = pool.acquire(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB, true);
+                composite(img);
+                pool.release(img);
+            }
+        });
+        report("composite", unpooled, pooled);
+        assertTrue(pooled * 4 < unpooled);
+    }
+
+    private interface Operation {
+        void run() throws IOException;
+    }
+
+    /**
+     * @return the bytes allocated by an operation, on average
+     */
+    private long measure(final Operation operation) throws IOException {
+        for (int i = 0; i < WARMUP; i++) {
+            operation.run();
+        }
+        final long id = Thread.currentThread().getId();
+        final long start = threads.getThreadAllocatedBytes(id);
+        for (int i = 0; i < ITERATIONS; i++) {
+            operation.run();
+        }
+        return (threads.getThreadAllocatedBytes(id) - start) / ITERATIONS;
+    }
+
+    private static void composite(final BufferedImage img) {
+        final Graphics2D g2 = img.createGraphics();
+        g2.setColor(Color.GRAY);
+        g2.fillRect(0, 0, SIZE, SIZE);
+        g2.dispose();
+    }
+
+    private static void report(final String operation, final long unpooled, final long pooled) {
+        LOG.info(operation + ": " + unpooled / 1024 + " KB allocated per tile without pool, " + pooled / 1024
+                + " KB with pool");
+    }
+}
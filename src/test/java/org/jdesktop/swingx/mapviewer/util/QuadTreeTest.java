@@ -0,0 +1,125 @@
+package org.jdesktop.swingx.mapviewer.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Checks the {@link QuadTree} queries against a scan of all the points, and
+ * the number of nodes they visit.
+ */
+public class QuadTreeTest {
+    private static final Rectangle2D BOUNDS = new Rectangle2D.Double(0, 0, 1, 1);
+
+    /**
+     * Random puts, moves and removes, with points out of the bounds and
+     * several at the same place.
+     */
+    @Test
+    public void testMatchesScan() {
+        final Random random = new Random(42);
+        final QuadTree<Integer> tree = new QuadTree<Integer>(BOUNDS);
+        final Map<Integer, Point2D> points = new HashMap<Integer, Point2D>();
+        for (int i = 0; i < 50000; i++) {
+            final Integer item = random.nextInt(5000);
+            final int op = random.nextInt(10);
+            if (op == 0) {
+                assertEquals(points.remove(item) != null, tree.remove(item));
+            }
+            else {
+                final Point2D point = op == 1 ? new Point2D.Double(0.25, 0.75) : new Point2D.Double(
+                        random.nextDouble() * 1.2 - 0.1, random.nextDouble() * 1.2 - 0.1);
+                points.put(item, point);
+                tree.put(item, point.getX(), point.getY());
+            }
+            if (i % 500 == 0) {
+                assertEquals(points.size(), tree.size());
+                for (int q = 0; q < 20; q++) {
+                    final double x = random.nextDouble() * 1.4 - 0.2;
+                    final double y = random.nextDouble() * 1.4 - 0.2;
+                    final Rectangle2D area = new Rectangle2D.Double(x, y, random.nextDouble() * 0.5,
+                            random.nextDouble() * 0.5);
+                    assertEquals(scan(points, area), query(tree, area));
+                }
+                final Rectangle2D pinned = new Rectangle2D.Double(0.25, 0.75, 0, 0);
+                assertEquals(scan(points, pinned), query(tree, pinned));
+            }
+        }
+    }
+
+    /**
+     * With a constant number of items found, the nodes visited by a query
+     * grow with the depth of the tree, so by a constant for each 4 times more
+     * points, instead of with the square root of their number.
+     */
+    @Test
+    public void testVisitedNodesGrowLogarithmically() {
+        final int found = 20;
+        final int[] sizes = {4096, 16384, 65536, 262144};
+        final double[] visited = new double[sizes.length];
+        for (int s = 0; s < sizes.length; s++) {
+            final Random random = new Random(s);
+            final QuadTree<Integer> tree = new QuadTree<Integer>(BOUNDS);
+            for (int i = 0; i < sizes[s]; i++) {
+                tree.put(i, random.nextDouble(), random.nextDouble());
+            }
+            final double side = Math.sqrt((double) found / sizes[s]);
+            final Set<Integer> result = new HashSet<Integer>();
+            long total = 0;
+            long items = 0;
+            for (int q = 0; q < 1000; q++) {
+                result.clear();
+                final Rectangle2D area = new Rectangle2D.Double(random.nextDouble() * (1 - side),
+                        random.nextDouble() * (1 - side), side, side);
+                total += tree.visit(area, collector(result));
+                items += result.size();
+            }
+            visited[s] = (double) total / 1000;
+            // The queries find about the same number of items at every size
+            assertEquals(found, (double) items / 1000, found * 0.2);
+        }
+        for (int s = 1; s < sizes.length; s++) {
+            final double growth = visited[s] - visited[s - 1];
+            assertTrue("Visited " + visited[s - 1] + " then " + visited[s] + " nodes", growth < visited[0] * 0.5);
+        }
+        // A growth with the square root of n would visit 8 times more nodes
+        assertTrue("Visited " + visited[0] + " then " + visited[sizes.length - 1] + " nodes",
+                visited[sizes.length - 1] < visited[0] * 2);
+    }
+
+    private static Set<Integer> scan(final Map<Integer, Point2D> points, final Rectangle2D area) {
+        final Set<Integer> result = new HashSet<Integer>();
+        for (final Map.Entry<Integer, Point2D> entry : points.entrySet()) {
+            final Point2D point = entry.getValue();
+            if (point.getX() >= area.getMinX() && point.getX() <= area.getMaxX() && point.getY() >= area.getMinY()
+                    && point.getY() <= area.getMaxY()) {
+                result.add(entry.getKey());
+            }
+        }
+        return result;
+    }
+
+    private static Set<Integer> query(final QuadTree<Integer> tree, final Rectangle2D area) {
+        final Set<Integer> result = new HashSet<Integer>();
+        tree.query(area, collector(result));
+        return result;
+    }
+
+    private static QuadTree.Visitor<Integer> collector(final Set<Integer> result) {
+        return new QuadTree.Visitor<Integer>() {
+            @Override
+            public void visit(final Integer item, final double x, final double y) {
+                assertTrue("Found twice: " + item, result.add(item));
+            }
+        };
+    }
+}